@@ -0,0 +1,283 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.thickness.EstimateScalingFactors;
+import org.janelia.thickness.ShiftCoordinates;
+import org.janelia.thickness.inference.InferFromMatrix;
+import org.janelia.thickness.inference.InferFromStrip;
+import org.janelia.thickness.inference.Options;
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.inference.fits.LocalCorrelationFitAverage;
+import org.janelia.thickness.lut.LUTRealTransform;
+import org.janelia.utility.MatrixStripConversion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.ConstantUtils;
+import net.imglib2.view.Views;
+
+/**
+ * Benchmarks for the steps of an outer iteration of
+ * {@link InferFromMatrix#estimateZCoordinates} and for complete runs, on
+ * synthetic similarity matrices of n sections with comparison range range.
+ * Each step is measured for the generic (matrix) and the strip engine.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class InferenceBenchmark
+{
+
+	@Param( { "500", "2000" } )
+	public int n;
+
+	@Param( { "10", "50" } )
+	public int range;
+
+	@Param( { "global", "local" } )
+	public String fit;
+
+	@Param( "10" )
+	public int iterations;
+
+	private Options options;
+
+	private ArrayImg< DoubleType, DoubleArray > matrix;
+
+	private RandomAccessibleInterval< DoubleType > weights;
+
+	private double[] strip;
+
+	private int[] identity;
+
+	private double[] coordinates;
+
+	private double[] scalingFactors;
+
+	private double[] shiftWeights;
+
+	private double[] shiftsArray;
+
+	private double[] weightSums;
+
+	private AbstractCorrelationFit correlationFit;
+
+	private RandomAccessibleInterval< double[] > fits;
+
+	private double[][] fitsArray;
+
+	@Setup
+	public void setup()
+	{
+		options = Options.generateDefaultOptions();
+		options.comparisonRange = range;
+		options.nIterations = iterations;
+		options.estimateWindowRadius = n / 8;
+		options.forceMonotonicity = true;
+
+		matrix = createMatrix( n, range, new Random( 100 ) );
+		weights = ConstantUtils.constantRandomAccessibleInterval( new DoubleType( 1.0 ), 2, matrix );
+		strip = MatrixStripConversion.matrixToDoubleStrip( matrix, range );
+
+		identity = new int[ n ];
+		coordinates = new double[ n ];
+		scalingFactors = new double[ n ];
+		shiftWeights = new double[ n ];
+		for ( int z = 0; z < n; ++z )
+		{
+			identity[ z ] = z;
+			coordinates[ z ] = z;
+		}
+		Arrays.fill( scalingFactors, 1.0 );
+		Arrays.fill( shiftWeights, 1.0 );
+		shiftsArray = new double[ n ];
+		weightSums = new double[ n ];
+
+		correlationFit = createFit();
+		// separate fit instance, correlationFit may reuse its buffers
+		fits = createFit().estimateFromStrip( strip, identity, coordinates, null, options, false );
+		fitsArray = new double[ n ][];
+		final Cursor< double[] > c = Views.flatIterable( fits ).cursor();
+		for ( int z = 0; z < n; ++z )
+			fitsArray[ z ] = c.next();
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< double[] > correlationFitMatrix()
+	{
+		return correlationFit.estimateFromMatrix(
+				matrix,
+				coordinates,
+				new LUTRealTransform( coordinates, 2, 2 ),
+				weights,
+				options,
+				new NLinearInterpolatorFactory<>() );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< double[] > correlationFitStrip()
+	{
+		return correlationFit.estimateFromStrip( strip, identity, coordinates, null, options, false );
+	}
+
+	@Benchmark
+	public double[] scalingFactorsMatrix()
+	{
+		Arrays.fill( scalingFactors, 1.0 );
+		EstimateScalingFactors.estimateQuadraticFromMatrix(
+				matrix,
+				scalingFactors,
+				coordinates,
+				fits,
+				options.scalingFactorRegularizerWeight,
+				range,
+				options.scalingFactorEstimationIterations,
+				weights );
+		return scalingFactors;
+	}
+
+	@Benchmark
+	public double[] scalingFactorsStrip()
+	{
+		Arrays.fill( scalingFactors, 1.0 );
+		EstimateScalingFactors.estimateQuadraticFromStrip(
+				strip,
+				identity,
+				scalingFactors,
+				coordinates,
+				fitsArray,
+				options.scalingFactorRegularizerWeight,
+				range,
+				options.scalingFactorEstimationIterations,
+				0.0,
+				null );
+		return scalingFactors;
+	}
+
+	@Benchmark
+	public double[] shiftsMatrix()
+	{
+		Arrays.fill( shiftsArray, 0.0 );
+		Arrays.fill( weightSums, 0.0 );
+		ShiftCoordinates.collectShiftsFromMatrix( coordinates, matrix, scalingFactors, fits, shiftsArray, weightSums, shiftWeights, options );
+		return shiftsArray;
+	}
+
+	@Benchmark
+	public double[] shiftsStrip()
+	{
+		Arrays.fill( shiftsArray, 0.0 );
+		Arrays.fill( weightSums, 0.0 );
+		ShiftCoordinates.collectShiftsFromStrip( coordinates, strip, identity, scalingFactors, fitsArray, shiftsArray, weightSums, shiftWeights, options );
+		return shiftsArray;
+	}
+
+	@Benchmark
+	public double[] inferenceMatrix() throws Exception
+	{
+		return new InferFromMatrix( createFit() ).estimateZCoordinates( matrix, coordinates, options );
+	}
+
+	@Benchmark
+	public double[] inferenceStrip() throws Exception
+	{
+		return new InferFromStrip( createFit() ).estimateZCoordinates( strip, coordinates, options );
+	}
+
+	private AbstractCorrelationFit createFit()
+	{
+		return "local".equals( fit ) ? new LocalCorrelationFitAverage( n, options ) : new GlobalCorrelationFitAverage();
+	}
+
+	/**
+	 * Similarities exp( -|dz| / range ) with noise for sections of random
+	 * thickness, NaN outside of range.
+	 */
+	public static ArrayImg< DoubleType, DoubleArray > createMatrix( final int n, final int range, final Random rng )
+	{
+		final double[] positions = new double[ n ];
+		for ( int z = 1; z < n; ++z )
+			positions[ z ] = positions[ z - 1 ] + Math.max( 0.2, 1.0 + 0.3 * rng.nextGaussian() );
+
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( n, n );
+		final ArrayCursor< DoubleType > c = matrix.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			final int x = c.getIntPosition( 0 );
+			final int y = c.getIntPosition( 1 );
+			if ( Math.abs( x - y ) > range )
+				c.get().set( Double.NaN );
+			else if ( x == y )
+				c.get().set( 1.0 );
+			else if ( x > y )
+				c.get().set( Math.exp( -Math.abs( positions[ x ] - positions[ y ] ) / range ) + 0.01 * rng.nextGaussian() );
+		}
+		// symmetrize
+		c.reset();
+		final RandomAccess< DoubleType > access = matrix.randomAccess();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			final int x = c.getIntPosition( 0 );
+			final int y = c.getIntPosition( 1 );
+			if ( x < y && y - x <= range )
+			{
+				access.setPosition( y, 0 );
+				access.setPosition( x, 1 );
+				c.get().set( access.get() );
+			}
+		}
+		return matrix;
+	}
+
+}
@@ -21,6 +21,13 @@
  */
 package org.janelia.thickness;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import org.janelia.thickness.inference.Convergence;
+import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.ParallelBlocks;
+
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
@@ -50,6 +57,29 @@ public class EstimateScalingFactors
 			final int nIterations,
 			final RandomAccessibleInterval< W > pairwiseWeights )
 	{
+		estimateQuadraticFromMatrix( correlations, scalingFactors, coordinates, localFits, regularizerWeight, comparisonRange, nIterations, 0.0, pairwiseWeights );
+	}
+
+	/**
+	 * Same as
+	 * {@link #estimateQuadraticFromMatrix(RandomAccessibleInterval, double[], double[], RandomAccessibleInterval, double, int, int, RandomAccessibleInterval)}
+	 * but stop before nIterations if the maximum relative change of scaling
+	 * factors within an iteration falls below tolerance (disabled if
+	 * tolerance &le; 0).
+	 */
+	public static < T extends RealType< T >, W extends RealType< W > > void estimateQuadraticFromMatrix(
+			final RandomAccessibleInterval< T > correlations,
+			final double[] scalingFactors,
+			final double[] coordinates,
+			final RandomAccessibleInterval< double[] > localFits,
+			final double regularizerWeight,
+			final int comparisonRange,
+			final int nIterations,
+			final double tolerance,
+			final RandomAccessibleInterval< W > pairwiseWeights )
+	{
+
+		final double[] previous = tolerance > 0.0 ? new double[ scalingFactors.length ] : null;
 
 		final double inverseRegularizerWeight = 1 - regularizerWeight;
 
@@ -59,6 +89,9 @@ public class EstimateScalingFactors
 		for ( int iter = 0; iter < nIterations; ++iter )
 		{
 
+			if ( previous != null )
+				System.arraycopy( scalingFactors, 0, previous, 0, previous.length );
+
 			final Cursor< double[] > fitCursor = Views.iterable( localFits ).cursor();
 
 			for ( int n = 0; fitCursor.hasNext(); ++n )
@@ -103,7 +136,168 @@ public class EstimateScalingFactors
 					scalingFactors[ n ] = result;
 			}
 
+			if ( previous != null && Convergence.relativeChange( previous, scalingFactors ) < tolerance )
+				break;
+
+		}
+	}
+
+	/**
+	 * Primitive counterpart of
+	 * {@link #estimateQuadraticFromMatrix(RandomAccessibleInterval, double[], double[], RandomAccessibleInterval, double, int, int, RandomAccessibleInterval)}
+	 * for correlations stored as dense strip (see
+	 * {@link MatrixStripConversion#get}).
+	 *
+	 * @param correlations
+	 *            correlations in strip layout
+	 * @param permutation
+	 *            maps (sorted) matrix indices to strip rows
+	 * @param scalingFactors
+	 * @param coordinates
+	 * @param localFits
+	 *            one fit per section
+	 * @param regularizerWeight
+	 * @param comparisonRange
+	 * @param nIterations
+	 * @param tolerance
+	 *            stop early if maximum relative change of scaling factors
+	 *            within an iteration falls below tolerance, disabled if &le;
+	 *            0
+	 * @param pairwiseWeights
+	 *            weights in strip layout (not permuted), unit weights if null
+	 */
+	public static void estimateQuadraticFromStrip(
+			final double[] correlations,
+			final int[] permutation,
+			final double[] scalingFactors,
+			final double[] coordinates,
+			final double[][] localFits,
+			final double regularizerWeight,
+			final int comparisonRange,
+			final int nIterations,
+			final double tolerance,
+			final double[] pairwiseWeights )
+	{
+
+		final double[] previous = tolerance > 0.0 ? new double[ scalingFactors.length ] : null;
+		for ( int iter = 0; iter < nIterations; ++iter )
+		{
+			if ( previous != null )
+				System.arraycopy( scalingFactors, 0, previous, 0, previous.length );
+			updateFromStrip( correlations, permutation, scalingFactors, scalingFactors, coordinates, localFits, regularizerWeight, comparisonRange, pairwiseWeights, 0, localFits.length );
+			if ( previous != null && Convergence.relativeChange( previous, scalingFactors ) < tolerance )
+				break;
+		}
+	}
+
+	/**
+	 * Parallel version of
+	 * {@link #estimateQuadraticFromStrip(double[], int[], double[], double[], double[][], double, int, int, double, double[])}.
+	 * In contrast to the sequential version, which updates scaling factors
+	 * in place (Gauss-Seidel), each iteration updates all sections from the
+	 * scaling factors of the previous iteration (Jacobi). The result does not
+	 * depend on the number of threads or on the block size.
+	 *
+	 * @param es
+	 *            sequential if null
+	 * @param blockSize
+	 *            number of sections per task
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static void estimateQuadraticFromStrip(
+			final double[] correlations,
+			final int[] permutation,
+			final double[] scalingFactors,
+			final double[] coordinates,
+			final double[][] localFits,
+			final double regularizerWeight,
+			final int comparisonRange,
+			final int nIterations,
+			final double tolerance,
+			final double[] pairwiseWeights,
+			final ExecutorService es,
+			final int blockSize ) throws InterruptedException, ExecutionException
+	{
+		final double[] previous = new double[ scalingFactors.length ];
+		for ( int iter = 0; iter < nIterations; ++iter )
+		{
+			System.arraycopy( scalingFactors, 0, previous, 0, previous.length );
+			ParallelBlocks.run( es, localFits.length, blockSize, ( index, start, stop ) -> updateFromStrip(
+					correlations,
+					permutation,
+					previous,
+					scalingFactors,
+					coordinates,
+					localFits,
+					regularizerWeight,
+					comparisonRange,
+					pairwiseWeights,
+					start,
+					stop ) );
+			if ( tolerance > 0.0 && Convergence.relativeChange( previous, scalingFactors ) < tolerance )
+				break;
+		}
+	}
+
+	private static void updateFromStrip(
+			final double[] correlations,
+			final int[] permutation,
+			final double[] source,
+			final double[] target,
+			final double[] coordinates,
+			final double[][] localFits,
+			final double regularizerWeight,
+			final int comparisonRange,
+			final double[] pairwiseWeights,
+			final int start,
+			final int stop )
+	{
+		final double inverseRegularizerWeight = 1 - regularizerWeight;
+		final int size = source.length;
+
+		for ( int n = start; n < stop; ++n )
+		{
+			final double[] lf = localFits[ n ];
+			final double c = coordinates[ n ];
+			double enumeratorSum = 0.0;
+			double denominatorSum = 0.0;
+			final int minVal = Math.max( n - comparisonRange, 0 );
+			final int maxVal = Math.min( n + comparisonRange, size );
+			for ( int i = minVal; i < maxVal; ++i )
+			{
+				if ( i == n )
+					continue;
+				// fits are negative because LUTRealtransform requires
+				// increasing function
+				final double fitVal = -interpolate( lf, Math.abs( coordinates[ i ] - c ) );
+				final double measure = MatrixStripConversion.get( correlations, permutation, comparisonRange, size, n, i );
+				if ( Double.isNaN( fitVal ) || Double.isNaN( measure ) || measure <= 0.0 )
+					continue;
+				final double w = pairwiseWeights == null ? 1.0 : MatrixStripConversion.get( pairwiseWeights, null, comparisonRange, size, n, i );
+				final double prod = source[ i ] * measure;
+				final double h = w * prod;
+
+				enumeratorSum += h * fitVal;
+				denominatorSum += h * prod;
+			}
+			final double result = enumeratorSum / denominatorSum * inverseRegularizerWeight + regularizerWeight * source[ n ];
+			if ( !Double.isNaN( result ) )
+				target[ n ] = result;
 		}
 	}
 
+	/**
+	 * Linear interpolation with NaN extension, consistent with
+	 * {@link NLinearInterpolatorFactory} on a NaN extended array.
+	 */
+	private static double interpolate( final double[] values, final double position )
+	{
+		final int floor = ( int ) Math.floor( position );
+		if ( floor < 0 || floor + 1 >= values.length )
+			return Double.NaN;
+		final double d = position - floor;
+		return ( 1.0 - d ) * values[ floor ] + d * values[ floor + 1 ];
+	}
+
 }
@@ -21,8 +21,14 @@
  */
 package org.janelia.thickness;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
 import org.janelia.thickness.inference.Options;
+import org.janelia.thickness.lut.AbstractLUTRealTransform;
 import org.janelia.thickness.lut.LUTRealTransform;
+import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.ParallelBlocks;
 
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
@@ -154,4 +160,181 @@ public class ShiftCoordinates
 		}
 	}
 
+	/**
+	 * Primitive counterpart of
+	 * {@link #collectShiftsFromMatrix(double[], RandomAccessibleInterval, double[], RandomAccessibleInterval, double[], double[], double[], Options)}
+	 * for correlations stored as dense strip (see
+	 * {@link MatrixStripConversion#get}).
+	 *
+	 * @param coordinates
+	 * @param correlations
+	 *            correlations in strip layout
+	 * @param permutation
+	 *            maps (sorted) matrix indices to strip rows
+	 * @param multipliers
+	 * @param localFits
+	 *            one fit per section
+	 * @param shiftsArray
+	 * @param weightSums
+	 * @param shiftWeights
+	 * @param options
+	 */
+	public static void collectShiftsFromStrip(
+			final double[] coordinates,
+			final double[] correlations,
+			final int[] permutation,
+			final double[] multipliers,
+			final double[][] localFits,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final double[] shiftWeights,
+			final Options options )
+	{
+		collectShiftsForRows( coordinates, correlations, permutation, localFits, shiftsArray, weightSums, 0, shiftWeights, options, 0, coordinates.length );
+	}
+
+	/**
+	 * Parallel version of
+	 * {@link #collectShiftsFromStrip(double[], double[], int[], double[], double[][], double[], double[], double[], Options)}.
+	 * Each block of reference sections accumulates shifts and weights into
+	 * its own buffers, which are then added to shiftsArray and weightSums in
+	 * block order. For a fixed block size, the result does not depend on the
+	 * number of threads.
+	 *
+	 * @param es
+	 *            sequential if null
+	 * @param blockSize
+	 *            number of reference sections per task
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static void collectShiftsFromStrip(
+			final double[] coordinates,
+			final double[] correlations,
+			final int[] permutation,
+			final double[] multipliers,
+			final double[][] localFits,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final double[] shiftWeights,
+			final Options options,
+			final ExecutorService es,
+			final int blockSize ) throws InterruptedException, ExecutionException
+	{
+		final int range = options.comparisonRange;
+		final int n = coordinates.length;
+		final int nBlocks = ParallelBlocks.numBlocks( n, blockSize );
+		final double[][] blockShifts = new double[ nBlocks ][];
+		final double[][] blockWeightSums = new double[ nBlocks ][];
+
+		ParallelBlocks.run( es, n, blockSize, ( index, start, stop ) -> {
+			// reference sections in [start,stop) touch [start-range,stop+range)
+			final int offset = start - range;
+			final int length = stop - start + 2 * range;
+			blockShifts[ index ] = new double[ length ];
+			blockWeightSums[ index ] = new double[ length ];
+			collectShiftsForRows( coordinates, correlations, permutation, localFits, blockShifts[ index ], blockWeightSums[ index ], offset, shiftWeights, options, start, stop );
+		} );
+
+		for ( int b = 0; b < nBlocks; ++b )
+		{
+			final double[] bs = blockShifts[ b ];
+			final double[] bw = blockWeightSums[ b ];
+			final int offset = b * blockSize - range;
+			for ( int i = Math.max( -offset, 0 ), z = offset + i; i < bs.length && z < n; ++i, ++z )
+			{
+				shiftsArray[ z ] += bs[ i ];
+				weightSums[ z ] += bw[ i ];
+			}
+		}
+	}
+
+	/**
+	 * Collect shifts for reference sections [start,stop). Shifts and weights
+	 * for section z are added to shiftsArray[z - offset] and weightSums[z -
+	 * offset].
+	 */
+	private static void collectShiftsForRows(
+			final double[] coordinates,
+			final double[] correlations,
+			final int[] permutation,
+			final double[][] localFits,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final int offset,
+			final double[] shiftWeights,
+			final Options options,
+			final int start,
+			final int stop )
+	{
+
+		final int range = options.comparisonRange;
+		final int n = coordinates.length;
+
+		double reference = 0.0;
+
+		// i is reference index, k is comparison index
+		for ( int i = start; i < stop; ++i )
+		{
+
+			final double[] localFit = localFits[ i ];
+
+			double minMeasurement1 = Double.MAX_VALUE;
+			double minMeasurement2 = Double.MAX_VALUE;
+
+			// start at 1 to avoid using values on diagonal
+			final int startDist = 1;
+			final double w = shiftWeights[ i ];
+			for ( int dist = startDist, up = i + startDist, down = i - startDist; dist <= range; ++dist, ++up, --down )
+			{
+
+				if ( up < n )
+				{
+					final double measurement = MatrixStripConversion.get( correlations, permutation, range, n, up, i );
+					if ( Double.isNaN( measurement ) || measurement <= options.minimumCorrelationValue || options.forceMonotonicity && measurement >= minMeasurement1 )
+					{
+
+					}
+					else
+					{
+						minMeasurement1 = measurement;
+						// inverts because LUTRealTransform can only increasing
+						reference = AbstractLUTRealTransform.applyInverseChecked( localFit, -measurement );
+
+						if ( Double.isFinite( reference ) && !( reference == Double.MAX_VALUE || reference == -Double.MAX_VALUE ) )
+						{
+							final double rel = coordinates[ i ] - coordinates[ up ];
+							final double shift = up < i ? rel - reference : rel + reference;
+							shiftsArray[ up - offset ] += shift * w;
+							weightSums[ up - offset ] += w;
+						}
+					}
+				}
+
+				if ( down >= 0 )
+				{
+					final double measurement = MatrixStripConversion.get( correlations, permutation, range, n, down, i );
+					// same condition as in collectShiftsFromMatrix
+					if ( Double.isFinite( reference ) && Double.isNaN( measurement ) || measurement <= options.minimumCorrelationValue || options.forceMonotonicity && measurement >= minMeasurement2 )
+					{
+
+					}
+					else
+					{
+						minMeasurement2 = measurement;
+						reference = AbstractLUTRealTransform.applyInverseChecked( localFit, -measurement );
+
+						if ( !( reference == Double.MAX_VALUE || reference == -Double.MAX_VALUE ) )
+						{
+							final double rel = coordinates[ i ] - coordinates[ down ];
+							final double shift = down < i ? rel - reference : rel + reference;
+							shiftsArray[ down - offset ] += shift;
+							weightSums[ down - offset ] += w;
+						}
+					}
+				}
+			}
+		}
+	}
+
 }
@@ -0,0 +1,242 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.janelia.utility.MatrixStripConversion;
+
+import mpicbg.models.AffineModel1D;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Inference for stacks that are too large to be optimized as a single
+ * problem. The stack is split into overlapping windows of windowSize
+ * sections, each window is inferred independently (in parallel if an
+ * {@link ExecutorService} is provided) and the window coordinates are
+ * stitched from left to right: each window is mapped onto the already
+ * stitched coordinates by an {@link AffineModel1D} fit to the sections in
+ * the overlap, and coordinates in the overlap are blended linearly from the
+ * previous into the current window.
+ *
+ * Only the similarities of the windows that are currently processed are
+ * held in memory. Each window gets its own {@link InferFromMatrix} from the
+ * supplier, because correlation fits are not thread safe.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class BlockwiseInference
+{
+
+	public interface WindowStrip
+	{
+		/**
+		 * @return strip of sections [start,stop), width 2 * range + 1,
+		 *         similarities to sections outside of [start,stop) must be
+		 *         NaN
+		 */
+		double[] get( int start, int stop ) throws Exception;
+	}
+
+	private final Supplier< ? extends InferFromStrip > inferenceFactory;
+
+	private final int windowSize;
+
+	private final int overlap;
+
+	private final ExecutorService es;
+
+	/**
+	 *
+	 * @param inferenceFactory
+	 *            creates one inference per window
+	 * @param windowSize
+	 *            number of sections per window
+	 * @param overlap
+	 *            minimum number of sections shared by consecutive windows, at
+	 *            least 2
+	 * @param es
+	 *            sequential if null
+	 */
+	public BlockwiseInference(
+			final Supplier< ? extends InferFromStrip > inferenceFactory,
+			final int windowSize,
+			final int overlap,
+			final ExecutorService es )
+	{
+		super();
+		if ( overlap < 2 || overlap >= windowSize )
+			throw new IllegalArgumentException( "Require 2 <= overlap < windowSize but got overlap=" + overlap + " and windowSize=" + windowSize + "." );
+		this.inferenceFactory = inferenceFactory;
+		this.windowSize = windowSize;
+		this.overlap = overlap;
+		this.es = es;
+	}
+
+	public < T extends RealType< T > > double[] estimateZCoordinates(
+			final RandomAccessibleInterval< T > matrix,
+			final double[] startingCoordinates,
+			final Options options ) throws Exception
+	{
+		final int range = options.comparisonRange;
+		return estimateZCoordinates(
+				( start, stop ) -> MatrixStripConversion.matrixToDoubleStrip(
+						Views.zeroMin( Views.interval( matrix, new FinalInterval( new long[] { start, start }, new long[] { stop - 1, stop - 1 } ) ) ),
+						range ),
+				startingCoordinates,
+				options );
+	}
+
+	public double[] estimateZCoordinates(
+			final double[] strip,
+			final double[] startingCoordinates,
+			final Options options ) throws Exception
+	{
+		final int range = options.comparisonRange;
+		if ( strip.length != startingCoordinates.length * ( 2 * range + 1 ) )
+			throw new IllegalArgumentException( "Strip size " + strip.length + " does not match " + startingCoordinates.length + " sections with range " + range + "." );
+		return estimateZCoordinates(
+				( start, stop ) -> MatrixStripConversion.subStrip( strip, range, start, stop ),
+				startingCoordinates,
+				options );
+	}
+
+	/**
+	 *
+	 * @param strips
+	 *            provides similarities for each window
+	 * @param startingCoordinates
+	 * @param options
+	 * @return stitched coordinates
+	 * @throws Exception
+	 */
+	public double[] estimateZCoordinates(
+			final WindowStrip strips,
+			final double[] startingCoordinates,
+			final Options options ) throws Exception
+	{
+		final int n = startingCoordinates.length;
+		final int[] starts = windowStarts( n, windowSize, overlap );
+
+		final List< Callable< double[] > > tasks = new ArrayList<>();
+		for ( final int start : starts )
+		{
+			final int stop = Math.min( start + windowSize, n );
+			tasks.add( () -> inferenceFactory.get().estimateZCoordinates(
+					strips.get( start, stop ),
+					Arrays.copyOfRange( startingCoordinates, start, stop ),
+					options ) );
+		}
+
+		final List< double[] > windowCoordinates = new ArrayList<>();
+		if ( es == null )
+			for ( final Callable< double[] > task : tasks )
+				windowCoordinates.add( task.call() );
+		else
+			for ( final Future< double[] > future : es.invokeAll( tasks ) )
+				windowCoordinates.add( future.get() );
+
+		return stitch( windowCoordinates, starts, n );
+	}
+
+	/**
+	 * @return first section of each window, such that all windows but the
+	 *         last one overlap their successor by overlap sections and the
+	 *         last window ends at the last section
+	 */
+	public static int[] windowStarts( final int n, final int windowSize, final int overlap )
+	{
+		final int step = windowSize - overlap;
+		final int nWindows = n <= windowSize ? 1 : 1 + ( n - windowSize + step - 1 ) / step;
+		final int[] starts = new int[ nWindows ];
+		for ( int w = 0; w < nWindows - 1; ++w )
+			starts[ w ] = w * step;
+		starts[ nWindows - 1 ] = Math.max( 0, n - windowSize );
+		return starts;
+	}
+
+	/**
+	 * Stitch window coordinates from left to right.
+	 *
+	 * @param windowCoordinates
+	 *            coordinates of each window
+	 * @param starts
+	 *            first section of each window
+	 * @param n
+	 *            number of sections
+	 * @return stitched coordinates
+	 * @throws NotEnoughDataPointsException
+	 * @throws IllDefinedDataPointsException
+	 */
+	public static double[] stitch( final List< double[] > windowCoordinates, final int[] starts, final int n ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final double[] result = new double[ n ];
+		final double[] first = windowCoordinates.get( 0 );
+		System.arraycopy( first, 0, result, 0, first.length );
+		int stitchedStop = first.length;
+
+		final AffineModel1D model = new AffineModel1D();
+		final double[] dummy = new double[ 1 ];
+		for ( int w = 1; w < starts.length; ++w )
+		{
+			final double[] coordinates = windowCoordinates.get( w );
+			final int start = starts[ w ];
+			final int nOverlap = stitchedStop - start;
+
+			final double[] weights = new double[ nOverlap ];
+			Arrays.fill( weights, 1.0 );
+			model.fit(
+					new double[][] { Arrays.copyOf( coordinates, nOverlap ) },
+					new double[][] { Arrays.copyOfRange( result, start, stitchedStop ) },
+					weights );
+
+			for ( int i = 0; i < coordinates.length; ++i )
+			{
+				dummy[ 0 ] = coordinates[ i ];
+				model.applyInPlace( dummy );
+				if ( i < nOverlap )
+				{
+					final double t = ( i + 1.0 ) / ( nOverlap + 1.0 );
+					result[ start + i ] = ( 1.0 - t ) * result[ start + i ] + t * dummy[ 0 ];
+				}
+				else
+					result[ start + i ] = dummy[ 0 ];
+			}
+			stitchedStop = start + coordinates.length;
+		}
+
+		return result;
+	}
+
+}
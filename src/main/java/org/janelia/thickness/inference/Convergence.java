@@ -0,0 +1,208 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+/**
+ * Tracks the change of coordinates and scaling factors between outer
+ * iterations of {@link InferFromMatrix#estimateZCoordinates} and decides
+ * whether the inference has converged according to the tolerances in
+ * {@link Options}. A tolerance that is null or not positive disables the
+ * respective criterion. The inference stops as soon as any coordinate
+ * criterion is met. Scaling factors often settle long before the
+ * coordinates do, so the scaling factor tolerance never stops the inference
+ * on its own: if enabled, it is an additional condition for the coordinate
+ * criteria. It is ignored if scaling factors are not estimated.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class Convergence
+{
+
+	public enum Criterion
+	{
+		MAXIMUM_ITERATIONS,
+		MAXIMUM_COORDINATE_CHANGE,
+		RMS_COORDINATE_CHANGE
+	}
+
+	private final double[] coordinates;
+
+	private final double[] scalingFactors;
+
+	private Criterion criterion = Criterion.MAXIMUM_ITERATIONS;
+
+	private int iterations = 0;
+
+	private double maximumCoordinateChange = Double.NaN;
+
+	private double rmsCoordinateChange = Double.NaN;
+
+	private double scalingFactorChange = Double.NaN;
+
+	/**
+	 * @param coordinates
+	 *            starting coordinates
+	 * @param scalingFactors
+	 *            starting scaling factors, same order as coordinates
+	 */
+	public Convergence( final double[] coordinates, final double[] scalingFactors )
+	{
+		super();
+		this.coordinates = coordinates.clone();
+		this.scalingFactors = scalingFactors.clone();
+	}
+
+	/**
+	 * Compare coordinates and scaling factors to those of the previous
+	 * iteration and remember them for the next call.
+	 *
+	 * @param iterations
+	 *            number of iterations done so far
+	 * @param coordinates
+	 * @param scalingFactors
+	 *            same order as coordinates
+	 * @param options
+	 * @return true if any coordinate criterion is met and scaling factors
+	 *         have settled, if required
+	 */
+	public boolean update( final int iterations, final double[] coordinates, final double[] scalingFactors, final Options options )
+	{
+		this.iterations = iterations;
+
+		double max = 0.0;
+		double sumOfSquares = 0.0;
+		for ( int i = 0; i < coordinates.length; ++i )
+		{
+			final double diff = Math.abs( coordinates[ i ] - this.coordinates[ i ] );
+			max = Math.max( max, diff );
+			sumOfSquares += diff * diff;
+		}
+		this.maximumCoordinateChange = max;
+		this.rmsCoordinateChange = coordinates.length > 0 ? Math.sqrt( sumOfSquares / coordinates.length ) : 0.0;
+		this.scalingFactorChange = relativeChange( this.scalingFactors, scalingFactors );
+
+		System.arraycopy( coordinates, 0, this.coordinates, 0, coordinates.length );
+		System.arraycopy( scalingFactors, 0, this.scalingFactors, 0, scalingFactors.length );
+
+		final Criterion met;
+		if ( isMet( maximumCoordinateChange, options.maximumCoordinateChangeTolerance ) )
+			met = Criterion.MAXIMUM_COORDINATE_CHANGE;
+		else if ( isMet( rmsCoordinateChange, options.rmsCoordinateChangeTolerance ) )
+			met = Criterion.RMS_COORDINATE_CHANGE;
+		else
+			return false;
+
+		if ( requiresScalingFactors( options ) && !isMet( scalingFactorChange, options.scalingFactorChangeTolerance ) )
+			return false;
+
+		criterion = met;
+		return true;
+	}
+
+	/**
+	 * @return true if the scaling factor tolerance is enabled and scaling
+	 *         factors are estimated
+	 */
+	public static boolean requiresScalingFactors( final Options options )
+	{
+		return tolerance( options.scalingFactorChangeTolerance ) > 0.0
+				&& options.scalingFactorEstimationIterations != null
+				&& options.scalingFactorEstimationIterations > 0;
+	}
+
+	/**
+	 * @return criterion that ended the inference,
+	 *         {@link Criterion#MAXIMUM_ITERATIONS} if none was met
+	 */
+	public Criterion getCriterion()
+	{
+		return criterion;
+	}
+
+	/**
+	 * @return number of iterations done
+	 */
+	public int getIterations()
+	{
+		return iterations;
+	}
+
+	/**
+	 * @return maximum absolute coordinate change in last iteration
+	 */
+	public double getMaximumCoordinateChange()
+	{
+		return maximumCoordinateChange;
+	}
+
+	/**
+	 * @return root mean square coordinate change in last iteration
+	 */
+	public double getRmsCoordinateChange()
+	{
+		return rmsCoordinateChange;
+	}
+
+	/**
+	 * @return maximum relative scaling factor change in last iteration
+	 */
+	public double getScalingFactorChange()
+	{
+		return scalingFactorChange;
+	}
+
+	/**
+	 * @return maximum of | current - previous | / | previous |
+	 */
+	public static double relativeChange( final double[] previous, final double[] current )
+	{
+		double max = 0.0;
+		for ( int i = 0; i < current.length; ++i )
+		{
+			final double diff = Math.abs( current[ i ] - previous[ i ] );
+			if ( diff > 0.0 )
+				max = Math.max( max, diff / Math.abs( previous[ i ] ) );
+		}
+		return max;
+	}
+
+	/**
+	 * @return tolerance or 0.0 (disabled) if tolerance is null
+	 */
+	public static double tolerance( final Double tolerance )
+	{
+		return tolerance == null ? 0.0 : tolerance.doubleValue();
+	}
+
+	public static boolean isMet( final double change, final Double tolerance )
+	{
+		return change < tolerance( tolerance );
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[" + criterion + " after " + iterations + " iterations]";
+	}
+
+}
@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+import org.janelia.thickness.lut.LUTGrid;
+import org.janelia.utility.ParallelBlocks;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Spatially varying inference: coordinates are inferred independently (in
+ * parallel) from the similarities of each patch of a regular grid, e.g.
+ * computed by {@link org.janelia.thickness.plugin.TiledNCC}, and assembled
+ * into a {@link LUTGrid} that interpolates linearly between patch centers.
+ * Each patch gets its own {@link InferFromStrip} from the supplier, because
+ * correlation fits are not thread safe.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class GridInference
+{
+
+	private final Supplier< ? extends InferFromStrip > inferenceFactory;
+
+	private final ExecutorService es;
+
+	/**
+	 * @param inferenceFactory
+	 *            creates one inference per patch
+	 * @param es
+	 *            sequential if null
+	 */
+	public GridInference(
+			final Supplier< ? extends InferFromStrip > inferenceFactory,
+			final ExecutorService es )
+	{
+		super();
+		this.inferenceFactory = inferenceFactory;
+		this.es = es;
+	}
+
+	/**
+	 * @param strips
+	 *            strip for each patch, indexed by gx + gridWidth * gy
+	 * @param gridWidth
+	 * @param gridHeight
+	 * @param startingCoordinates
+	 *            shared by all patches
+	 * @param options
+	 * @return coordinates of each patch, indexed by gx + gridWidth * gy
+	 * @throws Exception
+	 */
+	public double[][] estimateZCoordinates(
+			final double[][] strips,
+			final int gridWidth,
+			final int gridHeight,
+			final double[] startingCoordinates,
+			final Options options ) throws Exception
+	{
+		if ( strips.length != gridWidth * gridHeight )
+			throw new IllegalArgumentException( "Expected " + gridWidth * gridHeight + " strips but got " + strips.length + "." );
+		final double[][] coordinates = new double[ strips.length ][];
+		ParallelBlocks.run( es, strips.length, 1, ( index, p, stop ) -> {
+			coordinates[ p ] = inferenceFactory.get().estimateZCoordinates( strips[ p ], startingCoordinates.clone(), options );
+		} );
+		return coordinates;
+	}
+
+	/**
+	 * Infer coordinates for each patch and assemble them into a
+	 * {@link LUTGrid} for (x,y,z) coordinates.
+	 *
+	 * @param scale
+	 *            distance of patch centers in section coordinates
+	 * @param shift
+	 *            center of first patch in section coordinates
+	 * @return transform from (x,y,z) with z in section indices into (x,y,z)
+	 *         with z in corrected coordinates
+	 */
+	public LUTGrid estimateLUTGrid(
+			final double[][] strips,
+			final int gridWidth,
+			final int gridHeight,
+			final double[] startingCoordinates,
+			final Options options,
+			final double[] scale,
+			final double[] shift ) throws Exception
+	{
+		return toLUTGrid( estimateZCoordinates( strips, gridWidth, gridHeight, startingCoordinates, options ), gridWidth, gridHeight, scale, shift );
+	}
+
+	/**
+	 * @param coordinates
+	 *            coordinates of each patch, indexed by gx + gridWidth * gy
+	 * @return {@link LUTGrid} with one look-up table per patch
+	 */
+	public static LUTGrid toLUTGrid(
+			final double[][] coordinates,
+			final int gridWidth,
+			final int gridHeight,
+			final double[] scale,
+			final double[] shift )
+	{
+		final int n = coordinates[ 0 ].length;
+		final ArrayImg< DoubleType, DoubleArray > lutArray = ArrayImgs.doubles( gridWidth, gridHeight, n );
+		for ( int gy = 0, p = 0; gy < gridHeight; ++gy )
+			for ( int gx = 0; gx < gridWidth; ++gx, ++p )
+			{
+				final Cursor< DoubleType > c = Views.flatIterable( Views.hyperSlice( Views.hyperSlice( lutArray, 1, gy ), 0, gx ) ).cursor();
+				for ( int z = 0; z < n; ++z )
+					c.next().set( coordinates[ p ][ z ] );
+			}
+		return new LUTGrid( 3, 3, lutArray, scale, shift );
+	}
+
+}
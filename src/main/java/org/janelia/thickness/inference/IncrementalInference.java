@@ -0,0 +1,261 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import java.util.Arrays;
+
+import org.janelia.thickness.inference.visitor.LazyVisitor;
+import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.arrays.ArraySortedIndices;
+
+/**
+ * Online inference for stacks that grow by appending sections. The
+ * similarity strip (layout of
+ * {@link MatrixStripConversion#matrixToStrip}),
+ * coordinates and scaling factors of all sections seen so far are kept.
+ * {@link #append(double[])} only takes the strip rows of the new sections,
+ * completes the rows of the previous sections by symmetry and re-runs the
+ * inference on a window that covers the new sections and the last
+ * {@link #getWindow()} previous sections, warm-started from the previous
+ * result. The comparisonRange sections before the window are included as
+ * pinned context ({@link InferFromStrip#estimateZCoordinates(double[], double[], double[], double[], double[], org.janelia.thickness.inference.visitor.Visitor, Options, int)}),
+ * everything else is left untouched. The cost per update therefore only
+ * depends on window and range, not on the size of the stack.
+ *
+ * As long as there are no previous sections to pin, i.e. on the first call
+ * and while the stack is not larger than the window, the inference is run on
+ * all sections with the regularization specified in the options.
+ *
+ * The correlation fit of the {@link InferFromStrip} is re-estimated from the
+ * window in every iteration, so it must not depend on the number of
+ * sections, e.g. a global fit.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class IncrementalInference
+{
+
+	private final InferFromStrip inference;
+
+	private final int window;
+
+	private final Options options;
+
+	private final int width;
+
+	private double[] strip;
+
+	private double[] coordinates;
+
+	private double[] scalingFactors;
+
+	private int size;
+
+	public IncrementalInference( final InferFromStrip inference, final int window, final Options options )
+	{
+		this( inference, window, options, new double[ 0 ], new double[ 0 ], new double[ 0 ] );
+	}
+
+	/**
+	 * Continue from a previous (full) inference.
+	 *
+	 * @param inference
+	 * @param window
+	 *            number of previous sections that are re-optimized with each
+	 *            update
+	 * @param options
+	 * @param strip
+	 *            strip of previous sections, width 2 *
+	 *            options.comparisonRange + 1
+	 * @param coordinates
+	 *            previous coordinates
+	 * @param scalingFactors
+	 *            previous scaling factors, same order as coordinates
+	 */
+	public IncrementalInference(
+			final InferFromStrip inference,
+			final int window,
+			final Options options,
+			final double[] strip,
+			final double[] coordinates,
+			final double[] scalingFactors )
+	{
+		super();
+		this.inference = inference;
+		this.window = window;
+		this.options = options;
+		this.width = 2 * options.comparisonRange + 1;
+		this.size = coordinates.length;
+
+		if ( strip.length != size * width || scalingFactors.length != size )
+			throw new IllegalArgumentException( "Strip, coordinates and scaling factors do not match: " + strip.length + ", " + coordinates.length + ", " + scalingFactors.length );
+
+		this.strip = strip.clone();
+		this.coordinates = coordinates.clone();
+		this.scalingFactors = scalingFactors.clone();
+	}
+
+	/**
+	 * Add sections and update coordinates.
+	 *
+	 * @param rows
+	 *            strip rows of the new sections, i.e. similarities of each
+	 *            new section with its comparisonRange neighbors. Entries that
+	 *            refer to sections that are not available yet should be NaN.
+	 * @return coordinates of all sections
+	 * @throws Exception
+	 */
+	public double[] append( final double[] rows ) throws Exception
+	{
+		if ( rows.length % width != 0 )
+			throw new IllegalArgumentException( "Number of strip entries " + rows.length + " is not a multiple of strip width " + width + "." );
+
+		final int range = options.comparisonRange;
+		final int previousSize = size;
+		final int nNew = rows.length / width;
+		if ( nNew == 0 )
+			return getCoordinates();
+
+		size += nNew;
+		ensureCapacity( size );
+		System.arraycopy( rows, 0, strip, previousSize * width, rows.length );
+
+		// complete band of existing rows with similarities to new sections
+		for ( int y = previousSize; y < size; ++y )
+			for ( int x = Math.max( 0, y - range ); x < y; ++x )
+			{
+				final int index = x * width + y - x + range;
+				if ( Double.isNaN( strip[ index ] ) )
+					strip[ index ] = strip[ y * width + x - y + range ];
+			}
+
+		// warm start: extrapolate new coordinates with recent spacing
+		final double spacing = recentSpacing( previousSize, range );
+		for ( int z = previousSize; z < size; ++z )
+		{
+			coordinates[ z ] = z == 0 ? 0.0 : coordinates[ z - 1 ] + spacing;
+			scalingFactors[ z ] = 1.0;
+		}
+
+		final int windowStart = Math.max( 0, previousSize - window );
+		final int start = Math.max( 0, windowStart - range );
+		final int nPinned = windowStart - start;
+		final int n = size - start;
+
+		final double[] subStrip = MatrixStripConversion.subStrip( strip, range, start, size );
+
+		final double[] subCoordinates = Arrays.copyOfRange( coordinates, start, size );
+		final double[] subScalingFactors = sortedOrder( subCoordinates, Arrays.copyOfRange( scalingFactors, start, size ) );
+		final double[] shiftWeights = new double[ n ];
+		Arrays.fill( shiftWeights, 1.0 );
+
+		final double[] result = inference.estimateZCoordinates(
+				subStrip,
+				subCoordinates,
+				subScalingFactors,
+				null,
+				shiftWeights,
+				new LazyVisitor(),
+				options,
+				nPinned );
+
+		// scaling factors are returned in sorted order of result
+		final int[] forward = new int[ n ];
+		final int[] backward = new int[ n ];
+		ArraySortedIndices.sort( result.clone(), forward, backward );
+		for ( int i = nPinned; i < n; ++i )
+		{
+			coordinates[ start + i ] = result[ i ];
+			scalingFactors[ start + i ] = subScalingFactors[ forward[ i ] ];
+		}
+
+		return getCoordinates();
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int getWindow()
+	{
+		return window;
+	}
+
+	public double[] getCoordinates()
+	{
+		return Arrays.copyOf( coordinates, size );
+	}
+
+	public double[] getScalingFactors()
+	{
+		return Arrays.copyOf( scalingFactors, size );
+	}
+
+	public double[] getStrip()
+	{
+		return Arrays.copyOf( strip, size * width );
+	}
+
+	/**
+	 * Convergence of the most recent update.
+	 */
+	public Convergence getConvergence()
+	{
+		return inference.getConvergence();
+	}
+
+	private double recentSpacing( final int previousSize, final int range )
+	{
+		final int first = Math.max( 0, previousSize - 1 - range );
+		final int last = previousSize - 1;
+		if ( last <= first )
+			return 1.0;
+		final double spacing = ( coordinates[ last ] - coordinates[ first ] ) / ( last - first );
+		return spacing > 0.0 && Double.isFinite( spacing ) ? spacing : 1.0;
+	}
+
+	/**
+	 * {@link InferFromStrip} expects scaling factors in sorted order of the
+	 * starting coordinates.
+	 */
+	private static double[] sortedOrder( final double[] coordinates, final double[] scalingFactors )
+	{
+		final int[] indices = ArraySortedIndices.sort( coordinates );
+		final double[] result = new double[ scalingFactors.length ];
+		for ( int i = 0; i < result.length; ++i )
+			result[ i ] = scalingFactors[ indices[ i ] ];
+		return result;
+	}
+
+	private void ensureCapacity( final int capacity )
+	{
+		if ( coordinates.length >= capacity )
+			return;
+		final int newCapacity = Math.max( capacity, 2 * coordinates.length );
+		strip = Arrays.copyOf( strip, newCapacity * width );
+		coordinates = Arrays.copyOf( coordinates, newCapacity );
+		scalingFactors = Arrays.copyOf( scalingFactors, newCapacity );
+	}
+
+}
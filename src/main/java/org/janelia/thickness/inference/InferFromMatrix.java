@@ -62,7 +62,9 @@ import net.imglib2.view.Views;
 public class InferFromMatrix
 {
 
-	private final AbstractCorrelationFit correlationFit;
+	protected final AbstractCorrelationFit correlationFit;
+
+	protected Convergence convergence;
 
 	public enum RegularizationType
 	{
@@ -170,6 +172,20 @@ public class InferFromMatrix
 		}
 	}
 
+	public static Regularizer createRegularizer( final RegularizationType regularizationType, final int n )
+	{
+		switch ( regularizationType )
+		{
+		case BORDER:
+			return new BorderRegularization( new AffineModel1D(), n );
+		case IDENTITY:
+			return new IdentityRegularization( new AffineModel1D(), n );
+		case NONE:
+		default:
+			return new NoRegularization();
+		}
+	}
+
 	public InferFromMatrix( final AbstractCorrelationFit correlationFit )
 	{
 		super();
@@ -177,6 +193,16 @@ public class InferFromMatrix
 		this.correlationFit = correlationFit;
 	}
 
+	/**
+	 * @return convergence (stopping criterion, number of iterations) of the
+	 *         most recent call to estimateZCoordinates, null if not called
+	 *         yet
+	 */
+	public Convergence getConvergence()
+	{
+		return convergence;
+	}
+
 	public < T extends RealType< T > & NativeType< T > > double[] estimateZCoordinates(
 			final RandomAccessibleInterval< T > matrix,
 			final double[] startingCoordinates,
@@ -228,6 +254,8 @@ public class InferFromMatrix
 		double[] permutedLut = lut.clone(); // sorted lut
 		final double[] scalingFactorsPrevious = scalingFactors.clone();
 		ArraySortedIndices.sort( permutedLut, permutationLut, inverse );
+		updateArray( scalingFactors, scalingFactorsPrevious, inverse );
+		this.convergence = new Convergence( lut, scalingFactorsPrevious );
 
 		T nanExtension = Util.getTypeFromInterval( inputMatrix ).createVariable();
 		nanExtension.setReal( Double.NaN );
@@ -238,30 +266,7 @@ public class InferFromMatrix
 		for ( Cursor< T > source = Views.flatIterable( MatrixStripConversion.matrixToStrip( inputMatrix, options.comparisonRange, nanExtension.copy() ) ).cursor(), target = Views.flatIterable( inputScaledStrip ).cursor(); source.hasNext(); )
 			target.next().set( source.next() );
 
-		final Regularizer regularizer;
-		switch ( options.regularizationType )
-		{
-		case BORDER:
-		{
-			regularizer = new BorderRegularization( new AffineModel1D(), n );
-			break;
-		}
-		case IDENTITY:
-		{
-			regularizer = new IdentityRegularization( new AffineModel1D(), n );
-			break;
-		}
-		case NONE:
-		{
-			regularizer = new NoRegularization();
-			break;
-		}
-		default:
-		{
-			regularizer = new NoRegularization();
-			break;
-		}
-		}
+		final Regularizer regularizer = createRegularizer( options.regularizationType, n );
 
 		final double[] shiftsArray = new double[ n ];
 		final double[] weightSums = new double[ n ];
@@ -326,6 +331,9 @@ public class InferFromMatrix
 
 			visitor.act( iteration + 1, matrix, scaledMatrix, lut, permutationLut, inverse, scalingFactors, correlationFitsStore[ 0 ] );
 
+			if ( convergence.update( iteration + 1, lut, scalingFactorsPrevious, options ) )
+				break;
+
 		}
 
 		return lut;
@@ -364,6 +372,7 @@ public class InferFromMatrix
 				options.scalingFactorRegularizerWeight,
 				options.comparisonRange,
 				options.scalingFactorEstimationIterations,
+				Convergence.tolerance( options.scalingFactorChangeTolerance ),
 				estimateWeightMatrix );
 
 		// write scaled matrix to scaledMatrix
@@ -401,6 +410,17 @@ public class InferFromMatrix
 		return mediatedShifts;
 	}
 
+	/**
+	 * @param coordinates
+	 *            sorted coordinates, updated in place
+	 * @param shifts
+	 *            same order as coordinates
+	 * @param regularizerCoordinates
+	 *            original order
+	 * @param permutation
+	 *            applyInverse maps sorted index to original index
+	 * @param options
+	 */
 	public void applyShifts(
 			final double[] coordinates,
 			final double[] shifts,
@@ -0,0 +1,390 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import org.janelia.thickness.EstimateScalingFactors;
+import org.janelia.thickness.ShiftCoordinates;
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+import org.janelia.thickness.inference.visitor.LazyVisitor;
+import org.janelia.thickness.inference.visitor.Visitor;
+import org.janelia.thickness.lut.PermutationTransform;
+import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.ParallelBlocks;
+import org.janelia.utility.arrays.ArraySortedIndices;
+import org.janelia.utility.arrays.ReplaceNaNs;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.TransformView;
+import net.imglib2.view.Views;
+
+/**
+ * Alternative engine for {@link InferFromMatrix} that holds the band of the
+ * similarity matrix as a dense strip of size n * ( 2 * range + 1 ) (layout of
+ * {@link MatrixStripConversion#matrixToStrip}) and runs correlation fit,
+ * scaling factor estimation and shift collection as plain indexed loops
+ * instead of walking permuted and transformed views.
+ *
+ * Results match {@link InferFromMatrix} up to floating point accuracy. All
+ * {@link InferFromMatrix#estimateZCoordinates} overloads are redirected to
+ * the strip engine, so this class can be used as a drop-in replacement.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class InferFromStrip extends InferFromMatrix
+{
+
+	private final ExecutorService es;
+
+	private final int blockSize;
+
+	public InferFromStrip( final AbstractCorrelationFit correlationFit )
+	{
+		this( correlationFit, null );
+	}
+
+	public InferFromStrip( final AbstractCorrelationFit correlationFit, final ExecutorService es )
+	{
+		this( correlationFit, es, ParallelBlocks.DEFAULT_BLOCK_SIZE );
+	}
+
+	/**
+	 * If es is not null, all steps of an outer iteration are split into
+	 * blocks of blockSize sections along the section axis and run on es.
+	 * Shifts and weights are accumulated per block and reduced in block order
+	 * and scaling factors are updated Jacobi style (see
+	 * {@link EstimateScalingFactors#estimateQuadraticFromStrip(double[], int[], double[], double[], double[][], double, int, int, double, double[], ExecutorService, int)}),
+	 * so results are deterministic and independent of the number of threads
+	 * but may differ slightly from the sequential (es == null) engine.
+	 *
+	 * @param correlationFit
+	 * @param es
+	 *            sequential if null
+	 * @param blockSize
+	 *            number of sections per task
+	 */
+	public InferFromStrip( final AbstractCorrelationFit correlationFit, final ExecutorService es, final int blockSize )
+	{
+		super( correlationFit );
+		this.es = es;
+		this.blockSize = blockSize;
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T >, W extends RealType< W > > double[] estimateZCoordinates(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final double[] startingCoordinates,
+			final double[] functionEstimate,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< W > estimateWeights,
+			final double[] shiftWeights,
+			final Visitor visitor,
+			final Options options ) throws Exception
+	{
+		final double[] strip = MatrixStripConversion.matrixToDoubleStrip( inputMatrix, options.comparisonRange );
+		final double[] weightStrip = MatrixStripConversion.matrixToDoubleStrip( estimateWeights, options.comparisonRange );
+		return estimateZCoordinates(
+				strip,
+				startingCoordinates,
+				scalingFactors,
+				isUnit( weightStrip ) ? null : weightStrip,
+				shiftWeights,
+				visitor,
+				options );
+	}
+
+	public double[] estimateZCoordinates(
+			final double[] strip,
+			final double[] startingCoordinates,
+			final Options options ) throws Exception
+	{
+		return estimateZCoordinates( strip, startingCoordinates, new LazyVisitor(), options );
+	}
+
+	public double[] estimateZCoordinates(
+			final double[] strip,
+			final double[] startingCoordinates,
+			final Visitor visitor,
+			final Options options ) throws Exception
+	{
+		final double[] ones = new double[ startingCoordinates.length ];
+		Arrays.fill( ones, 1.0 );
+		return estimateZCoordinates( strip, startingCoordinates, ones.clone(), null, ones, visitor, options );
+	}
+
+	/**
+	 *
+	 * @param strip
+	 *            similarities in strip layout, width 2 *
+	 *            options.comparisonRange + 1
+	 * @param startingCoordinates
+	 * @param scalingFactors
+	 *            updated in place
+	 * @param weightStrip
+	 *            pairwise weights in strip layout, unit weights if null
+	 * @param shiftWeights
+	 * @param visitor
+	 * @param options
+	 * @return estimated coordinates
+	 * @throws Exception
+	 */
+	public double[] estimateZCoordinates(
+			final double[] strip,
+			final double[] startingCoordinates,
+			final double[] scalingFactors,
+			final double[] weightStrip,
+			final double[] shiftWeights,
+			final Visitor visitor,
+			final Options options ) throws Exception
+	{
+		return estimateZCoordinates( strip, startingCoordinates, scalingFactors, weightStrip, shiftWeights, visitor, options, 0 );
+	}
+
+	/**
+	 * Same as
+	 * {@link #estimateZCoordinates(double[], double[], double[], double[], double[], Visitor, Options)}
+	 * but keep coordinates and scaling factors of the first nPinned sections
+	 * fixed at their starting values. If nPinned &gt; 0, the pinned sections
+	 * anchor the solution and options.regularizationType is ignored.
+	 *
+	 * @param nPinned
+	 *            number of leading sections (in the order of
+	 *            startingCoordinates) that are not updated
+	 */
+	public double[] estimateZCoordinates(
+			final double[] strip,
+			final double[] startingCoordinates,
+			final double[] scalingFactors,
+			final double[] weightStrip,
+			final double[] shiftWeights,
+			final Visitor visitor,
+			final Options options,
+			final int nPinned ) throws Exception
+	{
+		final int n = startingCoordinates.length;
+		final int range = options.comparisonRange;
+		final int width = 2 * range + 1;
+
+		if ( strip.length != n * width )
+			throw new IllegalArgumentException( "Strip size " + strip.length + " does not match " + n + " sections with range " + range + "." );
+
+		final double[] lut = startingCoordinates.clone();
+		final double[] permutedLut = lut.clone(); // sorted lut
+		final int[] permutationLut = new int[ n ];
+		final int[] inverse = new int[ n ];
+		final double[] scalingFactorsPrevious = scalingFactors.clone();
+		ArraySortedIndices.sort( permutedLut, permutationLut, inverse );
+		updateArray( scalingFactors, scalingFactorsPrevious, inverse );
+		this.convergence = new Convergence( lut, scalingFactorsPrevious );
+
+		final double[] scaledStrip = strip.clone();
+
+		final Regularizer regularizer = nPinned > 0 ? new NoRegularization() : createRegularizer( options.regularizationType, n );
+		final double[] pinnedScalingFactors = Arrays.copyOf( scalingFactorsPrevious, Math.max( nPinned, 0 ) );
+
+		final double[] shiftsArray = new double[ n ];
+		final double[] weightSums = new double[ n ];
+		final double[] mediatedShifts = new double[ n ];
+		final double[][] fits = new double[ n ][];
+
+		final double inverseCoordinateUpdateRegularizerWeight = 1 - options.coordinateUpdateRegularizerWeight;
+		final double scalingFactorTolerance = Convergence.tolerance( options.scalingFactorChangeTolerance );
+
+		// only create views if anybody is interested
+		final boolean visit = !( visitor instanceof LazyVisitor );
+
+		for ( int iteration = 0; iteration < options.nIterations; ++iteration )
+		{
+
+			if ( iteration == 0 && visit )
+				visitor.act( iteration, permutedView( strip, inverse, range ), permutedView( scaledStrip, inverse, range ), lut, permutationLut, inverse, scalingFactors, null );
+
+			Arrays.fill( shiftsArray, 0.0 );
+			Arrays.fill( weightSums, 0.0 );
+
+			final boolean isIdentity = isIdentity( permutedLut );
+			final RandomAccessibleInterval< double[] > fitsInterval = es == null
+					? correlationFit.estimateFromStrip( scaledStrip, inverse, permutedLut, weightStrip, options, isIdentity )
+					: correlationFit.estimateFromStrip( scaledStrip, inverse, permutedLut, weightStrip, options, isIdentity, es, blockSize );
+			final Cursor< double[] > fitsCursor = Views.flatIterable( fitsInterval ).cursor();
+			for ( int z = 0; z < n; ++z )
+				fits[ z ] = fitsCursor.next();
+
+			// use original matrix to estimate scaling factors
+			if ( es == null )
+				EstimateScalingFactors.estimateQuadraticFromStrip(
+						strip,
+						inverse,
+						scalingFactors,
+						permutedLut,
+						fits,
+						options.scalingFactorRegularizerWeight,
+						range,
+						options.scalingFactorEstimationIterations,
+						scalingFactorTolerance,
+						weightStrip );
+			else
+				EstimateScalingFactors.estimateQuadraticFromStrip(
+						strip,
+						inverse,
+						scalingFactors,
+						permutedLut,
+						fits,
+						options.scalingFactorRegularizerWeight,
+						range,
+						options.scalingFactorEstimationIterations,
+						scalingFactorTolerance,
+						weightStrip,
+						es,
+						blockSize );
+
+			// write scaled matrix to scaledStrip
+			ParallelBlocks.run( es, n, blockSize, ( index, start, stop ) -> scale( strip, scaledStrip, inverse, scalingFactors, range, start, stop ) );
+
+			// use scaled matrix to collect shifts
+			if ( es == null )
+				ShiftCoordinates.collectShiftsFromStrip(
+						permutedLut,
+						scaledStrip,
+						inverse,
+						scalingFactors,
+						fits,
+						shiftsArray,
+						weightSums,
+						shiftWeights,
+						options );
+			else
+				ShiftCoordinates.collectShiftsFromStrip(
+						permutedLut,
+						scaledStrip,
+						inverse,
+						scalingFactors,
+						fits,
+						shiftsArray,
+						weightSums,
+						shiftWeights,
+						options,
+						es,
+						blockSize );
+
+			mediateShifts( shiftsArray, weightSums, mediatedShifts );
+
+			for ( int i = 0; i < n; ++i )
+			{
+				final double shift = mediatedShifts[ i ];
+				if ( Double.isFinite( shift ) )
+				{
+					// inverse[ i ] is the original index of sorted section i,
+					// same as permutation.copyToDimension( 1, 1 ).applyInverse( i )
+					// in InferFromMatrix#applyShifts
+					final double val = permutedLut[ i ] + options.shiftProportion * shift;
+					permutedLut[ i ] = options.coordinateUpdateRegularizerWeight * startingCoordinates[ inverse[ i ] ] + inverseCoordinateUpdateRegularizerWeight * val;
+				}
+			}
+
+			ReplaceNaNs.replace( permutedLut );
+
+			if ( !options.withReorder )
+				preventReorder( permutedLut, options );
+
+			regularizer.regularize( permutedLut, options );
+
+			updateArray( permutedLut, lut, inverse );
+			updateArray( scalingFactors, scalingFactorsPrevious, inverse );
+			for ( int i = 0; i < pinnedScalingFactors.length; ++i )
+			{
+				lut[ i ] = startingCoordinates[ i ];
+				scalingFactorsPrevious[ i ] = pinnedScalingFactors[ i ];
+			}
+			System.arraycopy( lut, 0, permutedLut, 0, n );
+			ArraySortedIndices.sort( permutedLut, permutationLut, inverse );
+			updateArray( scalingFactorsPrevious, scalingFactors, permutationLut );
+
+			if ( visit )
+				visitor.act( iteration + 1, permutedView( strip, inverse, range ), permutedView( scaledStrip, inverse, range ), lut, permutationLut, inverse, scalingFactors, fitsInterval );
+
+			if ( convergence.update( iteration + 1, lut, scalingFactorsPrevious, options ) )
+				break;
+
+		}
+
+		return lut;
+	}
+
+	/**
+	 * Write strip * scalingFactors[ z ] * scalingFactors[ k ] into scaledStrip
+	 * for all rows z in [start,stop) and their neighbors k, k != z.
+	 */
+	private static void scale(
+			final double[] strip,
+			final double[] scaledStrip,
+			final int[] permutation,
+			final double[] scalingFactors,
+			final int range,
+			final int start,
+			final int stop )
+	{
+		final int n = scalingFactors.length;
+		final int width = 2 * range + 1;
+		for ( int z = start; z < stop; ++z )
+		{
+			final int sz = permutation[ z ];
+			final double sfz = scalingFactors[ z ];
+			final int max = Math.min( n, z + range + 1 );
+			for ( int k = Math.max( 0, z - range ); k < max; ++k )
+			{
+				final int sk = permutation[ k ];
+				final int dz = sz - sk;
+				if ( dz < -range || dz > range )
+					continue;
+				final int index = sk * width + dz + range;
+				scaledStrip[ index ] = k == z ? strip[ index ] : strip[ index ] * sfz * scalingFactors[ k ];
+			}
+		}
+	}
+
+	private static RandomAccessibleInterval< DoubleType > permutedView( final double[] strip, final int[] permutation, final int range )
+	{
+		final int width = 2 * range + 1;
+		final RandomAccessibleInterval< DoubleType > matrix = MatrixStripConversion.stripToMatrix(
+				ArrayImgs.doubles( strip, width, strip.length / width ),
+				new DoubleType( Double.NaN ) );
+		return Views.interval( new TransformView<>( matrix, new PermutationTransform( permutation, 2, 2 ) ), matrix );
+	}
+
+	private static boolean isUnit( final double[] weights )
+	{
+		for ( final double w : weights )
+			if ( !Double.isNaN( w ) && w != 1.0 )
+				return false;
+		return true;
+	}
+
+}
@@ -63,6 +63,9 @@ public class Options implements Serializable
 		result.forceMonotonicity = false;
 		result.estimateWindowRadius = -1;
 		result.minimumCorrelationValue = 0.0;
+		result.maximumCoordinateChangeTolerance = 0.0;
+		result.rmsCoordinateChangeTolerance = 0.0;
+		result.scalingFactorChangeTolerance = 0.0;
 		return result;
 	}
 
@@ -93,6 +96,17 @@ public class Options implements Serializable
 
 	public Double minimumCorrelationValue;
 
+	// stop early if coordinate change between iterations falls below
+	// tolerance, disabled if <= 0 (see Convergence)
+	public Double maximumCoordinateChangeTolerance;
+
+	public Double rmsCoordinateChangeTolerance;
+
+	// relative change of scaling factors, applies to inner and outer
+	// iterations; outer iterations only stop if a coordinate tolerance is
+	// met, too
+	public Double scalingFactorChangeTolerance;
+
 	public static Options read( final String filename ) throws JsonSyntaxException, JsonIOException, FileNotFoundException
 	{
 		final Gson gson = new Gson();
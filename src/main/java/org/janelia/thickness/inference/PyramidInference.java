@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import org.janelia.utility.MatrixStripConversion;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Coarse-to-fine inference. The similarity strip is downsampled by a factor
+ * of two along z per level, the coarsest level is inferred first and its
+ * coordinates are upsampled by linear interpolation and used as starting
+ * coordinates for the next finer level. Shifts travel roughly
+ * comparisonRange sections per iteration, so coarse levels resolve long
+ * range deformations quickly and the finest level only needs few
+ * iterations.
+ *
+ * Coarse section i represents fine sections 2i and 2i+1 and its similarity
+ * to coarse section j is the mean of the available fine similarities. The
+ * comparison range on a coarse level is half (rounded up) of the range on
+ * the next finer level.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class PyramidInference
+{
+
+	// do not downsample below this number of sections
+	private static final int MIN_SECTIONS = 8;
+
+	private final IntFunction< ? extends InferFromStrip > inferenceFactory;
+
+	private final int nLevels;
+
+	private final int finestIterations;
+
+	/**
+	 * Use options.nIterations on all levels.
+	 *
+	 * @param inferenceFactory
+	 *            creates inference for a given number of sections
+	 * @param nLevels
+	 *            maximum number of levels including full resolution
+	 */
+	public PyramidInference( final IntFunction< ? extends InferFromStrip > inferenceFactory, final int nLevels )
+	{
+		this( inferenceFactory, nLevels, -1 );
+	}
+
+	/**
+	 * @param inferenceFactory
+	 *            creates inference for a given number of sections
+	 * @param nLevels
+	 *            maximum number of levels including full resolution
+	 * @param finestIterations
+	 *            number of iterations at full resolution, options.nIterations
+	 *            if negative
+	 */
+	public PyramidInference( final IntFunction< ? extends InferFromStrip > inferenceFactory, final int nLevels, final int finestIterations )
+	{
+		super();
+		this.inferenceFactory = inferenceFactory;
+		this.nLevels = nLevels;
+		this.finestIterations = finestIterations;
+	}
+
+	public < T extends RealType< T > > double[] estimateZCoordinates(
+			final RandomAccessibleInterval< T > matrix,
+			final double[] startingCoordinates,
+			final Options options ) throws Exception
+	{
+		return estimateZCoordinates( MatrixStripConversion.matrixToDoubleStrip( matrix, options.comparisonRange ), startingCoordinates, options );
+	}
+
+	public double[] estimateZCoordinates(
+			final double[] strip,
+			final double[] startingCoordinates,
+			final Options options ) throws Exception
+	{
+		final List< double[] > strips = new ArrayList<>();
+		final List< double[] > coordinates = new ArrayList<>();
+		final List< Integer > ranges = new ArrayList<>();
+		strips.add( strip );
+		coordinates.add( startingCoordinates );
+		ranges.add( options.comparisonRange );
+
+		for ( int level = 1; level < nLevels; ++level )
+		{
+			final double[] fineCoordinates = coordinates.get( level - 1 );
+			final int range = ranges.get( level - 1 );
+			if ( ( fineCoordinates.length + 1 ) / 2 < MIN_SECTIONS || range < 2 )
+				break;
+			final int coarseRange = ( range + 1 ) / 2;
+			strips.add( downsample( strips.get( level - 1 ), fineCoordinates.length, range, coarseRange ) );
+			coordinates.add( downsample( fineCoordinates ) );
+			ranges.add( coarseRange );
+		}
+
+		double[] result = null;
+		for ( int level = strips.size() - 1; level >= 0; --level )
+		{
+			final double[] levelCoordinates = coordinates.get( level );
+			final Options levelOptions = options.clone();
+			levelOptions.comparisonRange = ranges.get( level );
+			if ( level == 0 && finestIterations >= 0 )
+				levelOptions.nIterations = finestIterations;
+			result = inferenceFactory.apply( levelCoordinates.length ).estimateZCoordinates(
+					strips.get( level ),
+					result == null ? levelCoordinates : upsample( result, levelCoordinates.length ),
+					levelOptions );
+		}
+
+		return result;
+	}
+
+	/**
+	 * Downsample strip by a factor of two.
+	 *
+	 * @param strip
+	 *            fine strip of n rows, width 2 * range + 1
+	 * @param n
+	 * @param range
+	 * @param coarseRange
+	 * @return coarse strip of ( n + 1 ) / 2 rows, width 2 * coarseRange + 1
+	 */
+	public static double[] downsample( final double[] strip, final int n, final int range, final int coarseRange )
+	{
+		final int nCoarse = ( n + 1 ) / 2;
+		final int coarseWidth = 2 * coarseRange + 1;
+		final double[] coarse = new double[ nCoarse * coarseWidth ];
+		for ( int i = 0; i < nCoarse; ++i )
+			for ( int d = -coarseRange; d <= coarseRange; ++d )
+			{
+				final int j = i + d;
+				double sum = 0.0;
+				int count = 0;
+				for ( int a = 0; a < 2; ++a )
+					for ( int b = 0; b < 2; ++b )
+					{
+						// only fine diagonal contributes to coarse diagonal
+						if ( d == 0 && a != b )
+							continue;
+						final double value = MatrixStripConversion.get( strip, null, range, n, 2 * j + b, 2 * i + a );
+						if ( Double.isFinite( value ) )
+						{
+							sum += value;
+							++count;
+						}
+					}
+				coarse[ i * coarseWidth + d + coarseRange ] = count > 0 ? sum / count : Double.NaN;
+			}
+		return coarse;
+	}
+
+	/**
+	 * Downsample coordinates by a factor of two: coarse section i is
+	 * centered between fine sections 2i and 2i+1.
+	 */
+	public static double[] downsample( final double[] coordinates )
+	{
+		final int n = coordinates.length;
+		final double[] coarse = new double[ ( n + 1 ) / 2 ];
+		for ( int i = 0; i < coarse.length; ++i )
+		{
+			final double c1 = coordinates[ 2 * i ];
+			// extrapolate missing partner of last section
+			final double c2 = 2 * i + 1 < n ? coordinates[ 2 * i + 1 ] : n > 1 ? 2 * c1 - coordinates[ 2 * i - 1 ] : c1 + 1.0;
+			coarse[ i ] = ( 0.5 * ( c1 + c2 ) - 0.5 ) / 2;
+		}
+		return coarse;
+	}
+
+	/**
+	 * Inverse of {@link #downsample(double[])}: linear interpolation of coarse
+	 * coordinates at ( z - 0.5 ) / 2, linear extrapolation at the borders.
+	 *
+	 * @param coarse
+	 *            coarse coordinates
+	 * @param n
+	 *            number of fine sections
+	 * @return fine coordinates
+	 */
+	public static double[] upsample( final double[] coarse, final int n )
+	{
+		final double[] fine = new double[ n ];
+		final int last = coarse.length - 1;
+		for ( int z = 0; z < n; ++z )
+		{
+			final double position = ( z - 0.5 ) / 2;
+			final double value;
+			if ( last == 0 )
+				value = coarse[ 0 ] + position;
+			else
+			{
+				final int floor = Math.max( 0, Math.min( last - 1, ( int ) Math.floor( position ) ) );
+				final double t = position - floor;
+				value = ( 1.0 - t ) * coarse[ floor ] + t * coarse[ floor + 1 ];
+			}
+			fine[ z ] = 2 * value + 0.5;
+		}
+		return fine;
+	}
+
+}
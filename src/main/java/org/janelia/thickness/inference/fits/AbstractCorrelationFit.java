@@ -21,8 +21,14 @@
  */
 package org.janelia.thickness.inference.fits;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
 import org.janelia.thickness.inference.Options;
 import org.janelia.thickness.lut.AbstractLUTRealTransform;
+import org.janelia.thickness.lut.LUTCursor;
+import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.ParallelBlocks;
 
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
@@ -42,6 +48,8 @@ import net.imglib2.view.Views;
 public abstract class AbstractCorrelationFit
 {
 
+	private double[] sampleBuffer;
+
 	public < T extends RealType< T >, W extends RealType< W > > RandomAccessibleInterval< double[] > estimateFromMatrix(
 			final RandomAccessibleInterval< T > correlations,
 			final double[] coordinates,
@@ -105,6 +113,216 @@ public abstract class AbstractCorrelationFit
 		return estimate( coordinates.length );
 	}
 
+	/**
+	 * Primitive counterpart of
+	 * {@link #estimateFromMatrix(RandomAccessibleInterval, double[], AbstractLUTRealTransform, RandomAccessibleInterval, Options, InterpolatorFactory)}
+	 * for a matrix that is stored as a dense strip (see
+	 * {@link MatrixStripConversion#get}). Sampling mimics the n-linear (or
+	 * nearest neighbor) interpolation of the generic version, including NaN
+	 * propagation from neighboring samples.
+	 *
+	 * @param strip
+	 *            correlations in strip layout
+	 * @param permutation
+	 *            maps (sorted) matrix indices to strip rows
+	 * @param coordinates
+	 *            sorted coordinates
+	 * @param weightStrip
+	 *            pairwise weights in strip layout (not permuted), unit weights
+	 *            if null
+	 * @param options
+	 * @param nearestNeighbor
+	 *            use nearest neighbor instead of linear interpolation
+	 * @return fit
+	 */
+	public RandomAccessibleInterval< double[] > estimateFromStrip(
+			final double[] strip,
+			final int[] permutation,
+			final double[] coordinates,
+			final double[] weightStrip,
+			final Options options,
+			final boolean nearestNeighbor )
+	{
+		final int range = options.comparisonRange;
+		final int n = coordinates.length;
+		final double[] samples = new double[ 4 * ( range + 1 ) ];
+
+		init( range );
+
+		for ( int z = 0; z < n; ++z )
+		{
+			sampleRow( strip, permutation, coordinates, weightStrip, options, nearestNeighbor, z, samples, 0 );
+			addRow( z, range, samples, 0 );
+		}
+
+		return estimate( n );
+	}
+
+	/**
+	 * Parallel version of
+	 * {@link #estimateFromStrip(double[], int[], double[], double[], Options, boolean)}.
+	 * Rows are sampled in parallel blocks; samples are added to the fit
+	 * sequentially in row order, i.e. the result is identical to the
+	 * sequential version.
+	 *
+	 * @param strip
+	 * @param permutation
+	 * @param coordinates
+	 * @param weightStrip
+	 * @param options
+	 * @param nearestNeighbor
+	 * @param es
+	 *            sequential if null
+	 * @param blockSize
+	 *            number of rows per task
+	 * @return fit
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public RandomAccessibleInterval< double[] > estimateFromStrip(
+			final double[] strip,
+			final int[] permutation,
+			final double[] coordinates,
+			final double[] weightStrip,
+			final Options options,
+			final boolean nearestNeighbor,
+			final ExecutorService es,
+			final int blockSize ) throws InterruptedException, ExecutionException
+	{
+		final int range = options.comparisonRange;
+		final int n = coordinates.length;
+		final int rowSize = 4 * ( range + 1 );
+		if ( sampleBuffer == null || sampleBuffer.length != n * rowSize )
+			sampleBuffer = new double[ n * rowSize ];
+		final double[] samples = sampleBuffer;
+
+		ParallelBlocks.run( es, n, blockSize, ( index, start, stop ) -> {
+			for ( int z = start; z < stop; ++z )
+				sampleRow( strip, permutation, coordinates, weightStrip, options, nearestNeighbor, z, samples, z * rowSize );
+		} );
+
+		init( range );
+
+		for ( int z = 0; z < n; ++z )
+			addRow( z, range, samples, z * rowSize );
+
+		return estimate( n );
+	}
+
+	/**
+	 * Write (value, weight) for both directions and all distances
+	 * 0,...,range of row z into samples, starting at offset. Values that are
+	 * not to be added are set to NaN.
+	 */
+	private static void sampleRow(
+			final double[] strip,
+			final int[] permutation,
+			final double[] coordinates,
+			final double[] weightStrip,
+			final Options options,
+			final boolean nearestNeighbor,
+			final int z,
+			final double[] samples,
+			final int offset )
+	{
+		final int range = options.comparisonRange;
+		final boolean forceMonotonicity = options.forceMonotonicity;
+		final int n = coordinates.length;
+		final double c = coordinates[ z ];
+		double currentMin1 = Double.MAX_VALUE;
+		double currentMin2 = Double.MAX_VALUE;
+		// c + k increases and c - k decreases, both start at segment z
+		final LUTCursor up = new LUTCursor( coordinates, z );
+		final LUTCursor down = new LUTCursor( coordinates, z );
+		for ( int k = 0, o = offset; k <= range; ++k, o += 4 )
+		{
+			final double x1 = up.applyInverseChecked( c + k );
+			final double x2 = down.applyInverseChecked( c - k );
+			final double a1 = sample( strip, permutation, range, n, x1, z, nearestNeighbor );
+			final double a2 = sample( strip, permutation, range, n, x2, z, nearestNeighbor );
+			if ( !Double.isNaN( a1 ) && a1 > 0.0 && ( !forceMonotonicity || a1 < currentMin1 ) )
+			{
+				currentMin1 = a1;
+				samples[ o ] = a1;
+				samples[ o + 1 ] = sampleWeight( weightStrip, range, n, x1, z );
+			}
+			else
+				samples[ o ] = Double.NaN;
+			if ( !Double.isNaN( a2 ) && a2 > 0.0 && ( !forceMonotonicity || a2 < currentMin2 ) )
+			{
+				currentMin2 = a2;
+				samples[ o + 2 ] = a2;
+				samples[ o + 3 ] = sampleWeight( weightStrip, range, n, x2, z );
+			}
+			else
+				samples[ o + 2 ] = Double.NaN;
+		}
+	}
+
+	private void addRow( final int z, final int range, final double[] samples, final int offset )
+	{
+		for ( int k = 0, o = offset; k <= range; ++k, o += 4 )
+		{
+			if ( !Double.isNaN( samples[ o ] ) )
+				add( z, k, samples[ o ], samples[ o + 1 ] );
+			if ( !Double.isNaN( samples[ o + 2 ] ) )
+				add( z, k, samples[ o + 2 ], samples[ o + 3 ] );
+		}
+	}
+
+	private static double sample(
+			final double[] strip,
+			final int[] permutation,
+			final int range,
+			final int n,
+			final double x,
+			final int y,
+			final boolean nearestNeighbor )
+	{
+		if ( x < -1 || x > n )
+			return Double.NaN;
+
+		if ( nearestNeighbor )
+			return MatrixStripConversion.get( strip, permutation, range, n, ( int ) Math.floor( x + 0.5 ), y );
+
+		// n-linear interpolation weighs in all corners, NaN included
+		final int x0 = ( int ) Math.floor( x );
+		final double dx = x - x0;
+		final double v00 = MatrixStripConversion.get( strip, permutation, range, n, x0, y );
+		final double v10 = MatrixStripConversion.get( strip, permutation, range, n, x0 + 1, y );
+		final double v01 = MatrixStripConversion.get( strip, permutation, range, n, x0, y + 1 );
+		final double v11 = MatrixStripConversion.get( strip, permutation, range, n, x0 + 1, y + 1 );
+		if ( Double.isNaN( v00 ) || Double.isNaN( v10 ) || Double.isNaN( v01 ) || Double.isNaN( v11 ) )
+			return Double.NaN;
+		return ( 1.0 - dx ) * v00 + dx * v10;
+	}
+
+	private static double sampleWeight(
+			final double[] weightStrip,
+			final int range,
+			final int n,
+			final double x,
+			final int y )
+	{
+		if ( weightStrip == null )
+			return 1.0;
+
+		// weights are extended by border
+		final int max = n - 1;
+		final double xClamped = Math.min( Math.max( x, 0 ), max );
+		final int x0 = ( int ) Math.floor( xClamped );
+		final int x1 = Math.min( x0 + 1, max );
+		final int y1 = Math.min( y + 1, max );
+		final double dx = xClamped - x0;
+		final double v00 = MatrixStripConversion.get( weightStrip, null, range, n, x0, y );
+		final double v10 = MatrixStripConversion.get( weightStrip, null, range, n, x1, y );
+		final double v01 = MatrixStripConversion.get( weightStrip, null, range, n, x0, y1 );
+		final double v11 = MatrixStripConversion.get( weightStrip, null, range, n, x1, y1 );
+		if ( Double.isNaN( v00 ) || Double.isNaN( v10 ) || Double.isNaN( v01 ) || Double.isNaN( v11 ) )
+			return Double.NaN;
+		return ( 1.0 - dx ) * v00 + dx * v10;
+	}
+
 
 	protected abstract void add( int z, int dz, double value, double weight );
 
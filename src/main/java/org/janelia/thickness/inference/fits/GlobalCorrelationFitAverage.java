@@ -24,6 +24,8 @@
  */
 package org.janelia.thickness.inference.fits;
 
+import java.util.Arrays;
+
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.util.ConstantUtils;
@@ -62,8 +64,16 @@ public class GlobalCorrelationFitAverage extends AbstractCorrelationFit
 	@Override
 	protected void init( final int size )
 	{
-		summedMeasurements = new double[ size + 1 ];
-		weightSum = new double[ size + 1 ];
+		if ( summedMeasurements == null || summedMeasurements.length != size + 1 )
+		{
+			summedMeasurements = new double[ size + 1 ];
+			weightSum = new double[ size + 1 ];
+		}
+		else
+		{
+			Arrays.fill( summedMeasurements, 0.0 );
+			Arrays.fill( weightSum, 0.0 );
+		}
 	}
 
 	/*
@@ -81,9 +81,32 @@ abstract public class AbstractLUTRealTransform implements InvertibleRealTransfor
 	 * @return
 	 */
 	protected int findFloorIndex( final double y )
+	{
+		return findFloorIndex( lut, y );
+	}
+
+	protected double applyInverse( final double y )
+	{
+		return applyInverse( lut, y );
+	}
+
+	protected double applyInverseChecked( final double y )
+	{
+		return applyInverseChecked( lut, y );
+	}
+
+	/**
+	 * Static version of {@link #findFloorIndex(double)} that operates on a
+	 * bare LUT array.
+	 * 
+	 * @param lut
+	 * @param y
+	 * @return
+	 */
+	public static int findFloorIndex( final double[] lut, final double y )
 	{
 		int min = 0;
-		int max = lutMaxIndex;
+		int max = lut.length - 1;
 		int i = max >> 1;
 		do
 		{
@@ -98,9 +121,9 @@ abstract public class AbstractLUTRealTransform implements InvertibleRealTransfor
 
 	}
 
-	protected double applyInverse( final double y )
+	public static double applyInverse( final double[] lut, final double y )
 	{
-		final int i = findFloorIndex( y );
+		final int i = findFloorIndex( lut, y );
 
 		final double x1 = lut[ i ];
 		final double x2 = lut[ i + 1 ];
@@ -108,14 +131,23 @@ abstract public class AbstractLUTRealTransform implements InvertibleRealTransfor
 		return ( y - x1 ) / ( x2 - x1 ) + i;
 	}
 
-	protected double applyInverseChecked( final double y )
+	/**
+	 * Static version of {@link #applyInverseChecked(double)} that operates on
+	 * a bare LUT array, e.g. for primitive loops that would otherwise create a
+	 * transform per lookup.
+	 * 
+	 * @param lut
+	 * @param y
+	 * @return
+	 */
+	public static double applyInverseChecked( final double[] lut, final double y )
 	{
 		if ( y < lut[ 0 ] )
 			return -Double.MAX_VALUE;
-		else if ( y > lut[ lutMaxIndex ] )
+		else if ( y > lut[ lut.length - 1 ] )
 			return Double.MAX_VALUE;
 		else
-			return applyInverse( y );
+			return applyInverse( lut, y );
 	}
 
 	public double minTransformedCoordinate()
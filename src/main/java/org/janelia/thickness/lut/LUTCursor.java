@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.lut;
+
+/**
+ * Stateful evaluation of a monotonically non-decreasing LUT for callers that
+ * query nearby positions in sequence, e.g. increasing z. The cursor
+ * remembers the segment [i,i+1] of the last inverse lookup and walks from
+ * there for at most {@link #MAX_WALK} steps before it falls back to binary
+ * search, i.e. sequential inverse lookups are amortized O(1). Results are
+ * identical to the static methods of {@link AbstractLUTRealTransform}.
+ *
+ * Not thread safe, use one cursor per thread.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class LUTCursor
+{
+
+	public static final int MAX_WALK = 8;
+
+	private final double[] lut;
+
+	private final int lutMaxIndex;
+
+	// floor index of the last inverse lookup
+	private int index;
+
+	public LUTCursor( final double[] lut )
+	{
+		this( lut, 0 );
+	}
+
+	/**
+	 * @param lut
+	 *            at least two entries
+	 * @param index
+	 *            segment to start from
+	 */
+	public LUTCursor( final double[] lut, final int index )
+	{
+		this.lut = lut;
+		this.lutMaxIndex = lut.length - 1;
+		setIndex( index );
+	}
+
+	/**
+	 * Start the next search from segment index.
+	 */
+	public void setIndex( final int index )
+	{
+		this.index = Math.max( 0, Math.min( index, lutMaxIndex - 1 ) );
+	}
+
+	public int getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * @see AbstractLUTRealTransform#findFloorIndex(double[], double)
+	 */
+	public int findFloorIndex( final double y )
+	{
+		int i = index;
+		if ( lut[ i ] <= y )
+		{
+			for ( int step = 0; i < lutMaxIndex - 1 && lut[ i + 1 ] <= y; ++i, ++step )
+				if ( step == MAX_WALK )
+				{
+					i = floorIndex( i, lutMaxIndex, y );
+					break;
+				}
+		}
+		else
+		{
+			for ( int step = 0; i > 0 && lut[ i ] > y; --i, ++step )
+				if ( step == MAX_WALK )
+				{
+					i = floorIndex( 0, i, y );
+					break;
+				}
+		}
+		index = i;
+		return i;
+	}
+
+	/**
+	 * @see AbstractLUTRealTransform#applyInverse(double[], double)
+	 */
+	public double applyInverse( final double y )
+	{
+		final int i = findFloorIndex( y );
+		final double x1 = lut[ i ];
+		final double x2 = lut[ i + 1 ];
+		return ( y - x1 ) / ( x2 - x1 ) + i;
+	}
+
+	/**
+	 * @see AbstractLUTRealTransform#applyInverseChecked(double[], double)
+	 */
+	public double applyInverseChecked( final double y )
+	{
+		if ( y < lut[ 0 ] )
+			return -Double.MAX_VALUE;
+		else if ( y > lut[ lutMaxIndex ] )
+			return Double.MAX_VALUE;
+		else
+			return applyInverse( y );
+	}
+
+	/**
+	 * Inverse lookup of all target values, in order. Fastest if target is
+	 * sorted.
+	 *
+	 * @param source
+	 *            receives results, may be target
+	 * @param target
+	 */
+	public void applyInverseChecked( final double[] source, final double[] target )
+	{
+		for ( int i = 0; i < target.length; ++i )
+			source[ i ] = applyInverseChecked( target[ i ] );
+	}
+
+	/**
+	 * Linear interpolation of the LUT at x in [0,lutMaxIndex), no search
+	 * required.
+	 */
+	public double apply( final double x )
+	{
+		final int xFloor = ( int ) x;
+		final double dx = x - xFloor;
+		return ( lut[ xFloor + 1 ] - lut[ xFloor ] ) * dx + lut[ xFloor ];
+	}
+
+	/**
+	 * @return -Double.MAX_VALUE ( Double.MAX_VALUE ) below (above) the LUT
+	 */
+	public double applyChecked( final double x )
+	{
+		if ( x < 0 )
+			return -Double.MAX_VALUE;
+		else if ( x > lutMaxIndex )
+			return Double.MAX_VALUE;
+		else if ( x == lutMaxIndex )
+			return lut[ lutMaxIndex ];
+		else
+			return apply( x );
+	}
+
+	/**
+	 * @param source
+	 * @param target
+	 *            receives results, may be source
+	 */
+	public void applyChecked( final double[] source, final double[] target )
+	{
+		for ( int i = 0; i < source.length; ++i )
+			target[ i ] = applyChecked( source[ i ] );
+	}
+
+	/**
+	 * Binary search for the floor index in [min,max], assuming lut[min] <= y
+	 * (or min == 0) and lut[max] > y (or max == lutMaxIndex).
+	 */
+	private int floorIndex( int min, int max, final double y )
+	{
+		int i = ( ( max - min ) >> 1 ) + min;
+		while ( i != min )
+		{
+			if ( lut[ i ] > y )
+				max = i;
+			else
+				min = i;
+			i = ( ( max - min ) >> 1 ) + min;
+		}
+		return i;
+	}
+
+}
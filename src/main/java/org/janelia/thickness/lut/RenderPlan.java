@@ -0,0 +1,281 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.lut;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Interpolation plan for rendering a z-corrected stack: Output slice z is
+ * weightA( z ) * section sourceA( z ) + weightB( z ) * section sourceB( z ),
+ * where sections are indexed in original (unsorted) order and weights sum to
+ * 1. Empty slices (outside of the lut) have source -1. The plan is built once
+ * from the lut and the permutation, i.e. renderers do not need to search the
+ * lut for each slice, and it can be {@link #write written} and
+ * {@link #read replayed} against the raw data without the inference result.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class RenderPlan
+{
+
+	public static final String HEADER = "# z-spacing render plan";
+
+	private final int sourceDepth;
+
+	private final int[] sourceA;
+
+	private final int[] sourceB;
+
+	private final double[] weightA;
+
+	private final double[] weightB;
+
+	public RenderPlan(
+			final int sourceDepth,
+			final int[] sourceA,
+			final int[] sourceB,
+			final double[] weightA,
+			final double[] weightB )
+	{
+		super();
+		final int size = sourceA.length;
+		if ( sourceB.length != size || weightA.length != size || weightB.length != size )
+			throw new IllegalArgumentException( "Inconsistent plan sizes." );
+		for ( int z = 0; z < size; ++z )
+			if ( sourceA[ z ] < -1 || sourceA[ z ] >= sourceDepth || sourceB[ z ] < -1 || sourceB[ z ] >= sourceDepth || ( sourceA[ z ] < 0 ) != ( sourceB[ z ] < 0 ) )
+				throw new IllegalArgumentException( "Invalid sources for slice " + z + ": " + sourceA[ z ] + " " + sourceB[ z ] );
+		this.sourceDepth = sourceDepth;
+		this.sourceA = sourceA;
+		this.sourceB = sourceB;
+		this.weightA = weightA;
+		this.weightB = weightB;
+	}
+
+	/**
+	 * @param lut
+	 *            corrected z coordinates of sorted sections (one dimensional)
+	 * @param permutation
+	 *            maps sorted index to source index (one dimensional)
+	 * @param sourceDepth
+	 *            number of sections
+	 * @param upsampleBy
+	 *            render upsampleBy slices per section, only between existing
+	 *            sections
+	 * @param extendBorder
+	 *            slices outside of the lut show the closest section if true
+	 *            and are empty otherwise
+	 */
+	public static RenderPlan create(
+			final SingleDimensionLUTRealTransform lut,
+			final SingleDimensionPermutationTransform permutation,
+			final int sourceDepth,
+			final int upsampleBy,
+			final boolean extendBorder )
+	{
+		final int size = sourceDepth * upsampleBy - ( upsampleBy - 1 );
+		final int[] sourceA = new int[ size ];
+		final int[] sourceB = new int[ size ];
+		final double[] weightA = new double[ size ];
+		final double[] weightB = new double[ size ];
+
+		// output z increases, i.e. inverse lookups are amortized O(1)
+		final LUTCursor cursor = new LUTCursor( lut.lut );
+		for ( int z = 0; z < size; ++z )
+		{
+			final double zMapped = cursor.applyInverseChecked( z / ( double ) upsampleBy );
+			int lower = ( int ) Math.floor( zMapped );
+			int upper = ( int ) Math.ceil( zMapped );
+			if ( extendBorder )
+			{
+				lower = Math.min( Math.max( lower, 0 ), sourceDepth - 1 );
+				upper = Math.min( Math.max( upper, 0 ), sourceDepth - 1 );
+			}
+			else if ( lower < 0 || upper >= sourceDepth )
+			{
+				sourceA[ z ] = sourceB[ z ] = -1;
+				continue;
+			}
+			sourceA[ z ] = permutation.apply( lower );
+			sourceB[ z ] = permutation.apply( upper );
+			if ( lower == upper )
+				weightA[ z ] = 1.0;
+			else
+			{
+				weightA[ z ] = upper - zMapped;
+				weightB[ z ] = zMapped - lower;
+			}
+		}
+		return new RenderPlan( sourceDepth, sourceA, sourceB, weightA, weightB );
+	}
+
+	/**
+	 * @param sortedLut
+	 *            corrected z coordinates of sorted sections
+	 * @param permutation
+	 *            maps sorted index to source index
+	 */
+	public static RenderPlan create( final double[] sortedLut, final int[] permutation, final int upsampleBy, final boolean extendBorder )
+	{
+		return create(
+				new SingleDimensionLUTRealTransform( sortedLut, 1, 1, 0 ),
+				new SingleDimensionPermutationTransform( permutation, 1, 1, 0 ),
+				permutation.length,
+				upsampleBy,
+				extendBorder );
+	}
+
+	/**
+	 * @return number of output slices
+	 */
+	public int size()
+	{
+		return sourceA.length;
+	}
+
+	/**
+	 * @return number of source sections
+	 */
+	public int getSourceDepth()
+	{
+		return sourceDepth;
+	}
+
+	public boolean isEmpty( final int z )
+	{
+		return sourceA[ z ] < 0;
+	}
+
+	/**
+	 * @return true if output slice z is a copy of {@link #getSourceA}
+	 */
+	public boolean isCopy( final int z )
+	{
+		return sourceA[ z ] >= 0 && ( sourceA[ z ] == sourceB[ z ] || weightB[ z ] == 0.0 );
+	}
+
+	public int getSourceA( final int z )
+	{
+		return sourceA[ z ];
+	}
+
+	public int getSourceB( final int z )
+	{
+		return sourceB[ z ];
+	}
+
+	public double getWeightA( final int z )
+	{
+		return weightA[ z ];
+	}
+
+	public double getWeightB( final int z )
+	{
+		return weightB[ z ];
+	}
+
+	/**
+	 * @return number of output slices that read each source section
+	 */
+	public int[] countReads()
+	{
+		final int[] counts = new int[ sourceDepth ];
+		for ( int z = 0; z < size(); ++z )
+		{
+			if ( isEmpty( z ) )
+				continue;
+			++counts[ sourceA[ z ] ];
+			if ( !isCopy( z ) )
+				++counts[ sourceB[ z ] ];
+		}
+		return counts;
+	}
+
+	/**
+	 * Write as tab separated text: header, number of source sections, then
+	 * one line z, sourceA, sourceB, weightA, weightB per output slice.
+	 */
+	public void write( final Path file ) throws IOException
+	{
+		try (BufferedWriter writer = Files.newBufferedWriter( file, StandardCharsets.UTF_8 ))
+		{
+			writer.write( HEADER );
+			writer.newLine();
+			writer.write( Integer.toString( sourceDepth ) );
+			writer.newLine();
+			for ( int z = 0; z < size(); ++z )
+			{
+				writer.write( z + "\t" + sourceA[ z ] + "\t" + sourceB[ z ] + "\t" + weightA[ z ] + "\t" + weightB[ z ] );
+				writer.newLine();
+			}
+		}
+	}
+
+	public static RenderPlan read( final Path file ) throws IOException
+	{
+		try (BufferedReader reader = Files.newBufferedReader( file, StandardCharsets.UTF_8 ))
+		{
+			if ( !HEADER.equals( reader.readLine() ) )
+				throw new IOException( file + " is not a render plan." );
+			final String depth = reader.readLine();
+			if ( depth == null )
+				throw new IOException( "Missing number of sections in " + file + "." );
+			final int sourceDepth = Integer.parseInt( depth.trim() );
+			final List< String[] > lines = new ArrayList<>();
+			for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+				if ( !line.trim().isEmpty() )
+					lines.add( line.split( "\t" ) );
+
+			final int size = lines.size();
+			final int[] sourceA = new int[ size ];
+			final int[] sourceB = new int[ size ];
+			final double[] weightA = new double[ size ];
+			final double[] weightB = new double[ size ];
+			// every slice appears exactly once and in order
+			for ( int z = 0; z < size; ++z )
+			{
+				final String[] fields = lines.get( z );
+				if ( fields.length != 5 || Integer.parseInt( fields[ 0 ] ) != z )
+					throw new IOException( "Invalid line for slice " + z + " in " + file + ": " + String.join( "\t", fields ) );
+				sourceA[ z ] = Integer.parseInt( fields[ 1 ] );
+				sourceB[ z ] = Integer.parseInt( fields[ 2 ] );
+				weightA[ z ] = Double.parseDouble( fields[ 3 ] );
+				weightB[ z ] = Double.parseDouble( fields[ 4 ] );
+				if ( !Double.isFinite( weightA[ z ] ) || !Double.isFinite( weightB[ z ] ) )
+					throw new IOException( "Invalid weights for slice " + z + " in " + file + ": " + String.join( "\t", fields ) );
+			}
+			return new RenderPlan( sourceDepth, sourceA, sourceB, weightA, weightB );
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IOException( "Unable to parse render plan " + file, e );
+		}
+	}
+
+}
@@ -0,0 +1,353 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.awt.Window;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.janelia.thickness.lut.RenderPlan;
+import org.janelia.utility.LRUCache;
+
+import bdv.cache.SharedQueue;
+import bdv.util.BdvFunctions;
+import bdv.util.BdvOptions;
+import bdv.util.BdvStackSource;
+import bdv.util.RandomAccessibleIntervalMipmapSource;
+import bdv.util.volatiles.VolatileViews;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.volatiles.VolatileFloatType;
+
+/**
+ * Multi-resolution, cell-cached view of a z-corrected stack for
+ * BigDataViewer. Each level is a {@link CachedCellImg} whose cells are
+ * computed from a {@link RenderPlan}, i.e. the z-resampling is resolved once
+ * per output slice of a cell instead of searching the lut for every voxel.
+ * Level l &gt; 0 is the 2x2x2 box average of the cached level l-1, such
+ * that voxel centers match the half voxel offset of
+ * {@link RandomAccessibleIntervalMipmapSource} and levels line up in z, and
+ * coarse levels do not read source sections. Empty output slices and NaN
+ * pixels are excluded. Source sections are converted to float once and kept
+ * in an {@link LRUCache}. When a cell is loaded on demand, its neighbours in
+ * z are prefetched in the background.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class CachedCorrectedSource
+{
+
+	public static final int[] DEFAULT_CELL_DIMENSIONS = { 64, 64, 16 };
+
+	private final ImageStack stack;
+
+	private final RenderPlan plan;
+
+	private final int[] cellDimensions;
+
+	private final LRUCache< Integer, float[] > sections;
+
+	private final List< CachedCellImg< FloatType, ? > > levels = new ArrayList<>();
+
+	// at most one background thread that stops when idle, oldest requests
+	// are dropped
+	private final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(
+			1, 1, 10, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>( 64 ),
+			r -> {
+				final Thread thread = new Thread( r, "CachedCorrectedSource-prefetch" );
+				thread.setDaemon( true );
+				return thread;
+			},
+			new ThreadPoolExecutor.DiscardOldestPolicy() );
+
+	private static final ThreadLocal< Boolean > isPrefetching = ThreadLocal.withInitial( () -> false );
+
+	/**
+	 * @param stack
+	 *            source sections in original order
+	 * @param plan
+	 * @param cellDimensions
+	 * @param maxSectionBytes
+	 *            memory for source sections converted to float
+	 */
+	public CachedCorrectedSource( final ImageStack stack, final RenderPlan plan, final int[] cellDimensions, final long maxSectionBytes )
+	{
+		super();
+		if ( plan.getSourceDepth() != stack.getSize() )
+			throw new IllegalArgumentException( "Render plan for " + plan.getSourceDepth() + " sections does not match stack of size " + stack.getSize() );
+		this.stack = stack;
+		this.plan = plan;
+		this.cellDimensions = cellDimensions.clone();
+		this.sections = new LRUCache<>( maxSectionBytes, pixels -> 4L * pixels.length );
+		this.prefetcher.allowCoreThreadTimeOut( true );
+
+		long[] dimensions = new long[] { stack.getWidth(), stack.getHeight(), plan.size() };
+		for ( int level = 0;; ++level )
+		{
+			final int l = level;
+			final CachedCellImg< FloatType, ? > img = new ReadOnlyCachedCellImgFactory(
+					ReadOnlyCachedCellImgOptions.options().cellDimensions( cellDimensions ) ).create(
+							dimensions,
+							new FloatType(),
+							cell -> load( l, cell ) );
+			levels.add( img );
+			if ( dimensions[ 0 ] <= cellDimensions[ 0 ] && dimensions[ 1 ] <= cellDimensions[ 1 ] )
+				break;
+			dimensions = new long[] {
+					( dimensions[ 0 ] + 1 ) / 2,
+					( dimensions[ 1 ] + 1 ) / 2,
+					( dimensions[ 2 ] + 1 ) / 2 };
+		}
+	}
+
+	public CachedCorrectedSource( final ImageStack stack, final RenderPlan plan )
+	{
+		this( stack, plan, DEFAULT_CELL_DIMENSIONS, Runtime.getRuntime().maxMemory() / 8 );
+	}
+
+	public int numLevels()
+	{
+		return levels.size();
+	}
+
+	/**
+	 * @return level downsampled by 2^level
+	 */
+	public RandomAccessibleInterval< FloatType > getLevel( final int level )
+	{
+		return levels.get( level );
+	}
+
+	/**
+	 * Stop prefetching and release cached sections and cells. Cells that are
+	 * requested afterwards are loaded again, without prefetching.
+	 */
+	public void close()
+	{
+		prefetcher.shutdownNow();
+		sections.clear();
+		for ( final CachedCellImg< FloatType, ? > level : levels )
+			level.getCache().invalidateAll();
+	}
+
+	/**
+	 * Show all levels as a single volatile multi-resolution source. The
+	 * source is {@link #close closed} when the BigDataViewer window is
+	 * closed.
+	 *
+	 * @param name
+	 * @param voxelSize
+	 *            x, y, z
+	 * @param options
+	 */
+	@SuppressWarnings( "unchecked" )
+	public BdvStackSource< VolatileFloatType > show( final String name, final double[] voxelSize, final BdvOptions options )
+	{
+		final SharedQueue queue = new SharedQueue( Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 ), numLevels() );
+		final RandomAccessibleInterval< VolatileFloatType >[] volatileLevels = new RandomAccessibleInterval[ numLevels() ];
+		final double[][] scales = new double[ numLevels() ][];
+		for ( int level = 0; level < numLevels(); ++level )
+		{
+			volatileLevels[ level ] = VolatileViews.wrapAsVolatile( levels.get( level ), queue );
+			final double factor = 1 << level;
+			scales[ level ] = new double[] { factor, factor, factor };
+		}
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.set(
+				voxelSize[ 0 ], 0, 0, 0,
+				0, voxelSize[ 1 ], 0, 0,
+				0, 0, voxelSize[ 2 ], 0 );
+		final RandomAccessibleIntervalMipmapSource< VolatileFloatType > source = new RandomAccessibleIntervalMipmapSource<>(
+				volatileLevels,
+				new VolatileFloatType(),
+				scales,
+				new FinalVoxelDimensions( "px", voxelSize ),
+				transform,
+				name );
+		final BdvStackSource< VolatileFloatType > stackSource = BdvFunctions.show( source, options );
+		final Window window = SwingUtilities.getWindowAncestor( stackSource.getBdvHandle().getViewerPanel() );
+		if ( window != null )
+			window.addWindowListener( new WindowAdapter()
+			{
+				@Override
+				public void windowClosed( final WindowEvent e )
+				{
+					queue.shutdown();
+					close();
+				}
+			} );
+		return stackSource;
+	}
+
+	private void load( final int level, final SingleCellArrayImg< FloatType, ? > cell ) throws Exception
+	{
+		if ( level == 0 )
+			render( cell );
+		else
+		{
+			// cells of the finer level are not prefetched
+			final boolean wasPrefetching = isPrefetching.get();
+			isPrefetching.set( true );
+			try
+			{
+				downsample( levels.get( level - 1 ), cell );
+			}
+			finally
+			{
+				isPrefetching.set( wasPrefetching );
+			}
+		}
+
+		if ( !isPrefetching.get() )
+			prefetch( level, cell );
+	}
+
+	/**
+	 * Interpolate the output slices of cell from source sections.
+	 */
+	private void render( final SingleCellArrayImg< FloatType, ? > cell ) throws Exception
+	{
+		final long minX = cell.min( 0 ), minY = cell.min( 1 ), minZ = cell.min( 2 );
+		final long maxX = cell.max( 0 ), maxY = cell.max( 1 ), maxZ = cell.max( 2 );
+		final int width = stack.getWidth();
+
+		final Cursor< FloatType > cursor = cell.cursor();
+		for ( long z = minZ; z <= maxZ; ++z )
+		{
+			final int slice = ( int ) z;
+			if ( plan.isEmpty( slice ) )
+			{
+				for ( long i = ( maxX - minX + 1 ) * ( maxY - minY + 1 ); i > 0; --i )
+					cursor.next().set( Float.NaN );
+				continue;
+			}
+
+			final float[] a = getSection( plan.getSourceA( slice ) );
+			final float[] b = plan.isCopy( slice ) ? a : getSection( plan.getSourceB( slice ) );
+			final double weightA = plan.getWeightA( slice );
+			final double weightB = plan.isCopy( slice ) ? 0.0 : plan.getWeightB( slice );
+			for ( long y = minY; y <= maxY; ++y )
+				for ( int x = ( int ) minX, i = ( int ) y * width + x; x <= maxX; ++x, ++i )
+					cursor.next().set( ( float ) ( weightA * a[ i ] + weightB * b[ i ] ) );
+		}
+	}
+
+	/**
+	 * Average of the 2x2x2 voxels of finer that cover each voxel of cell,
+	 * excluding NaN and voxels outside of finer.
+	 */
+	private static void downsample( final RandomAccessibleInterval< FloatType > finer, final SingleCellArrayImg< FloatType, ? > cell )
+	{
+		final RandomAccess< FloatType > access = finer.randomAccess();
+		final long[] max = new long[] { finer.max( 0 ), finer.max( 1 ), finer.max( 2 ) };
+		final long[] position = new long[ 3 ];
+		final Cursor< FloatType > cursor = cell.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize( position );
+			double sum = 0.0;
+			int count = 0;
+			for ( long z = 2 * position[ 2 ]; z <= Math.min( 2 * position[ 2 ] + 1, max[ 2 ] ); ++z )
+				for ( long y = 2 * position[ 1 ]; y <= Math.min( 2 * position[ 1 ] + 1, max[ 1 ] ); ++y )
+					for ( long x = 2 * position[ 0 ]; x <= Math.min( 2 * position[ 0 ] + 1, max[ 0 ] ); ++x )
+					{
+						access.setPosition( x, 0 );
+						access.setPosition( y, 1 );
+						access.setPosition( z, 2 );
+						final double value = access.get().getRealDouble();
+						if ( !Double.isNaN( value ) )
+						{
+							sum += value;
+							++count;
+						}
+					}
+			cursor.get().set( count > 0 ? ( float ) ( sum / count ) : Float.NaN );
+		}
+	}
+
+	/**
+	 * Request the cells above and below cell.
+	 */
+	private void prefetch( final int level, final SingleCellArrayImg< FloatType, ? > cell )
+	{
+		final CachedCellImg< FloatType, ? > img = levels.get( level );
+		final CellGrid grid = img.getCellGrid();
+		final long[] position = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			position[ d ] = cell.min( d ) / grid.cellDimension( d );
+		final long[] gridDimensions = grid.getGridDimensions();
+		for ( final long dz : new long[] { -1, 1 } )
+		{
+			final long z = position[ 2 ] + dz;
+			if ( z < 0 || z >= gridDimensions[ 2 ] )
+				continue;
+			final long[] neighbor = new long[] { position[ 0 ], position[ 1 ], z };
+			prefetcher.execute( () -> {
+				isPrefetching.set( true );
+				try
+				{
+					final RandomAccess< ? > access = img.getCells().randomAccess();
+					access.setPosition( neighbor );
+					access.get();
+				}
+				finally
+				{
+					isPrefetching.set( false );
+				}
+			} );
+		}
+	}
+
+	private float[] getSection( final int z ) throws Exception
+	{
+		return sections.get( z, () -> {
+			final ImageProcessor ip;
+			synchronized ( stack )
+			{
+				ip = stack.getProcessor( z + 1 );
+			}
+			return ( float[] ) ip.convertToFloatProcessor().getPixels();
+		} );
+	}
+
+}
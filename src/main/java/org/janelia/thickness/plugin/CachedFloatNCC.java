@@ -0,0 +1,162 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+/**
+ * Normalized cross correlation of float sections with cached per-section
+ * statistics. Mean, centered sum of squares and the number of valid (not
+ * NaN) pixels of a section are computed once in {@link Section} and reused
+ * for all pairs the section is part of, so each pair requires only a single
+ * pass that accumulates the dot product. Pixels that are valid in only one
+ * of the two sections are accumulated separately in the same pass and
+ * subtracted from the cached statistics, so the result is the same as that
+ * of {@link RealSumFloatNCC}, i.e. the NCC over pixels that are valid in
+ * both sections.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class CachedFloatNCC
+{
+
+	public static class Section
+	{
+		private final float[] pixels;
+
+		private final double mean;
+
+		// sum of centered values, not exactly 0 due to rounding
+		private final double sum;
+
+		private final double sumOfSquares;
+
+		private final int count;
+
+		public Section( final float[] pixels )
+		{
+			this.pixels = pixels;
+
+			double sum = 0.0;
+			int count = 0;
+			for ( final float v : pixels )
+				if ( !Float.isNaN( v ) )
+				{
+					sum += v;
+					++count;
+				}
+			this.count = count;
+			this.mean = count > 0 ? sum / count : 0.0;
+
+			double centeredSum = 0.0;
+			double sumOfSquares = 0.0;
+			for ( final float v : pixels )
+				if ( !Float.isNaN( v ) )
+				{
+					final double c = v - mean;
+					centeredSum += c;
+					sumOfSquares += c * c;
+				}
+			this.sum = centeredSum;
+			this.sumOfSquares = sumOfSquares;
+		}
+
+		public float[] getPixels()
+		{
+			return pixels;
+		}
+
+		public double getMean()
+		{
+			return mean;
+		}
+
+		public int getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * @return true if no pixel is NaN
+		 */
+		public boolean isComplete()
+		{
+			return count == pixels.length;
+		}
+	}
+
+	public static double ncc( final Section a, final Section b )
+	{
+		final float[] ap = a.pixels;
+		final float[] bp = b.pixels;
+		final double ma = a.mean;
+		final double mb = b.mean;
+
+		if ( a.isComplete() && b.isComplete() )
+		{
+			double sumab = 0.0;
+			for ( int i = 0; i < ap.length; ++i )
+				sumab += ( ap[ i ] - ma ) * ( bp[ i ] - mb );
+			return ncc( ap.length, a.sum, a.sumOfSquares, b.sum, b.sumOfSquares, sumab );
+		}
+
+		double sumab = 0.0;
+		// statistics of pixels that are valid in one section only
+		double da = 0.0, daa = 0.0, db = 0.0, dbb = 0.0;
+		int dna = 0, dnb = 0;
+		for ( int i = 0; i < ap.length; ++i )
+		{
+			final float va = ap[ i ];
+			final float vb = bp[ i ];
+			final boolean validA = !Float.isNaN( va );
+			final boolean validB = !Float.isNaN( vb );
+			if ( validA && validB )
+				sumab += ( va - ma ) * ( vb - mb );
+			else if ( validA )
+			{
+				final double c = va - ma;
+				da += c;
+				daa += c * c;
+				++dna;
+			}
+			else if ( validB )
+			{
+				final double c = vb - mb;
+				db += c;
+				dbb += c * c;
+				++dnb;
+			}
+		}
+		return ncc( a.count - dna, a.sum - da, a.sumOfSquares - daa, b.sum - db, b.sumOfSquares - dbb, sumab );
+	}
+
+	private static double ncc(
+			final int n,
+			final double suma,
+			final double sumaa,
+			final double sumb,
+			final double sumbb,
+			final double sumab )
+	{
+		return ( n * sumab - suma * sumb ) / Math.sqrt( n * sumaa - suma * suma ) / Math.sqrt( n * sumbb - sumb * sumb );
+	}
+
+}
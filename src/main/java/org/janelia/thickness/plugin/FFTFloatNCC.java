@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+/**
+ * Normalized cross correlation between sections that are not necessarily
+ * aligned. The NCC is evaluated for all translations of up to
+ * {@link #getMaximumShift()} pixels along x and y through Fourier transforms
+ * (masked NCC, as described by Padfield, "Masked object registration in the
+ * Fourier domain", IEEE TIP 2012) and the peak is reported. Pixels that are
+ * NaN are excluded, as in {@link RealSumFloatNCC}.
+ *
+ * The forward transforms of a section (values, squared values and validity
+ * mask) are computed once in {@link #transform(float[])} and can be reused
+ * for all pairs the section is part of. Transforms are computed with the
+ * FFT of mines-jtk (declared as a direct dependency). Instances are
+ * immutable and can be shared between threads, i.e. sections can be
+ * transformed in parallel. Each {@link Spectra} holds three padded complex
+ * spectra, i.e. about 3 * 4 * (width + s) * (height + s) bytes for maximum
+ * shift s.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class FFTFloatNCC
+{
+
+	/**
+	 * Forward transforms of a section.
+	 */
+	public static class Spectra
+	{
+		private final float[][] values;
+
+		private final float[][] squares;
+
+		private final float[][] mask;
+
+		private final int count;
+
+		private Spectra( final float[][] values, final float[][] squares, final float[][] mask, final int count )
+		{
+			this.values = values;
+			this.squares = squares;
+			this.mask = mask;
+			this.count = count;
+		}
+
+		/**
+		 * @return number of valid (not NaN) pixels
+		 */
+		public int getCount()
+		{
+			return count;
+		}
+	}
+
+	private final int width;
+
+	private final int height;
+
+	private final int maximumShift;
+
+	private final double minimumOverlap;
+
+	// padded size along x (real) and y (complex)
+	private final int nfft1;
+
+	private final int nfft2;
+
+	private final int nComplex1;
+
+	/**
+	 * @param width
+	 *            width of sections
+	 * @param height
+	 *            height of sections
+	 * @param maximumShift
+	 *            maximum translation along x and y
+	 * @param minimumOverlap
+	 *            translations for which the fraction of pixels that are
+	 *            valid in both sections is smaller than this are ignored
+	 */
+	public FFTFloatNCC( final int width, final int height, final int maximumShift, final double minimumOverlap )
+	{
+		if ( maximumShift < 0 )
+			throw new IllegalArgumentException( "Maximum shift must not be negative: " + maximumShift );
+		this.width = width;
+		this.height = height;
+		this.maximumShift = maximumShift;
+		this.minimumOverlap = minimumOverlap;
+		// padding by maximumShift avoids wrap-around for all evaluated shifts
+		this.nfft1 = FftReal.nfftFast( width + maximumShift );
+		this.nfft2 = FftComplex.nfftFast( height + maximumShift );
+		this.nComplex1 = nfft1 / 2 + 1;
+	}
+
+	public int getMaximumShift()
+	{
+		return maximumShift;
+	}
+
+	/**
+	 * @param pixels
+	 *            section in row-major order, NaN for invalid pixels
+	 * @return forward transforms of pixels, squared pixels and validity mask
+	 */
+	public Spectra transform( final float[] pixels )
+	{
+		if ( pixels.length != width * height )
+			throw new IllegalArgumentException( "Expected " + width * height + " pixels but got " + pixels.length );
+
+		// center values for better conditioning, NCC is invariant to offsets
+		double sum = 0.0;
+		int count = 0;
+		for ( final float v : pixels )
+			if ( !Float.isNaN( v ) )
+			{
+				sum += v;
+				++count;
+			}
+		final double mean = count > 0 ? sum / count : 0.0;
+
+		final float[][] values = new float[ nfft2 ][ nfft1 ];
+		final float[][] squares = new float[ nfft2 ][ nfft1 ];
+		final float[][] mask = new float[ nfft2 ][ nfft1 ];
+		for ( int y = 0, i = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				final float v = pixels[ i ];
+				if ( !Float.isNaN( v ) )
+				{
+					final float c = ( float ) ( v - mean );
+					values[ y ][ x ] = c;
+					squares[ y ][ x ] = c * c;
+					mask[ y ][ x ] = 1.0f;
+				}
+			}
+		return new Spectra( forward( values ), forward( squares ), forward( mask ), count );
+	}
+
+	/**
+	 * @return peak NCC over all translations, NaN if no translation has
+	 *         sufficient overlap
+	 */
+	public double ncc( final Spectra a, final Spectra b )
+	{
+		final float[][] map = correlation( a, b );
+		double max = Double.NaN;
+		for ( final float[] row : map )
+			for ( final float v : row )
+				if ( !( v <= max ) && !Float.isNaN( v ) )
+					max = v;
+		return max;
+	}
+
+	/**
+	 * NCC of a(x) and b(x + t) for all translations t with
+	 * |t_x|,|t_y| &lt;= maximum shift.
+	 *
+	 * @return (2s+1) x (2s+1) array indexed by [ t_y + s ][ t_x + s ], NaN
+	 *         for translations with insufficient overlap
+	 */
+	public float[][] correlation( final Spectra a, final Spectra b )
+	{
+		final float[][] n = inverse( a.mask, b.mask );
+		final float[][] sumA = inverse( a.values, b.mask );
+		final float[][] sumAA = inverse( a.squares, b.mask );
+		final float[][] sumB = inverse( a.mask, b.values );
+		final float[][] sumBB = inverse( a.mask, b.squares );
+		final float[][] sumAB = inverse( a.values, b.values );
+
+		final double minimumCount = Math.max( minimumOverlap * Math.min( a.count, b.count ), 1.0 );
+		final int size = 2 * maximumShift + 1;
+		final float[][] map = new float[ size ][ size ];
+		for ( int ty = -maximumShift; ty <= maximumShift; ++ty )
+		{
+			final int y = ty < 0 ? ty + nfft2 : ty;
+			for ( int tx = -maximumShift; tx <= maximumShift; ++tx )
+			{
+				final int x = tx < 0 ? tx + nfft1 : tx;
+				// counts are integers, remove round-off of the transforms
+				final double count = Math.rint( n[ y ][ x ] );
+				final double sa = sumA[ y ][ x ];
+				final double sb = sumB[ y ][ x ];
+				final double varA = count * sumAA[ y ][ x ] - sa * sa;
+				final double varB = count * sumBB[ y ][ x ] - sb * sb;
+				final float value;
+				if ( count < minimumCount || varA <= 0.0 || varB <= 0.0 )
+					value = Float.NaN;
+				else
+					value = ( float ) Math.max( -1.0, Math.min( 1.0, ( count * sumAB[ y ][ x ] - sa * sb ) / Math.sqrt( varA ) / Math.sqrt( varB ) ) );
+				map[ ty + maximumShift ][ tx + maximumShift ] = value;
+			}
+		}
+		return map;
+	}
+
+	private float[][] forward( final float[][] real )
+	{
+		final float[][] complex = new float[ nfft2 ][ 2 * nComplex1 ];
+		new FftReal( nfft1 ).realToComplex1( -1, nfft2, real, complex );
+		new FftComplex( nfft2 ).complexToComplex2( -1, nComplex1, complex, complex );
+		return complex;
+	}
+
+	/**
+	 * @return cross correlation sum_x a(x) b(x + t) for the transforms of a
+	 *         and b, i.e. inverse transform of conj(A) B
+	 */
+	private float[][] inverse( final float[][] a, final float[][] b )
+	{
+		final float[][] product = new float[ nfft2 ][ 2 * nComplex1 ];
+		for ( int y = 0; y < nfft2; ++y )
+		{
+			final float[] ar = a[ y ];
+			final float[] br = b[ y ];
+			final float[] pr = product[ y ];
+			for ( int k = 0; k < 2 * nComplex1; k += 2 )
+			{
+				final float re = ar[ k ] * br[ k ] + ar[ k + 1 ] * br[ k + 1 ];
+				final float im = ar[ k ] * br[ k + 1 ] - ar[ k + 1 ] * br[ k ];
+				pr[ k ] = re;
+				pr[ k + 1 ] = im;
+			}
+		}
+		new FftComplex( nfft2 ).complexToComplex2( 1, nComplex1, product, product );
+		final float[][] real = new float[ nfft2 ][ nfft1 ];
+		new FftReal( nfft1 ).complexToReal1( 1, nfft2, product, real );
+		final float scale = 1.0f / ( ( float ) nfft1 * nfft2 );
+		for ( final float[] row : real )
+			for ( int x = 0; x < nfft1; ++x )
+				row[ x ] *= scale;
+		return real;
+	}
+
+}
@@ -0,0 +1,221 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+/**
+ * Normalized cross correlation of sections with precomputed validity masks.
+ * Each {@link Section} stores a bitset of its valid pixels (not NaN, or for
+ * ARGB input neither background nor saturated in any channel) and the range
+ * of words that contain valid pixels. The kernel intersects the bitsets of
+ * two sections word by word and only visits pixels that are valid in both,
+ * i.e. empty borders cost one AND per 64 pixels or nothing at all if they
+ * are outside the common range of words. The result is the same as that of
+ * {@link RealSumFloatNCC} (and {@link org.janelia.thickness.trakem2.RealSumARGBNCC}
+ * for ARGB input).
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class MaskedFloatNCC
+{
+
+	public static class Section
+	{
+		private final float[] pixels;
+
+		private final long[] mask;
+
+		private final int count;
+
+		private final double mean;
+
+		// first word with valid pixels (inclusive)
+		private final int start;
+
+		// last word with valid pixels (exclusive)
+		private final int stop;
+
+		/**
+		 * @param pixels
+		 *            NaN pixels are invalid
+		 */
+		public Section( final float[] pixels )
+		{
+			this( pixels, mask( pixels ) );
+		}
+
+		/**
+		 * @param pixels
+		 *            values of invalid pixels are ignored
+		 * @param mask
+		 *            bit i of mask[ i / 64 ] is set if pixel i is valid
+		 */
+		public Section( final float[] pixels, final long[] mask )
+		{
+			if ( mask.length != numWords( pixels.length ) )
+				throw new IllegalArgumentException( "Mask size " + mask.length + " does not match " + pixels.length + " pixels." );
+			this.pixels = pixels;
+			this.mask = mask;
+
+			int start = mask.length;
+			int stop = 0;
+			int count = 0;
+			double sum = 0.0;
+			for ( int w = 0; w < mask.length; ++w )
+			{
+				final long word = mask[ w ];
+				if ( word == 0 )
+					continue;
+				start = Math.min( start, w );
+				stop = w + 1;
+				count += Long.bitCount( word );
+				for ( long bits = word; bits != 0; bits &= bits - 1 )
+					sum += pixels[ w * 64 + Long.numberOfTrailingZeros( bits ) ];
+			}
+			this.start = start;
+			this.stop = stop;
+			this.count = count;
+			this.mean = count > 0 ? sum / count : 0.0;
+		}
+
+		/**
+		 * Convert ARGB pixels into gray values 0.3 r + 0.6 g + 0.1 b once.
+		 * Pixels with any channel 0 or 255 are invalid.
+		 */
+		public static Section fromARGB( final int[] argb )
+		{
+			final float[] gray = new float[ argb.length ];
+			final long[] mask = new long[ numWords( argb.length ) ];
+			for ( int i = 0; i < argb.length; ++i )
+			{
+				final int r = ( argb[ i ] >> 16 ) & 0xff;
+				final int g = ( argb[ i ] >> 8 ) & 0xff;
+				final int b = argb[ i ] & 0xff;
+				if ( r == 0 || g == 0 || b == 0 || r == 255 || g == 255 || b == 255 )
+					continue;
+				gray[ i ] = ( float ) ( 0.3 * r + 0.6 * g + 0.1 * b );
+				mask[ i >>> 6 ] |= 1L << i;
+			}
+			return new Section( gray, mask );
+		}
+
+		public float[] getPixels()
+		{
+			return pixels;
+		}
+
+		public long[] getMask()
+		{
+			return mask;
+		}
+
+		/**
+		 * @return number of valid pixels
+		 */
+		public int getCount()
+		{
+			return count;
+		}
+
+		public boolean isValid( final int i )
+		{
+			return ( mask[ i >>> 6 ] & 1L << i ) != 0;
+		}
+	}
+
+	public static int numWords( final int size )
+	{
+		return ( size + 63 ) >>> 6;
+	}
+
+	/**
+	 * @return bitset of pixels that are not NaN
+	 */
+	public static long[] mask( final float[] pixels )
+	{
+		final long[] mask = new long[ numWords( pixels.length ) ];
+		for ( int i = 0; i < pixels.length; ++i )
+			if ( !Float.isNaN( pixels[ i ] ) )
+				mask[ i >>> 6 ] |= 1L << i;
+		return mask;
+	}
+
+	/**
+	 * @return NCC over all pixels that are valid in both a and b
+	 */
+	public static double ncc( final Section a, final Section b )
+	{
+		if ( a.pixels.length != b.pixels.length )
+			throw new IllegalArgumentException( "Section sizes do not match: " + a.pixels.length + " " + b.pixels.length );
+
+		final float[] ap = a.pixels;
+		final float[] bp = b.pixels;
+		final long[] am = a.mask;
+		final long[] bm = b.mask;
+		// values are centered with the section means to avoid cancellation,
+		// NCC is invariant to shifts
+		final double ma = a.mean;
+		final double mb = b.mean;
+
+		double suma = 0.0, sumaa = 0.0, sumb = 0.0, sumbb = 0.0, sumab = 0.0;
+		int n = 0;
+		for ( int w = Math.max( a.start, b.start ), stop = Math.min( a.stop, b.stop ); w < stop; ++w )
+		{
+			final long word = am[ w ] & bm[ w ];
+			if ( word == 0 )
+				continue;
+			final int offset = w << 6;
+			if ( word == -1L )
+			{
+				for ( int i = offset; i < offset + 64; ++i )
+				{
+					final double va = ap[ i ] - ma;
+					final double vb = bp[ i ] - mb;
+					suma += va;
+					sumaa += va * va;
+					sumb += vb;
+					sumbb += vb * vb;
+					sumab += va * vb;
+				}
+				n += 64;
+			}
+			else
+			{
+				for ( long bits = word; bits != 0; bits &= bits - 1 )
+				{
+					final int i = offset + Long.numberOfTrailingZeros( bits );
+					final double va = ap[ i ] - ma;
+					final double vb = bp[ i ] - mb;
+					suma += va;
+					sumaa += va * va;
+					sumb += vb;
+					sumbb += vb * vb;
+					sumab += va * vb;
+				}
+				n += Long.bitCount( word );
+			}
+		}
+
+		return ( n * sumab - suma * sumb ) / Math.sqrt( n * sumaa - suma * suma ) / Math.sqrt( n * sumbb - sumb * sumb );
+	}
+
+}
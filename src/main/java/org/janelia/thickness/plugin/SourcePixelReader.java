@@ -54,7 +54,7 @@ interface SourcePixelReader {
         @Override
         public double valueAt( int index )
         {
-            return this.data[ index ];
+            return this.data[ index ] & 0xff;
         }
     }
 
@@ -86,7 +86,7 @@ interface SourcePixelReader {
         @Override
         public double valueAt( int index )
         {
-            return this.data[ index ];
+            return this.data[ index ] & 0xffff;
         }
     }
 }
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import org.janelia.utility.ParallelBlocks;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Sample a {@link RealRandomAccessible} on the integer grid into an
+ * {@link ImageStack}. Each slice is split into tiles that are processed in
+ * parallel. Within a tile, pixels are visited in memory order (rows of x)
+ * and written directly into the pixel array of the slice. Each thread reuses
+ * a single {@link RandomAccess}.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class StackGenerator
+{
+
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	/**
+	 * Type of the output slices. Values are clamped to the range of the
+	 * type, NaN is written as 0 for integer types.
+	 */
+	public enum OutputType
+	{
+		GRAY8( 0.0, 255.0 ),
+		GRAY16( 0.0, 65535.0 ),
+		GRAY32( Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY );
+
+		private final double min;
+
+		private final double max;
+
+		private OutputType( final double min, final double max )
+		{
+			this.min = min;
+			this.max = max;
+		}
+
+		public ImageProcessor createProcessor( final int width, final int height )
+		{
+			switch ( this )
+			{
+			case GRAY8:
+				return new ByteProcessor( width, height );
+			case GRAY16:
+				return new ShortProcessor( width, height );
+			default:
+				return new FloatProcessor( width, height );
+			}
+		}
+
+		public double clamp( final double value )
+		{
+			return Math.max( min, Math.min( max, value ) );
+		}
+	}
+
+	/**
+	 * @param input
+	 * @param width
+	 * @param height
+	 * @param size
+	 *            number of slices
+	 * @param type
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param es
+	 *            tiles are generated sequentially on the calling thread if
+	 *            null
+	 * @return stack of size slices with z = 0, ..., size - 1
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static < T extends RealType< T > > ImageStack generate(
+			final RealRandomAccessible< T > input,
+			final int width,
+			final int height,
+			final int size,
+			final OutputType type,
+			final int tileWidth,
+			final int tileHeight,
+			final ExecutorService es ) throws InterruptedException, ExecutionException
+	{
+		final ImageStack stack = new ImageStack( width, height );
+		final TargetPixelWriter[] writers = new TargetPixelWriter[ size ];
+		for ( int z = 0; z < size; ++z )
+		{
+			final ImageProcessor ip = type.createProcessor( width, height );
+			stack.addSlice( ip );
+			writers[ z ] = TargetPixelWriter.forImageProcessor( ip );
+		}
+
+		final int tilesX = ParallelBlocks.numBlocks( width, tileWidth );
+		final int tilesPerSlice = tilesX * ParallelBlocks.numBlocks( height, tileHeight );
+		final RandomAccessible< T > raster = Views.raster( input );
+		final ThreadLocal< RandomAccess< T > > accesses = ThreadLocal.withInitial( raster::randomAccess );
+
+		// one block per tile
+		ParallelBlocks.run( es, size * tilesPerSlice, 1, ( index, start, stop ) -> {
+			final int z = index / tilesPerSlice;
+			final int tile = index % tilesPerSlice;
+			final int minX = ( tile % tilesX ) * tileWidth;
+			final int minY = ( tile / tilesX ) * tileHeight;
+			final int maxX = Math.min( minX + tileWidth, width );
+			final int maxY = Math.min( minY + tileHeight, height );
+
+			final RandomAccess< T > access = accesses.get();
+			final TargetPixelWriter writer = writers[ z ];
+			access.setPosition( z, 2 );
+			for ( int y = minY; y < maxY; ++y )
+			{
+				access.setPosition( minX, 0 );
+				access.setPosition( y, 1 );
+				for ( int x = minX, i = y * width + minX; x < maxX; ++x, ++i, access.fwd( 0 ) )
+					writer.setValueAt( i, type.clamp( access.get().getRealDouble() ) );
+			}
+		} );
+
+		return stack;
+	}
+
+}
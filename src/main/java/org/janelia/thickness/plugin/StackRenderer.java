@@ -0,0 +1,368 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.janelia.thickness.lut.RenderPlan;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.plugin.FolderOpener;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Render a z-corrected stack without holding it in memory. Each output
+ * slice is linearly interpolated between two source sections as specified
+ * by a {@link RenderPlan}. Output slices are rendered in
+ * parallel and handed to a {@link SliceWriter} as soon as they are done,
+ * while at most maxInFlight slices are rendered or written at any time.
+ * Each source section is read exactly once and released as soon as all
+ * output slices that interpolate from it are done. As the lut is sorted,
+ * only source sections around the output slices in flight are held in
+ * memory.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class StackRenderer
+{
+
+	public interface SliceWriter
+	{
+		/**
+		 * Called from multiple threads, not necessarily in z order.
+		 *
+		 * @param z
+		 *            output slice index
+		 */
+		void write( int z, ImageProcessor ip ) throws IOException;
+	}
+
+	/**
+	 * Write each slice into a separate TIFF file.
+	 */
+	public static class TiffSequenceWriter implements SliceWriter
+	{
+		private final Path directory;
+
+		private final String prefix;
+
+		private final int digits;
+
+		public TiffSequenceWriter( final Path directory, final String prefix, final int depth ) throws IOException
+		{
+			this.directory = Files.createDirectories( directory );
+			this.prefix = prefix;
+			this.digits = Math.max( Integer.toString( depth - 1 ).length(), 1 );
+		}
+
+		public File getFile( final int z )
+		{
+			return directory.resolve( String.format( "%s%0" + digits + "d.tif", prefix, z ) ).toFile();
+		}
+
+		@Override
+		public void write( final int z, final ImageProcessor ip ) throws IOException
+		{
+			final File file = getFile( z );
+			if ( !new FileSaver( new ImagePlus( file.getName(), ip ) ).saveAsTiff( file.getAbsolutePath() ) )
+				throw new IOException( "Unable to write " + file );
+		}
+	}
+
+	/**
+	 * Collect all slices in memory.
+	 */
+	public static class ImageStackWriter implements SliceWriter
+	{
+		private final ImageProcessor[] slices;
+
+		public ImageStackWriter( final int depth )
+		{
+			this.slices = new ImageProcessor[ depth ];
+		}
+
+		@Override
+		public void write( final int z, final ImageProcessor ip )
+		{
+			slices[ z ] = ip;
+		}
+
+		public ImageStack getStack( final int width, final int height )
+		{
+			final ImageStack stack = new ImageStack( width, height );
+			for ( final ImageProcessor slice : slices )
+				stack.addSlice( slice );
+			return stack;
+		}
+	}
+
+	private final ImageStack source;
+
+	private final RenderPlan plan;
+
+	// number of output slices that still need each source section
+	private final AtomicIntegerArray remaining;
+
+	private final ConcurrentHashMap< Integer, CompletableFuture< ImageProcessor > > loaded = new ConcurrentHashMap<>();
+
+	private ImageProcessor emptySlice = null;
+
+	/**
+	 * @param source
+	 *            source sections in original order
+	 * @param plan
+	 */
+	public StackRenderer( final ImageStack source, final RenderPlan plan )
+	{
+		super();
+		if ( plan.getSourceDepth() != source.getSize() )
+			throw new IllegalArgumentException( "Render plan for " + plan.getSourceDepth() + " sections does not match stack of size " + source.getSize() );
+		this.source = source;
+		this.plan = plan;
+		this.remaining = new AtomicIntegerArray( plan.countReads() );
+	}
+
+	/**
+	 * @see RenderPlan#create(double[], int[], int, boolean)
+	 */
+	public StackRenderer(
+			final ImageStack source,
+			final int[] permutation,
+			final double[] sortedLut,
+			final int upsampleBy,
+			final boolean extendBorder )
+	{
+		this( source, RenderPlan.create( sortedLut, permutation, upsampleBy, extendBorder ) );
+	}
+
+	public RenderPlan getPlan()
+	{
+		return plan;
+	}
+
+	/**
+	 * @return number of output slices
+	 */
+	public int getDepth()
+	{
+		return plan.size();
+	}
+
+	/**
+	 * Render all output slices and wait for completion. Can be called only
+	 * once, as source sections are released after use.
+	 *
+	 * @param writer
+	 * @param es
+	 * @param maxInFlight
+	 *            maximum number of output slices in memory
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 *             if reading, rendering or writing any slice failed
+	 */
+	public void render( final SliceWriter writer, final ExecutorService es, final int maxInFlight ) throws InterruptedException, ExecutionException
+	{
+		final Semaphore inFlight = new Semaphore( Math.max( maxInFlight, 1 ) );
+		final List< Future< Void > > futures = new ArrayList<>();
+		try
+		{
+			for ( int z = 0; z < plan.size(); ++z )
+			{
+				inFlight.acquire();
+				final int index = z;
+				try
+				{
+					futures.add( es.submit( () -> {
+						try
+						{
+							writer.write( index, renderSlice( index ) );
+						}
+						finally
+						{
+							inFlight.release();
+						}
+						return null;
+					} ) );
+				}
+				catch ( final RuntimeException e )
+				{
+					inFlight.release();
+					throw e;
+				}
+				// stop early if any slice failed
+				for ( final Future< Void > future : futures )
+					if ( future.isDone() )
+						future.get();
+				futures.removeIf( Future::isDone );
+			}
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		finally
+		{
+			for ( final Future< Void > future : futures )
+				future.cancel( true );
+			loaded.clear();
+		}
+	}
+
+	private ImageProcessor renderSlice( final int z ) throws InterruptedException, ExecutionException
+	{
+		if ( plan.isEmpty( z ) )
+			return emptySlice().duplicate();
+
+		final int a = plan.getSourceA( z );
+		final ImageProcessor ip1 = acquire( a );
+		if ( plan.isCopy( z ) )
+		{
+			final ImageProcessor target = ip1.duplicate();
+			release( a );
+			return target;
+		}
+
+		final int b = plan.getSourceB( z );
+		final ImageProcessor ip2 = acquire( b );
+		final ImageProcessor target = ip1.createProcessor( ip1.getWidth(), ip1.getHeight() );
+		final SourcePixelReader r1 = SourcePixelReader.forImageProcessor( ip1 );
+		final SourcePixelReader r2 = SourcePixelReader.forImageProcessor( ip2 );
+		final TargetPixelWriter t = TargetPixelWriter.forImageProcessor( target );
+		final double weightA = plan.getWeightA( z );
+		final double weightB = plan.getWeightB( z );
+		for ( int i = 0, size = target.getPixelCount(); i < size; ++i )
+			t.setValueAt( i, weightA * r1.valueAt( i ) + weightB * r2.valueAt( i ) );
+		release( a );
+		release( b );
+		return target;
+	}
+
+	/**
+	 * @return slice of source type, NaN for float and 0 otherwise
+	 */
+	private synchronized ImageProcessor emptySlice()
+	{
+		if ( emptySlice == null )
+		{
+			synchronized ( source )
+			{
+				emptySlice = source.getProcessor( 1 ).createProcessor( source.getWidth(), source.getHeight() );
+			}
+			if ( emptySlice instanceof FloatProcessor )
+			{
+				emptySlice.setValue( Float.NaN );
+				emptySlice.fill();
+			}
+		}
+		return emptySlice;
+	}
+
+	/**
+	 * Read source section z or wait until it has been read by another
+	 * thread. Reads are serialized as {@link ImageStack}s (in particular
+	 * virtual stacks) are not guaranteed to be thread safe.
+	 */
+	private ImageProcessor acquire( final int z ) throws InterruptedException, ExecutionException
+	{
+		final CompletableFuture< ImageProcessor > future = new CompletableFuture<>();
+		final CompletableFuture< ImageProcessor > existing = loaded.putIfAbsent( z, future );
+		if ( existing != null )
+			return existing.get();
+		try
+		{
+			synchronized ( source )
+			{
+				future.complete( source.getProcessor( z + 1 ) );
+			}
+		}
+		catch ( final RuntimeException e )
+		{
+			future.completeExceptionally( e );
+		}
+		return future.get();
+	}
+
+	private void release( final int z )
+	{
+		if ( remaining.decrementAndGet( z ) == 0 )
+			loaded.remove( z );
+	}
+
+	/**
+	 * Replay a {@link RenderPlan#write saved} render plan against the raw
+	 * data without running the inference:
+	 *
+	 * <pre>
+	 * StackRenderer &lt;plan&gt; &lt;input stack or folder&gt; &lt;output folder&gt; [threads]
+	 * </pre>
+	 */
+	public static void main( final String[] args ) throws IOException, InterruptedException, ExecutionException
+	{
+		if ( args.length < 3 )
+		{
+			System.err.println( "Usage: StackRenderer <plan> <input stack or folder> <output folder> [threads]" );
+			System.exit( 1 );
+		}
+		final RenderPlan plan = RenderPlan.read( Paths.get( args[ 0 ] ) );
+		final ImagePlus input;
+		if ( new File( args[ 1 ] ).isDirectory() )
+		{
+			final FolderOpener opener = new FolderOpener();
+			opener.openAsVirtualStack( true );
+			input = opener.openFolder( args[ 1 ] );
+		}
+		else
+			input = IJ.openImage( args[ 1 ] );
+		if ( input == null )
+			throw new IOException( "Unable to open " + args[ 1 ] );
+
+		final int nThreads = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : Runtime.getRuntime().availableProcessors();
+		final StackRenderer renderer = new StackRenderer( input.getStack(), plan );
+		final ExecutorService es = Executors.newFixedThreadPool( nThreads );
+		try
+		{
+			renderer.render( new TiffSequenceWriter( Paths.get( args[ 2 ] ), "z-spacing-", renderer.getDepth() ), es, 2 * nThreads );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+}
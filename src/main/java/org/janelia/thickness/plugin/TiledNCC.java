@@ -0,0 +1,217 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import org.janelia.utility.ParallelBlocks;
+
+/**
+ * NCC similarities for a grid of patches, e.g. to estimate spatially varying
+ * thickness with {@link org.janelia.thickness.inference.GridInference}.
+ * Sections are {@link #push pushed} in z order and each section is split into
+ * patches of patchWidth x patchHeight pixels, placed every stepX and stepY
+ * pixels (overlapping if step is smaller than patch size). For each patch, a
+ * banded similarity strip (layout as in
+ * {@link org.janelia.utility.MatrixStripConversion}) is filled in a single
+ * pass over the data: statistics of each patch are computed once (see
+ * {@link CachedFloatNCC}) and only the last range sections are kept.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class TiledNCC
+{
+
+	private final int width;
+
+	private final int height;
+
+	private final int patchWidth;
+
+	private final int patchHeight;
+
+	private final int stepX;
+
+	private final int stepY;
+
+	private final int gridWidth;
+
+	private final int gridHeight;
+
+	private final int range;
+
+	private final int n;
+
+	private final ExecutorService es;
+
+	private final double[][] strips;
+
+	// ring buffer of preprocessed patches of the last range sections
+	private final CachedFloatNCC.Section[][] buffer;
+
+	private int size = 0;
+
+	/**
+	 * @param width
+	 *            section width
+	 * @param height
+	 *            section height
+	 * @param patchWidth
+	 * @param patchHeight
+	 * @param stepX
+	 *            distance of patches along x
+	 * @param stepY
+	 *            distance of patches along y
+	 * @param range
+	 *            comparison range
+	 * @param n
+	 *            number of sections
+	 * @param es
+	 *            patches are processed in parallel, sequentially if null
+	 */
+	public TiledNCC(
+			final int width,
+			final int height,
+			final int patchWidth,
+			final int patchHeight,
+			final int stepX,
+			final int stepY,
+			final int range,
+			final int n,
+			final ExecutorService es )
+	{
+		super();
+		if ( patchWidth > width || patchHeight > height || patchWidth < 1 || patchHeight < 1 )
+			throw new IllegalArgumentException( "Patch size " + patchWidth + "x" + patchHeight + " does not fit into section size " + width + "x" + height + "." );
+		if ( stepX < 1 || stepY < 1 )
+			throw new IllegalArgumentException( "Steps must be positive: " + stepX + ", " + stepY );
+		this.width = width;
+		this.height = height;
+		this.patchWidth = patchWidth;
+		this.patchHeight = patchHeight;
+		this.stepX = stepX;
+		this.stepY = stepY;
+		this.gridWidth = ( width - patchWidth ) / stepX + 1;
+		this.gridHeight = ( height - patchHeight ) / stepY + 1;
+		this.range = range;
+		this.n = n;
+		this.es = es;
+
+		this.strips = new double[ gridWidth * gridHeight ][ n * ( 2 * range + 1 ) ];
+		for ( final double[] strip : strips )
+			Arrays.fill( strip, Double.NaN );
+		this.buffer = new CachedFloatNCC.Section[ range + 1 ][];
+	}
+
+	public int getGridWidth()
+	{
+		return gridWidth;
+	}
+
+	public int getGridHeight()
+	{
+		return gridHeight;
+	}
+
+	/**
+	 * @return distance of patch centers, i.e. scale from grid to section
+	 *         coordinates for {@link org.janelia.thickness.lut.LUTGrid}
+	 */
+	public double[] getScale()
+	{
+		return new double[] { stepX, stepY };
+	}
+
+	/**
+	 * @return center of first patch, i.e. shift from grid to section
+	 *         coordinates for {@link org.janelia.thickness.lut.LUTGrid}
+	 */
+	public double[] getShift()
+	{
+		return new double[] { 0.5 * ( patchWidth - 1 ), 0.5 * ( patchHeight - 1 ) };
+	}
+
+	/**
+	 * @return strip for each patch, indexed by gx + gridWidth * gy
+	 */
+	public double[][] getStrips()
+	{
+		return strips;
+	}
+
+	/**
+	 * @return number of sections pushed so far
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Add the next section and compute the similarities of all its patches
+	 * to the same patches of the previous range sections.
+	 *
+	 * @param pixels
+	 *            section in row-major order, NaN for invalid pixels
+	 */
+	public void push( final float[] pixels ) throws InterruptedException, ExecutionException
+	{
+		if ( size >= n )
+			throw new IllegalStateException( "All " + n + " sections have been pushed already." );
+		if ( pixels.length != width * height )
+			throw new IllegalArgumentException( "Expected " + width * height + " pixels but got " + pixels.length );
+
+		final int z = size;
+		final int stride = 2 * range + 1;
+		final CachedFloatNCC.Section[] patches = new CachedFloatNCC.Section[ strips.length ];
+		ParallelBlocks.run( es, strips.length, 1, ( index, p, stop ) -> {
+			final CachedFloatNCC.Section patch = new CachedFloatNCC.Section( extract( pixels, p % gridWidth, p / gridWidth ) );
+			patches[ p ] = patch;
+			final double[] strip = strips[ p ];
+			strip[ z * stride + range ] = 1.0;
+			for ( int d = 1; d <= range && d <= z; ++d )
+			{
+				final double similarity = CachedFloatNCC.ncc( buffer[ ( z - d ) % buffer.length ][ p ], patch );
+				// strip[ y * stride + x - y + range ] = M(x,y)
+				strip[ z * stride + range - d ] = similarity;
+				strip[ ( z - d ) * stride + range + d ] = similarity;
+			}
+		} );
+
+		buffer[ z % buffer.length ] = patches;
+		++size;
+	}
+
+	private float[] extract( final float[] pixels, final int gx, final int gy )
+	{
+		final float[] patch = new float[ patchWidth * patchHeight ];
+		final int x0 = gx * stepX;
+		final int y0 = gy * stepY;
+		for ( int y = 0; y < patchHeight; ++y )
+			System.arraycopy( pixels, ( y0 + y ) * width + x0, patch, y * patchWidth, patchWidth );
+		return patch;
+	}
+
+}
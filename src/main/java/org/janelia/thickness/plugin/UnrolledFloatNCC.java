@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.util.concurrent.Callable;
+
+import net.imglib2.util.RealSum;
+
+/**
+ * Branch-free variant of {@link RealSumFloatNCC}. Pixels are processed in
+ * blocks of {@link #BLOCK_SIZE}. Within a block, two independent sets of plain
+ * double accumulators are used (ten independent dependency chains) and pixels
+ * that are NaN in either section are masked by selection instead of a branch,
+ * which lets the JIT unroll and pipeline the loop. Block sums are added to
+ * {@link RealSum}s, such that precision is comparable to
+ * {@link RealSumFloatNCC} at a fraction of the cost.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class UnrolledFloatNCC implements Callable< Double >
+{
+
+	public static final int BLOCK_SIZE = 1024;
+
+	protected float[] ap;
+
+	protected float[] bp;
+
+	public UnrolledFloatNCC( final float[] ap, final float[] bp )
+	{
+		this.ap = ap;
+		this.bp = bp;
+	}
+
+	@Override
+	public Double call()
+	{
+		return ncc( ap, bp );
+	}
+
+	public static double ncc( final float[] ap, final float[] bp )
+	{
+		final RealSum sumA = new RealSum();
+		final RealSum sumAA = new RealSum();
+		final RealSum sumB = new RealSum();
+		final RealSum sumBB = new RealSum();
+		final RealSum sumAB = new RealSum();
+		long n = 0;
+
+		for ( int start = 0; start < ap.length; start += BLOCK_SIZE )
+		{
+			final int stop = Math.min( start + BLOCK_SIZE, ap.length );
+			double a0 = 0.0, aa0 = 0.0, b0 = 0.0, bb0 = 0.0, ab0 = 0.0;
+			double a1 = 0.0, aa1 = 0.0, b1 = 0.0, bb1 = 0.0, ab1 = 0.0;
+			int n0 = 0, n1 = 0;
+			int i = start;
+			for ( ; i < stop - 1; i += 2 )
+			{
+				final float va0 = ap[ i ];
+				final float vb0 = bp[ i ];
+				final float va1 = ap[ i + 1 ];
+				final float vb1 = bp[ i + 1 ];
+				// NaN != NaN, non-short-circuit & to avoid branches
+				final boolean valid0 = va0 == va0 & vb0 == vb0;
+				final boolean valid1 = va1 == va1 & vb1 == vb1;
+				final double x0 = valid0 ? va0 : 0.0;
+				final double y0 = valid0 ? vb0 : 0.0;
+				final double x1 = valid1 ? va1 : 0.0;
+				final double y1 = valid1 ? vb1 : 0.0;
+				n0 += valid0 ? 1 : 0;
+				n1 += valid1 ? 1 : 0;
+				a0 += x0;
+				aa0 += x0 * x0;
+				b0 += y0;
+				bb0 += y0 * y0;
+				ab0 += x0 * y0;
+				a1 += x1;
+				aa1 += x1 * x1;
+				b1 += y1;
+				bb1 += y1 * y1;
+				ab1 += x1 * y1;
+			}
+			for ( ; i < stop; ++i )
+			{
+				final float va = ap[ i ];
+				final float vb = bp[ i ];
+				final boolean valid = va == va & vb == vb;
+				final double x = valid ? va : 0.0;
+				final double y = valid ? vb : 0.0;
+				n0 += valid ? 1 : 0;
+				a0 += x;
+				aa0 += x * x;
+				b0 += y;
+				bb0 += y * y;
+				ab0 += x * y;
+			}
+			sumA.add( a0 + a1 );
+			sumAA.add( aa0 + aa1 );
+			sumB.add( b0 + b1 );
+			sumBB.add( bb0 + bb1 );
+			sumAB.add( ab0 + ab1 );
+			n += n0 + n1;
+		}
+
+		final double suma = sumA.getSum();
+		final double sumaa = sumAA.getSum();
+		final double sumb = sumB.getSum();
+		final double sumbb = sumBB.getSum();
+		final double sumab = sumAB.getSum();
+
+		return ( n * sumab - suma * sumb ) / Math.sqrt( n * sumaa - suma * suma ) / Math.sqrt( n * sumbb - sumb * sumb );
+	}
+}
@@ -22,9 +22,7 @@
 package org.janelia.thickness.plugin;
 
 import bdv.tools.brightness.MinMaxGroup;
-import bdv.util.AxisOrder;
 import bdv.util.Bdv;
-import bdv.util.BdvFunctions;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImageJ;
@@ -41,11 +39,8 @@ import ij.process.ImageProcessor;
 import mpicbg.ij.util.Filter;
 import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.NotEnoughDataPointsException;
-import net.imglib2.FinalInterval;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealDoubleConverter;
 import net.imglib2.converter.read.ConvertedRandomAccessibleInterval;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -54,7 +49,6 @@ import net.imglib2.realtransform.InverseRealTransform;
 import net.imglib2.realtransform.InvertibleRealTransform;
 import net.imglib2.realtransform.RealTransformRealRandomAccessible;
 import net.imglib2.realtransform.RealViews;
-import net.imglib2.realtransform.Scale;
 import net.imglib2.realtransform.Scale3D;
 import net.imglib2.transform.Transform;
 import net.imglib2.type.numeric.RealType;
@@ -80,9 +74,13 @@ import org.janelia.thickness.inference.visitor.ScalingFactorsVisitor;
 import org.janelia.thickness.inference.visitor.Visitor;
 import org.janelia.thickness.lut.LUTRealTransform;
 import org.janelia.thickness.lut.PermutationTransform;
-import org.janelia.thickness.lut.SingleDimensionLUTRealTransform;
-import org.janelia.thickness.lut.SingleDimensionPermutationTransform;
+import org.janelia.thickness.lut.RenderPlan;
+import org.janelia.utility.AdaptiveRefinement;
+import org.janelia.utility.BandWriter;
+import org.janelia.utility.BandedMatrix;
 import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.SimilarityCache;
+import org.janelia.utility.SlidingWindowSimilarity;
 import org.janelia.utility.arrays.ArraySortedIndices;
 
 import java.awt.Checkbox;
@@ -91,14 +89,17 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Vector;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 /**
  * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
@@ -246,18 +247,25 @@ public class ZPositionCorrection implements PlugIn
 
 		final String visitorString = dialog.getNextChoice();
 
-		final FloatProcessor matrixFp = inputIsMatrix ? normalize( input ).getProcessor().convertToFloatProcessor() : calculateSimilarityMatrix( input, options.comparisonRange );
-
-		if ( matrixFp == null )
-			return;
-
-		final boolean isStrip = matrixFp.getWidth() != matrixFp.getHeight();
-		final RandomAccessibleInterval< DoubleType > wrappedFp = wrapDouble( new ImagePlus( "", matrixFp ) );
-
-		final RandomAccessibleInterval< DoubleType > matrix = isStrip ? MatrixStripConversion.stripToMatrix( wrappedFp, new DoubleType() ) : wrappedFp;
-
-		if ( !inputIsMatrix )
-			ImageJFunctions.show( matrix );
+		final boolean isStrip;
+		final RandomAccessibleInterval< DoubleType > matrix;
+		if ( inputIsMatrix )
+		{
+			final FloatProcessor matrixFp = normalize( input ).getProcessor().convertToFloatProcessor();
+			isStrip = matrixFp.getWidth() != matrixFp.getHeight();
+			final RandomAccessibleInterval< DoubleType > wrappedFp = wrapDouble( new ImagePlus( "", matrixFp ) );
+			matrix = isStrip ? MatrixStripConversion.stripToMatrix( wrappedFp, new DoubleType() ) : wrappedFp;
+		}
+		else
+		{
+			final BandedMatrix< FloatType > bandedMatrix = calculateBandedSimilarityMatrix( input, options.comparisonRange );
+			if ( bandedMatrix == null )
+				return;
+			// never materialize the full matrix, show and output strips
+			isStrip = true;
+			matrix = new ConvertedRandomAccessibleInterval< FloatType, DoubleType >( bandedMatrix, new RealDoubleConverter< FloatType >(), DoubleType::new );
+			ImageJFunctions.show( bandedMatrix.getStrip() );
+		}
 
 		final double[] startingCoordinates = new double[ ( int ) matrix.dimension( 0 ) ];
 		for ( int i = 0; i < startingCoordinates.length; i++ )
@@ -397,27 +405,77 @@ public class ZPositionCorrection implements PlugIn
 		return wrapDouble( normalize( input ) );
 	}
 
+	public static final String[] SIMILARITY_METHODS = new String[] {
+			"NCC (aligned)",
+			"NCC (aligned, unrolled)",
+			"NCC (FFT, unaligned)",
+			"NCC (aligned, adaptive)",
+			"NCC (aligned, masked)"
+	};
+
+	/**
+	 * Kernel used for NCC between aligned sections.
+	 */
+	public enum NCCKernel
+	{
+		/**
+		 * {@link CachedFloatNCC}, statistics of each section are computed once
+		 */
+		CACHED,
+		/**
+		 * {@link UnrolledFloatNCC}, branch-free single pass per pair
+		 */
+		UNROLLED,
+		/**
+		 * {@link MaskedFloatNCC}, only pixels that are valid in both sections
+		 * are visited
+		 */
+		MASKED
+	}
+
+	/**
+	 * @deprecated use {@link #calculateBandedSimilarityMatrix(ImagePlus, int)},
+	 *             which does not materialize the full matrix
+	 */
+	@Deprecated
 	public static FloatProcessor calculateSimilarityMatrix( final ImagePlus input, final int range )
 	{
-		final GenericDialog dialog = new GenericDialog( "Choose similiarity calculation method" );
-		dialog.addChoice( "Similarity_method :", new String[] { "NCC (aligned)" }, "NCC (aligned)" );
+		final BandedMatrix< FloatType > matrix = calculateBandedSimilarityMatrix( input, range );
+		return matrix == null ? null : toFloatProcessor( matrix );
+	}
+
+	public static BandedMatrix< FloatType > calculateBandedSimilarityMatrix( final ImagePlus input, final int range )
+	{
+		final GenericDialogPlus dialog = new GenericDialogPlus( "Choose similiarity calculation method" );
+		dialog.addChoice( "Similarity_method :", SIMILARITY_METHODS, SIMILARITY_METHODS[ 0 ] );
+		dialog.addDirectoryField( "Similarity_cache (no cache if empty)", "" );
 		dialog.showDialog();
 
 		if ( dialog.wasCanceled() )
 			return null;
 
 		final int method = dialog.getNextChoiceIndex();
-		final FloatProcessor matrix = createEmptyMatrix( input.getStack().getSize() );
+		final String cachePath = dialog.getNextString();
+		final Path cacheDirectory = cachePath == null || cachePath.trim().isEmpty() ? null : Paths.get( cachePath.trim() );
+		final BandedMatrix< FloatType > matrix = createEmptyMatrix( input.getStack().getSize(), range );
 
 		boolean similarityCalculationWasSuccessful = false;
 		switch ( method )
 		{
 		case 1:
-			similarityCalculationWasSuccessful = invokeSIFT( input, range, matrix ); // not
-			// implemented
-			// yet
+			similarityCalculationWasSuccessful = invokeNCC( input, range, matrix, NCCKernel.UNROLLED, cacheDirectory );
+			break;
+		case 2:
+			similarityCalculationWasSuccessful = invokeFFTNCC( input, range, matrix, cacheDirectory );
+			break;
+		case 3:
+			similarityCalculationWasSuccessful = invokeAdaptiveNCC( input, range, matrix, cacheDirectory );
+			break;
+		case 4:
+			similarityCalculationWasSuccessful = invokeNCC( input, range, matrix, NCCKernel.MASKED, cacheDirectory );
+			break;
 		default:
-			similarityCalculationWasSuccessful = invokeNCC( input, range, matrix );
+			similarityCalculationWasSuccessful = invokeNCC( input, range, matrix, NCCKernel.CACHED, cacheDirectory );
 		}
 		if ( similarityCalculationWasSuccessful )
 			return matrix;
@@ -443,13 +501,51 @@ public class ZPositionCorrection implements PlugIn
 		new ZPositionCorrection().run( "" );
 	}
 
+	/**
+	 * @deprecated use {@link #invokeSIFT(ImagePlus, int, BandWriter)}
+	 */
+	@Deprecated
 	public static boolean invokeSIFT( final ImagePlus input, final int range, final FloatProcessor matrix )
+	{
+		return invokeSIFT( input, range, asBandWriter( matrix ) );
+	}
+
+	public static boolean invokeSIFT( final ImagePlus input, final int range, final BandWriter matrix )
 	{
 		// TODO IMPLEMENT
 		return false;
 	}
 
+	/**
+	 * @deprecated use {@link #invokeNCC(ImagePlus, int, BandWriter)}
+	 */
+	@Deprecated
 	public static boolean invokeNCC( final ImagePlus input, final int range, final FloatProcessor matrix )
+	{
+		return invokeNCC( input, range, asBandWriter( matrix ) );
+	}
+
+	public static boolean invokeNCC( final ImagePlus input, final int range, final BandWriter matrix )
+	{
+		return invokeNCC( input, range, matrix, NCCKernel.CACHED );
+	}
+
+	public static boolean invokeNCC( final ImagePlus input, final int range, final BandWriter matrix, final NCCKernel kernel )
+	{
+		return invokeNCC( input, range, matrix, kernel, null );
+	}
+
+	/**
+	 * @param cacheDirectory
+	 *            reuse similarities stored in a {@link SimilarityCache} in
+	 *            this directory, no cache if null
+	 */
+	public static boolean invokeNCC(
+			final ImagePlus input,
+			final int range,
+			final BandWriter matrix,
+			final NCCKernel kernel,
+			final Path cacheDirectory )
 	{
 		new ImageConverter( input ).convertToGray32();
 		final ImageStack stackSource = input.getStack();
@@ -462,42 +558,203 @@ public class ZPositionCorrection implements PlugIn
 
 		final double xyScale = dialog.getNextNumber();
 
-		final ImageStack stack = xyScale == 1.0 ? stackSource : downsampleStack( stackSource, xyScale );
-		final int height = input.getStackSize();
-		final int nThreads = Runtime.getRuntime().availableProcessors();
-		final ArrayList< Callable< Void > > callables = new ArrayList< Callable< Void > >();
-		for ( int i = 0; i < height; ++i )
+		// all kernels compute the same similarities
+		final String context = "NCC (aligned) xyScale=" + xyScale;
+		switch ( kernel )
 		{
-			final int finalI = i;
-			callables.add( new Callable< Void >()
-			{
+		case UNROLLED:
+			return streamSimilarities( stackSource, xyScale, range, matrix, pixels -> pixels, UnrolledFloatNCC::ncc, cacheDirectory, context );
+		case MASKED:
+			// validity masks are computed once per section
+			return streamSimilarities( stackSource, xyScale, range, matrix, MaskedFloatNCC.Section::new, MaskedFloatNCC::ncc, cacheDirectory, context );
+		default:
+			// statistics of each section are computed once and shared by all
+			// pairs the section is part of
+			return streamSimilarities( stackSource, xyScale, range, matrix, CachedFloatNCC.Section::new, CachedFloatNCC::ncc, cacheDirectory, context );
+		}
+	}
 
-				@Override
-				public Void call() throws Exception
-				{
-					for ( int k = finalI + 1; k - finalI <= range && k < height; ++k )
-					{
-						final float val = new RealSumFloatNCC( ( float[] ) stack.getProcessor( finalI + 1 ).getPixels(), ( float[] ) stack.getProcessor( k + 1 ).getPixels() ).call().floatValue();
-						matrix.setf( finalI, k, val );
-						matrix.setf( k, finalI, val );
-					}
-					return null;
-				}
-			} );
+	/**
+	 * Peak NCC over small translations between sections, see
+	 * {@link FFTFloatNCC}. The transforms of each section are computed once.
+	 */
+	public static boolean invokeFFTNCC( final ImagePlus input, final int range, final BandWriter matrix )
+	{
+		return invokeFFTNCC( input, range, matrix, null );
+	}
+
+	public static boolean invokeFFTNCC( final ImagePlus input, final int range, final BandWriter matrix, final Path cacheDirectory )
+	{
+		new ImageConverter( input ).convertToGray32();
+		final ImageStack stackSource = input.getStack();
+
+		final GenericDialog dialog = new GenericDialog( "FFT NCC options" );
+		dialog.addNumericField( "Scale xy before similarity calculation", 1.0, 3 );
+		dialog.addNumericField( "Maximum shift (after scaling)", 10, 0, 6, "px" );
+		dialog.addNumericField( "Minimum overlap", 0.5, 3 );
+		dialog.showDialog();
+		if ( dialog.wasCanceled() )
+			return false;
+
+		final double xyScale = dialog.getNextNumber();
+		final int maximumShift = ( int ) dialog.getNextNumber();
+		final double minimumOverlap = dialog.getNextNumber();
+
+		final int width = xyScale == 1.0 ? stackSource.getWidth() : ( int ) Math.round( stackSource.getWidth() * xyScale );
+		final int height = xyScale == 1.0 ? stackSource.getHeight() : ( int ) Math.round( stackSource.getHeight() * xyScale );
+		final FFTFloatNCC ncc = new FFTFloatNCC( width, height, maximumShift, minimumOverlap );
+		final String context = "NCC (FFT) xyScale=" + xyScale + " maximumShift=" + maximumShift + " minimumOverlap=" + minimumOverlap;
+		return streamSimilarities( stackSource, xyScale, range, matrix, ncc::transform, ncc::ncc, cacheDirectory, context );
+	}
+
+	/**
+	 * NCC on a downsampled proxy of the stack. Only pairs selected by
+	 * {@link AdaptiveRefinement} are recomputed at full resolution, all other
+	 * coarse similarities are calibrated to full resolution.
+	 */
+	public static boolean invokeAdaptiveNCC( final ImagePlus input, final int range, final BandWriter matrix, final Path cacheDirectory )
+	{
+		new ImageConverter( input ).convertToGray32();
+		final ImageStack stackSource = input.getStack();
+
+		final GenericDialog dialog = new GenericDialog( "Adaptive NCC options" );
+		dialog.addNumericField( "Scale xy for coarse similarities", 0.25, 3 );
+		dialog.addNumericField( "Tolerance for increase with distance", 0.02, 3 );
+		dialog.addNumericField( "Recompute similarities below", 0.2, 3 );
+		dialog.addNumericField( "Calibration section every", 10, 0, 6, "sections" );
+		dialog.showDialog();
+		if ( dialog.wasCanceled() )
+			return false;
+
+		final double xyScale = dialog.getNextNumber();
+		final double tolerance = dialog.getNextNumber();
+		final double criticalSimilarity = dialog.getNextNumber();
+		final int calibrationStep = ( int ) dialog.getNextNumber();
+
+		final int n = stackSource.getSize();
+		final SlidingWindowSimilarity.Similarity< CachedFloatNCC.Section > ncc = CachedFloatNCC::ncc;
+		final BandedMatrix< DoubleType > coarse = BandedMatrix.doubles( n, range );
+		// same context as invokeNCC, i.e. caches are shared
+		if ( !streamSimilarities( stackSource, xyScale, range, coarse, CachedFloatNCC.Section::new, ncc, cacheDirectory, "NCC (aligned) xyScale=" + xyScale ) )
+			return false;
+
+		final AdaptiveRefinement refinement = new AdaptiveRefinement( tolerance, criticalSimilarity, calibrationStep );
+		final boolean[][] selected = refinement.select( coarse );
+		final BandedMatrix< DoubleType > fine = BandedMatrix.doubles( n, range );
+		final ExecutorService es = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		try
+		{
+			if ( cacheDirectory == null )
+				AdaptiveRefinement.refine(
+						selected,
+						z -> new CachedFloatNCC.Section( getPixels( stackSource.getProcessor( z + 1 ), 1.0 ) ),
+						ncc,
+						fine,
+						es );
+			else
+			{
+				final SimilarityCache cache = new SimilarityCache( cacheDirectory, "NCC (aligned) xyScale=" + 1.0 );
+				AdaptiveRefinement.refine(
+						selected,
+						z -> entry( stackSource, z, 1.0, CachedFloatNCC.Section::new ),
+						cache.wrap( ncc ),
+						fine,
+						es );
+				cache.save();
+			}
+		}
+		catch ( final InterruptedException | ExecutionException | IOException e )
+		{
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			es.shutdown();
 		}
-		final ExecutorService es = Executors.newFixedThreadPool( nThreads );
+
+		final double[] calibration = refinement.calibrate( coarse, fine );
+		AdaptiveRefinement.merge( coarse, fine, selected, calibration, matrix );
+
+		int nPairs = 0;
+		for ( int z = 0; z < n; ++z )
+			nPairs += Math.min( z, range );
+		IJ.log( "Recomputed " + AdaptiveRefinement.count( selected ) + " of " + nPairs + " similarities at full resolution, " +
+				"coarse similarities s mapped to " + calibration[ 0 ] + " + " + calibration[ 1 ] + " * s" );
+		return true;
+	}
+
+	/**
+	 * Load, scale and preprocess sections in z order and compute similarities
+	 * with a {@link SlidingWindowSimilarity}. Loading and comparison are
+	 * pipelined on one thread per processor, i.e. only the preprocessed
+	 * sections within range plus a lookahead of one section per thread are
+	 * kept in memory. If cacheDirectory is not
+	 * null, sections are identified by a hash of their content and only
+	 * similarities that are not in the {@link SimilarityCache} for context
+	 * are computed.
+	 */
+	private static < S > boolean streamSimilarities(
+			final ImageStack stack,
+			final double xyScale,
+			final int range,
+			final BandWriter matrix,
+			final Function< float[], S > preprocess,
+			final SlidingWindowSimilarity.Similarity< S > similarity,
+			final Path cacheDirectory,
+			final String context )
+	{
+		final ExecutorService es = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
 		try
 		{
-			es.invokeAll( callables );
+			if ( cacheDirectory == null )
+				new SlidingWindowSimilarity<>( range, similarity, matrix, es ).run(
+						stack.getSize(),
+						z -> preprocess.apply( getPixels( stack.getProcessor( z + 1 ), xyScale ) ) );
+			else
+			{
+				final SimilarityCache cache = new SimilarityCache( cacheDirectory, context );
+				new SlidingWindowSimilarity<>( range, cache.wrap( similarity ), matrix, es ).run(
+						stack.getSize(),
+						z -> entry( stack, z, xyScale, preprocess ) );
+				cache.save();
+				IJ.log( "Reused " + cache.getHits() + " of " + ( cache.getHits() + cache.getMisses() ) + " similarities from " + cache.getFile() );
+			}
 		}
-		catch ( final InterruptedException e )
+		catch ( final InterruptedException | ExecutionException | IOException e )
 		{
 			e.printStackTrace();
 			return false;
 		}
+		finally
+		{
+			es.shutdown();
+		}
 		return true;
 	}
 
+	/**
+	 * @return section z identified by a hash of its content, loaded lazily
+	 */
+	private static < S > SimilarityCache.Entry< S > entry(
+			final ImageStack stack,
+			final int z,
+			final double xyScale,
+			final Function< float[], S > preprocess )
+	{
+		final ImageProcessor ip = stack.getProcessor( z + 1 );
+		final String key = SimilarityCache.key( ( float[] ) ip.getPixels() );
+		return new SimilarityCache.Entry<>( key, () -> preprocess.apply( getPixels( ip, xyScale ) ) );
+	}
+
+	/**
+	 * @return pixels of float processor ip, scaled by xyScale
+	 */
+	private static float[] getPixels( final ImageProcessor ip, final double xyScale )
+	{
+		return ( float[] ) ( xyScale == 1.0 ? ip : Filter.createDownsampled( ip, xyScale, 0.5f, 0.5f ) ).getPixels();
+	}
+
 	public static ImageStack downsampleStack( final ImageStack stackSource, final double xyScale )
 	{
 		final ImageStack stack = new ImageStack( ( int ) Math.round( stackSource.getWidth() * xyScale ), ( int ) Math.round( stackSource.getHeight() * xyScale ) );
@@ -519,6 +776,42 @@ public class ZPositionCorrection implements PlugIn
 		return matrix;
 	}
 
+	/**
+	 * @return full matrix with the band of matrix and NaN elsewhere
+	 */
+	public static FloatProcessor toFloatProcessor( final BandedMatrix< ? > matrix )
+	{
+		final int n = ( int ) matrix.dimension( 0 );
+		final FloatProcessor fp = new FloatProcessor( n, n );
+		for ( int y = 0; y < n; ++y )
+			for ( int x = 0; x < n; ++x )
+				fp.setf( x, y, ( float ) matrix.get( x, y ) );
+		return fp;
+	}
+
+	/**
+	 * @return writer into a full n x n matrix, e.g. from
+	 *         {@link #createEmptyMatrix(int)}
+	 */
+	public static BandWriter asBandWriter( final FloatProcessor matrix )
+	{
+		return ( x, y, value ) -> {
+			matrix.setf( ( int ) x, ( int ) y, ( float ) value );
+			matrix.setf( ( int ) y, ( int ) x, ( float ) value );
+		};
+	}
+
+	/**
+	 * @return band matrix with unit diagonal and NaN elsewhere
+	 */
+	public static BandedMatrix< FloatType > createEmptyMatrix( final int height, final int range )
+	{
+		final BandedMatrix< FloatType > matrix = BandedMatrix.floats( height, range );
+		for ( int i = 0; i < height; ++i )
+			matrix.setSymmetric( i, i, 1.0 );
+		return matrix;
+	}
+
 	public static ImagePlus getFileFromOption( final String path )
 	{
 		return path.equals( "" ) ? IJ.getImage() : ( new File( path ).isDirectory() ? FolderOpener.open( path ) : new ImagePlus( path ) );
@@ -555,50 +848,37 @@ public class ZPositionCorrection implements PlugIn
 			final int height,
 			final int size )
 	{
-		final ImageStack stack = new ImageStack( width, height, size );
-		final int nThreads = Runtime.getRuntime().availableProcessors();
-		final ExecutorService es = Executors.newFixedThreadPool( nThreads );
-		final ArrayList< Callable< Void > > callables = new ArrayList< Callable< Void > >();
-		for ( int z = 0; z < size; ++z )
-		{
-			final int zeroBased = z;
-			final int oneBased = z + 1;
-			final RandomAccess< T > access = Views.raster( input ).randomAccess();
-
-			access.setPosition( zeroBased, 2 ); // set z
-
-			callables.add( new Callable< Void >()
-			{
-
-				@Override
-				public Void call() throws Exception
-				{
-					final FloatProcessor fp = new FloatProcessor( width, height );
-					for ( int x = 0; x < width; ++x )
-					{
-						access.setPosition( x, 0 );
-						for ( int y = 0; y < height; ++y )
-						{
-							access.setPosition( y, 1 );
-							fp.setf( x, y, access.get().getRealFloat() );
-						}
-					}
-					stack.setProcessor( fp, oneBased );
-					return null;
-				}
-			} );
-		}
+		return generateStack( input, width, height, size, StackGenerator.OutputType.GRAY32 );
+	}
 
+	/**
+	 * Sample input into a stack of the requested type in parallel tiles, see
+	 * {@link StackGenerator}.
+	 */
+	public static < T extends RealType< T > > ImageStack generateStack(
+			final RealRandomAccessible< T > input,
+			final int width,
+			final int height,
+			final int size,
+			final StackGenerator.OutputType type )
+	{
+		final ExecutorService es = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		final long start = System.nanoTime();
+		final ImageStack stack;
 		try
 		{
-			es.invokeAll( callables );
+			stack = StackGenerator.generate( input, width, height, size, type, StackGenerator.DEFAULT_TILE_SIZE, StackGenerator.DEFAULT_TILE_SIZE, es );
 		}
-		catch ( final InterruptedException e )
+		catch ( final InterruptedException | ExecutionException e )
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new RuntimeException( e );
 		}
-
+		finally
+		{
+			es.shutdown();
+		}
+		final double seconds = ( System.nanoTime() - start ) * 1e-9;
+		IJ.log( String.format( "Generated %d slices in %.2fs (%.1f slices/s).", size, seconds, size / seconds ) );
 		return stack;
 	}
 
@@ -635,21 +915,13 @@ public class ZPositionCorrection implements PlugIn
 			final ImagePlus stackImp = input == null ? getFileFromOption( renderDialog.getNextString() ) : input;
 			final double displayRangeMin = stackImp.getDisplayRangeMin();
 			final double displayRangeMax = stackImp.getDisplayRangeMax();
-			final RandomAccessibleInterval< DoubleType > stack = convertImagePlus( stackImp );
-
-			final SingleDimensionPermutationTransform permutation1D = new SingleDimensionPermutationTransform( permutationArray, 3, 3, 2 );
-			final SingleDimensionLUTRealTransform lut1D = new SingleDimensionLUTRealTransform( sortedTransform, 3, 3, 2 );
-
-			final RealRandomAccessible< DoubleType > transformed = generateTransformed( stack, permutation1D, lut1D, new DoubleType( Float.NaN ) );
-			final Scale3D scaleTransform = new Scale3D( stackXScale, stackYScale, stackZScale );
-			final RealTransformRealRandomAccessible< DoubleType, InverseRealTransform > scaled = RealViews.transformReal( transformed, scaleTransform );
-			final long[] dim = new long[ stack.numDimensions() ];
-			stack.dimensions( dim );
-			dim[ 0 ] *= stackXScale;
-			dim[ 1 ] *= stackYScale;
-			dim[ 2 ] *= stackZScale;
+			// cells are rendered from the plan on demand, slices outside of
+			// the lut are NaN
+			final RenderPlan plan = RenderPlan.create( sortedTransform, permutationArray, 1, false );
+			final CachedCorrectedSource source = new CachedCorrectedSource( stackImp.getStack(), plan );
+			final double[] voxelSize = new double[] { stackXScale, stackYScale, stackZScale };
 			new Thread( () -> {
-				final Bdv bdv = BdvFunctions.show( scaled, new FinalInterval( dim ), "Transformed stack.", Bdv.options().axisOrder( AxisOrder.XYZ ) );
+				final Bdv bdv = source.show( "Transformed stack.", voxelSize, Bdv.options() );
 				for ( final MinMaxGroup minMax : bdv.getBdvHandle().getSetupAssignments().getMinMaxGroups() )
 					minMax.setRange( displayRangeMin, displayRangeMax );
 				IJ.log( "Showing warped image stack." );
@@ -678,6 +950,8 @@ public class ZPositionCorrection implements PlugIn
 		renderDialog.addNumericField( "voxel size: y", stackYScale, 4 );
 		renderDialog.addNumericField( "voxel size: z", stackZScale, 4 );
 		renderDialog.addNumericField( "Upsample z by", 1, 0 );
+		renderDialog.addFileField( "Write TIFF sequence to (show stack if empty)", "" );
+		renderDialog.addFileField( "Save render plan to (optional)", "" );
 
 		renderDialog.showDialog();
 
@@ -689,81 +963,62 @@ public class ZPositionCorrection implements PlugIn
 		stackYScale = renderDialog.getNextNumber();
 		stackZScale = renderDialog.getNextNumber();
 		int upsampleBy = Math.max( ( int ) renderDialog.getNextNumber(), 1 );
+		final String inputPath = input == null ? renderDialog.getNextString() : null;
+		final String outputPath = renderDialog.getNextString().trim();
+		final String planPath = renderDialog.getNextString().trim();
 
 		if ( doRenderIntoImgPlus )
 		{
-			final ImagePlus stackImp = input == null ? getFileFromOption( renderDialog.getNextString() ) : input;
+			final ImagePlus stackImp = input == null ? getFileFromOption( inputPath ) : input;
 			final double displayRangeMin = stackImp.getDisplayRangeMin();
 			final double displayRangeMax = stackImp.getDisplayRangeMax();
-			final RandomAccessibleInterval< DoubleType > stack = convertImagePlus( stackImp );
-			// TODO use more appropriate img type
-
-			final SingleDimensionPermutationTransform permutation1D = new SingleDimensionPermutationTransform( permutationArray, 1, 1, 0 );
-			final SingleDimensionLUTRealTransform lut1D = new SingleDimensionLUTRealTransform( sortedTransform, 1, 1, 0 );
 
 			final int width = stackImp.getWidth();
 			final int height = stackImp.getHeight();
-			final int depth = stackImp.getStackSize();
-
-			ImageStack resultStack = new ImageStack( width, height );
 
-			double[] zSource = new double[ 1 ];
+			// without upsampling, slices outside the lut show the closest
+			// section
+			final StackRenderer renderer = new StackRenderer( stackImp.getStack(), permutationArray, sortedTransform, upsampleBy, upsampleBy == 1 );
+			final int nThreads = Runtime.getRuntime().availableProcessors();
+			final ExecutorService es = Executors.newFixedThreadPool( nThreads );
+			final ImageStack resultStack;
 
 			IJ.log( "Rendering warped image into stack." );
-
-			if ( upsampleBy == 1 ) {
-				for ( int z = 0; z < depth; ++z ) {
-					zSource[ 0 ] = z;
-					lut1D.applyInverse( zSource, zSource );
-					final double zMapped = zSource[ 0 ];
-					int z1 = Math.min( Math.max( ( int ) Math.floor( zMapped ), 0 ), depth - 1 );
-					int z2 = Math.min( Math.max( ( int ) Math.ceil( zMapped ), 0 ), depth - 1 );
-					int z1Perm = permutation1D.apply( z1 );
-					int z2Perm = permutation1D.apply( z2 );
-
-					if ( z1 == z2 ) {
-						resultStack.addSlice( stackImp.getStack().getProcessor(z1Perm + 1 ).duplicate() );
-					} else {
-						final double w1 = z2 - zMapped;
-						final double w2 = zMapped - z1;
-						ImageProcessor ip1 = stackImp.getStack().getProcessor( z1Perm + 1 );
-						ImageProcessor ip2 = stackImp.getStack().getProcessor( z2Perm + 1 );
-						final ImageProcessor target = ip1.createProcessor( ip1.getWidth(), ip1.getHeight() );
-						interpolate( ip1, ip2, w1, w2, target );
-						resultStack.addSlice( target );
-					}
-
-				}
-			}
-			else
+			try
 			{
-				final Scale scale = new Scale( upsampleBy );
-				final FloatProcessor nanProcessor = new FloatProcessor( width, height );
-				Arrays.fill( ( float[] ) nanProcessor.getPixels(), Float.NaN );
-
-				// only add slices between existing sections, not outside
-				final int scaledDepth = depth * upsampleBy - ( upsampleBy - 1 );
-
-				for ( int z = 0; z < scaledDepth; ++z )
+				if ( !planPath.isEmpty() )
+					renderer.getPlan().write( Paths.get( planPath ) );
+				if ( outputPath.isEmpty() )
 				{
-					zSource[ 0 ] = z;
-					scale.applyInverse( zSource, zSource );
-					lut1D.applyInverse( zSource, zSource );
-					final double zMapped = zSource[ 0 ];
-					resultStack.addSlice( generateInterpolatedProcessor( zMapped, permutation1D, stackImp.getStack(), nanProcessor ) );
+					final StackRenderer.ImageStackWriter writer = new StackRenderer.ImageStackWriter( renderer.getDepth() );
+					renderer.render( writer, es, 2 * nThreads );
+					resultStack = writer.getStack( width, height );
 				}
-
-
+				else
+				{
+					renderer.render( new StackRenderer.TiffSequenceWriter( Paths.get( outputPath ), "z-spacing-", renderer.getDepth() ), es, 2 * nThreads );
+					IJ.log( "Wrote warped image stack to " + outputPath + "." );
+					return new ValuePair<>( input, new double[] { stackXScale, stackYScale, stackZScale / upsampleBy } );
+				}
+			}
+			catch ( final InterruptedException | ExecutionException | IOException e )
+			{
+				IJ.handleException( e );
+				return new ValuePair<>( input, new double[] { stackXScale, stackYScale, stackZScale } );
+			}
+			finally
+			{
+				es.shutdown();
 			}
 
-			final ImagePlus imp = new ImagePlus("Z-Spacing: " + input.getTitle(), resultStack );
+			final ImagePlus imp = new ImagePlus("Z-Spacing: " + stackImp.getTitle(), resultStack );
 			imp.show();
 			imp.setDisplayRange( displayRangeMin, displayRangeMax );
 			final Calibration calibration = stackImp.getCalibration().copy();
 			calibration.pixelWidth = stackXScale;
 			calibration.pixelHeight = stackYScale;
 			calibration.pixelDepth = stackZScale / upsampleBy;
-			imp.setDimensions( 1, ( int ) stack.dimension( 2 ), 1 );
+			imp.setDimensions( 1, resultStack.getSize(), 1 );
 			imp.setCalibration( calibration );
 
 			IJ.log( "Rendered warped image stack." );
@@ -772,91 +1027,4 @@ public class ZPositionCorrection implements PlugIn
 		return new ValuePair<>( input, new double[] { stackXScale, stackYScale, stackZScale } );
 	}
 
-	private static < T extends RealType< T > > RandomAccessibleInterval< DoubleType > convertImagePlus( ImagePlus imp )
-	{
-		return Converters.convert(
-				( RandomAccessibleInterval< T > ) ImageJFunctions.< T >wrapReal( imp ),
-				new RealDoubleConverter<>(),
-				new DoubleType() );
-	}
-
-	private static ImageProcessor generateInterpolatedProcessor(
-			final double zMapped,
-			final SingleDimensionPermutationTransform permutation1D,
-			final ImageStack stack,
-			final FloatProcessor nanProcessor
-	)
-	{
-		final int depth = stack.getSize();
-		int z1 = ( int ) Math.floor( zMapped );
-		int z2 = ( int ) Math.ceil( zMapped );
-		final double w1 = z2 - zMapped;
-		final double w2 = zMapped - z1;
-
-		final int width = nanProcessor.getWidth();
-		final int height = nanProcessor.getHeight();
-		final int size = width * height;
-
-		if ( z1 == z2 && z1 >= 0 && z1 < depth )
-		{
-			int z1Perm = permutation1D.apply( z1 );
-			return stack.getProcessor(z1Perm + 1 ).duplicate();
-		}
-
-		if ( z1 < 0 || z1 >= depth || z2 < 0 || z2 >= depth )
-		{
-			final ImageProcessor target = stack.getProcessor(1).createProcessor( width, height );
-			for ( int i = 0; i < size; ++i )
-				target.setf( i, nanProcessor.getf( i ) );
-			return target;
-		}
-
-		int z1Perm = permutation1D.apply( z1 );
-		int z2Perm = permutation1D.apply( z2 );
-
-		ImageProcessor ip1 = stack.getProcessor( z1Perm + 1 );
-		ImageProcessor ip2 = stack.getProcessor( z2Perm + 1 );
-		final ImageProcessor target = ip1.createProcessor( ip1.getWidth(), ip1.getHeight() );
-		interpolate( ip1, ip2, w1, w2, target );
-		return target;
-	}
-
-	private static void interpolate(
-			ImageProcessor ip1,
-			ImageProcessor ip2,
-			double w1,
-			double w2,
-			ImageProcessor target
-			)
-	{
-		interpolate(
-				SourcePixelReader.forImageProcessor( ip1 ),
-				SourcePixelReader.forImageProcessor( ip2 ),
-				w1,
-				w2,
-				TargetPixelWriter.forImageProcessor( target ),
-				target.getWidth() * target.getHeight()
-		);
-	}
-
-	private static void interpolate(
-			SourcePixelReader r1,
-			SourcePixelReader r2,
-			double w1,
-			double w2,
-			TargetPixelWriter t,
-			int size
-			)
-	{
-		double norm = 1.0 / ( w1 + w2 );
-		for ( int i = 0; i < size; ++i )
-		{
-			final double v1 = w1 * r1.valueAt( i );
-			final double v2 = w2 * r2.valueAt( i );
-			t.setValueAt( i, ( v1 + v2 ) * norm );
-		}
-	}
-
-
-
 }
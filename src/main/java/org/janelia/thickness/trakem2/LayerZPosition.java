@@ -40,19 +40,28 @@ package org.janelia.thickness.trakem2;
 import java.awt.Color;
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.janelia.thickness.inference.InferFromMatrix;
 import org.janelia.thickness.inference.Options;
 import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.plugin.MaskedFloatNCC;
+import org.janelia.thickness.plugin.ZPositionCorrection;
+import org.janelia.utility.BandWriter;
+import org.janelia.utility.BandedMatrix;
+import org.janelia.utility.LRUCache;
+import org.janelia.utility.SimilarityCache;
+import org.janelia.utility.SlidingWindowSimilarity;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -85,6 +94,8 @@ import mpicbg.models.TranslationModel2D;
 import mpicbg.trakem2.align.Align;
 import mpicbg.trakem2.align.Align.Param;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.type.numeric.real.FloatType;
 
@@ -113,6 +124,9 @@ public class LayerZPosition implements TPlugIn
 
 	static protected boolean showMatrix = true;
 
+	/* directory of the similarity cache, no cache if empty */
+	static protected String cacheDirectory = "";
+
 	static protected Param siftParam = Align.param.clone();
 
 	final static protected String[] similarityMethods = new String[] { "NCC (aligned)", "SIFT consensus (unaligned)" };
@@ -239,6 +253,79 @@ public class LayerZPosition implements TPlugIn
 			return ( int[] ) ip.getPixels();
 	}
 
+	/*
+	 * Rendered layer converted to gray values and a bitset of valid pixels
+	 * (see MaskedFloatNCC.Section#fromARGB). Recently used sections are kept
+	 * in renderCache for the duration of a run.
+	 */
+	static private MaskedFloatNCC.Section getSection(
+			final Layer layer,
+			final Rectangle fov,
+			final double s,
+			final LRUCache< String, MaskedFloatNCC.Section > renderCache ) throws ExecutionException
+	{
+		final String key = SimilarityCache.key( layerKey( layer, fov ), fov.toString(), Double.toString( s ) );
+		try
+		{
+			return renderCache.get( key, () -> {
+				final int[] argb = getPixels( layer, fov, s );
+				return argb == null ? null : MaskedFloatNCC.Section.fromARGB( argb );
+			} );
+		}
+		catch ( final Exception e )
+		{
+			throw new ExecutionException( e );
+		}
+	}
+
+	/* identify a rendered layer by files, modification times, transforms and display ranges of its patches */
+	static private String layerKey( final Layer layer, final Rectangle fov )
+	{
+		final ArrayList< String > parts = new ArrayList< String >();
+		for ( final Displayable d : layer.getDisplayables( Patch.class, fov ) )
+			if ( d.isVisible() )
+			{
+				final Patch patch = ( Patch ) d;
+				final String path = patch.getImageFilePath();
+				parts.add( String.valueOf( path ) );
+				parts.add( Long.toString( path == null ? 0 : new File( path ).lastModified() ) );
+				parts.add( patch.getAffineTransform().toString() );
+				parts.add( patch.getMin() + " " + patch.getMax() + " " + patch.getAlpha() );
+				parts.add( patch.hasCoordinateTransform() ? patch.getCoordinateTransform().toDataString() : "" );
+			}
+		return SimilarityCache.key( parts.toArray( new String[ parts.size() ] ) );
+	}
+
+	/* open similarity cache for context, null if no cache directory is set */
+	static private SimilarityCache openCache( final String context ) throws ExecutionException
+	{
+		if ( cacheDirectory == null || cacheDirectory.trim().isEmpty() )
+			return null;
+		try
+		{
+			return new SimilarityCache( Paths.get( cacheDirectory.trim() ), context );
+		}
+		catch ( final IOException e )
+		{
+			throw new ExecutionException( e );
+		}
+	}
+
+	static private void saveCache( final SimilarityCache cache ) throws ExecutionException
+	{
+		if ( cache == null )
+			return;
+		try
+		{
+			cache.save();
+		}
+		catch ( final IOException e )
+		{
+			throw new ExecutionException( e );
+		}
+		Utils.log( "Reused " + cache.getHits() + " of " + ( cache.getHits() + cache.getMisses() ) + " similarities from " + cache.getFile() );
+	}
+
 	static public void optimize(
 			final List< Layer > layers,
 			final FloatProcessor matrix,
@@ -248,6 +335,20 @@ public class LayerZPosition implements TPlugIn
 			final int innerIter,
 			final double innerReg,
 			final boolean reord ) throws Exception
+	{
+		final RandomAccessibleInterval< FloatType > raMatrix = ImagePlusImgs.from( new ImagePlus( "", matrix ) );
+		optimize( layers, raMatrix, rad, iter, reg, innerIter, innerReg, reord );
+	}
+
+	static public void optimize(
+			final List< Layer > layers,
+			final RandomAccessibleInterval< FloatType > raMatrix,
+			final int rad,
+			final int iter,
+			final double reg,
+			final int innerIter,
+			final double innerReg,
+			final boolean reord ) throws Exception
 	{
 		final Options options = Options.generateDefaultOptions();
 		options.comparisonRange = rad;
@@ -272,8 +373,6 @@ public class LayerZPosition implements TPlugIn
 		final InferFromMatrix inference =
 				new InferFromMatrix( new GlobalCorrelationFitAverage() );
 
-		final RandomAccessibleInterval< FloatType > raMatrix = ImagePlusImgs.from( new ImagePlus( "", matrix ) );
-
 		final double[] lutCorrected = inference.estimateZCoordinates( raMatrix, lut, options );
 
 		IJ.log( Arrays.toString( lutCorrected ) );
@@ -282,96 +381,139 @@ public class LayerZPosition implements TPlugIn
 			layers.get( i ).setZ( lutCorrected[ i ] / zScale + zMin );
 	}
 
-	static private FloatProcessor initMatrix( final int size )
+	static private BandedMatrix< FloatType > initMatrix( final int size, final int range )
 	{
-		final FloatProcessor ip = new FloatProcessor( size, size );
-		final float[] ipPixels = ( float[] ) ip.getPixels();
-		for ( int i = 0; i < ipPixels.length; ++i )
-			ipPixels[ i ] = Float.NaN;
-		ip.setMinAndMax( -0.2, 1.0 );
+		return BandedMatrix.floats( size, range );
+	}
 
+	/* full matrix as returned before the banded storage */
+	static private FloatProcessor toFloatProcessor( final BandedMatrix< FloatType > matrix )
+	{
+		final FloatProcessor ip = ZPositionCorrection.toFloatProcessor( matrix );
+		ip.setMinAndMax( -0.2, 1.0 );
 		return ip;
 	}
 
+	/* show the band of the matrix, shares pixels with matrix */
+	static private ImagePlus showMatrix( final BandedMatrix< FloatType > matrix )
+	{
+		final ArrayImg< FloatType, ? > strip = matrix.getStrip();
+		final float[] pixels = ( ( FloatArray ) strip.update( null ) ).getCurrentStorageArray();
+		final FloatProcessor ip = new FloatProcessor( ( int ) strip.dimension( 0 ), ( int ) strip.dimension( 1 ), pixels );
+		ip.setMinAndMax( -0.2, 1.0 );
+		final ImagePlus impMatrix = new ImagePlus( "Similarity matrix", ip );
+		impMatrix.show();
+		return impMatrix;
+	}
+
+	/**
+	 * @deprecated use
+	 *             {@link #calculateBandedNCCSimilarity(List, Rectangle, int, double)}
+	 */
+	@Deprecated
 	static public FloatProcessor calculateNCCSimilarity(
 			final List< Layer > layers,
 			final Rectangle fov,
 			final int r,
 			final double s ) throws InterruptedException, ExecutionException
 	{
-		final FloatProcessor ip = initMatrix( layers.size() );
+		return toFloatProcessor( calculateBandedNCCSimilarity( layers, fov, r, s ) );
+	}
 
-		final ImagePlus impMatrix;
-		if ( showMatrix )
-		{
-			impMatrix = new ImagePlus( "Similarity matrix", ip );
-			impMatrix.show();
-		}
-		else
-			impMatrix = null;
+	static public BandedMatrix< FloatType > calculateBandedNCCSimilarity(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final double s ) throws InterruptedException, ExecutionException
+	{
+		final BandedMatrix< FloatType > matrix = initMatrix( layers.size(), r );
+		final SimilarityCache cache = openCache( nccContext( fov, s ) );
+		calculateNCCSimilarity( layers, fov, r, s, matrix, showMatrix ? showMatrix( matrix ) : null, cache );
+		saveCache( cache );
+		return matrix;
+	}
 
-		for ( int i = 0; i < layers.size(); ++i )
-		{
-			final int fi = i;
-			final Layer li = layers.get( i );
-			final int[] argbi = getPixels( li, fov, s );
-			if ( argbi == null )
-				continue;
+	static private String nccContext( final Rectangle fov, final double s )
+	{
+		return "NCC (aligned) fov=" + fov + " scale=" + s;
+	}
 
-			ip.setf( fi, fi, 1.0f );
+	/**
+	 * Write NCC similarities into matrix, e.g. a
+	 * {@link org.janelia.utility.StripFileWriter} to stream them to disk.
+	 */
+	static public void calculateNCCSimilarity(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final double s,
+			final BandWriter matrix ) throws InterruptedException, ExecutionException
+	{
+		calculateNCCSimilarity( layers, fov, r, s, matrix, null, null );
+	}
 
-			final ExecutorService exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
-			final ArrayList< Future< FloatProcessor > > tasks = new ArrayList< Future< FloatProcessor > >();
+	/**
+	 * Write NCC similarities into matrix, computing only those that are not
+	 * in cache. The cache is updated but not saved.
+	 */
+	static public void calculateNCCSimilarity(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final double s,
+			final BandWriter matrix,
+			final SimilarityCache cache ) throws InterruptedException, ExecutionException
+	{
+		calculateNCCSimilarity( layers, fov, r, s, matrix, null, cache );
+	}
 
-			for ( int j = i + 1; j < layers.size() && j <= i + r; ++j )
+	static private void calculateNCCSimilarity(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final double s,
+			final BandWriter matrix,
+			final ImagePlus impMatrix,
+			final SimilarityCache cache ) throws InterruptedException, ExecutionException
+	{
+		/*
+		 * each layer is rendered at most once, renders are submitted to the
+		 * pool ahead of the comparisons, i.e. at most r + nThreads rendered
+		 * layers are referenced at any time. Pool and rendered layers are
+		 * released when the run is done.
+		 */
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		final ExecutorService exec = Executors.newFixedThreadPool( nThreads );
+		final LRUCache< String, MaskedFloatNCC.Section > renderCache = new LRUCache<>(
+				Runtime.getRuntime().maxMemory() / 4,
+				section -> 4L * section.getPixels().length + 8L * section.getMask().length );
+		final SlidingWindowSimilarity.Similarity< MaskedFloatNCC.Section > ncc = MaskedFloatNCC::ncc;
+		/* redraw on the calling thread whenever a row is complete */
+		final Runnable redraw = impMatrix == null ? null : impMatrix::updateAndDraw;
+		try
+		{
+			if ( cache == null )
 			{
-				final int fj = j;
-				final Layer lj = layers.get( j );
-				tasks.add( exec.submit( new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						final int[] argbj = getPixels( lj, fov, s );
-						if ( argbj != null )
-						{
-							final Double d = new RealSumARGBNCC( argbi, argbj ).call();
-							ip.setf( fi, fj, d.floatValue() );
-							ip.setf( fj, fi, d.floatValue() );
-							if ( impMatrix != null )
-								impMatrix.updateAndDraw();
-						}
-					}
-				},
-						ip ) );
+				final SlidingWindowSimilarity< MaskedFloatNCC.Section > similarities = new SlidingWindowSimilarity<>( r, ncc, matrix, exec, nThreads );
+				similarities.run( layers.size(), z -> getSection( layers.get( z ), fov, s, renderCache ), redraw );
 			}
-
-			for ( final Future< FloatProcessor > fu : tasks )
+			else
 			{
-				try
-				{
-					fu.get();
-				}
-				catch ( final InterruptedException e )
-				{
-					exec.shutdownNow();
-					throw e;
-				}
-				catch ( final ExecutionException e )
-				{
-					exec.shutdownNow();
-					throw e;
-				}
+				/* layers are rendered only if a pair is missing in the cache */
+				final SlidingWindowSimilarity< SimilarityCache.Entry< MaskedFloatNCC.Section > > similarities = new SlidingWindowSimilarity<>( r, cache.wrap( ncc ), matrix, exec, nThreads );
+				similarities.run( layers.size(), z -> {
+					final Layer layer = layers.get( z );
+					return new SimilarityCache.Entry<>( layerKey( layer, fov ), () -> getSection( layer, fov, s, renderCache ) );
+				}, redraw );
 			}
-
-			tasks.clear();
-			exec.shutdown();
-
-			if ( impMatrix != null )
-				impMatrix.updateAndDraw();
 		}
-
-		return ip;
+		finally
+		{
+			exec.shutdownNow();
+			renderCache.clear();
+		}
+		if ( impMatrix != null )
+			impMatrix.updateAndDraw();
 	}
 
 	/**
@@ -395,7 +537,7 @@ public class LayerZPosition implements TPlugIn
 			final double innerReg,
 			final boolean reord ) throws InterruptedException, ExecutionException
 	{
-		final FloatProcessor matrix = calculateNCCSimilarity( layers, fov, r, s );
+		final BandedMatrix< FloatType > matrix = calculateBandedNCCSimilarity( layers, fov, r, s );
 
 		try
 		{
@@ -496,113 +638,166 @@ public class LayerZPosition implements TPlugIn
 		return 0.0;
 	}
 
-	/* extract features */
-	static private List< ArrayList< Feature > > extractFeatures(
+	/*
+	 * Extract features of layer k and, once done, start extraction of layer
+	 * k + step. Starting step layers at once keeps step threads busy with
+	 * extraction while matches of the layers extracted so far are scheduled
+	 * in between.
+	 */
+	static private void extractFeatures(
 			final List< Layer > layers,
-			final Param param,
-			final Rectangle fov ) throws InterruptedException
+			final boolean[] needed,
+			final int k,
+			final int step,
+			final Rectangle fov,
+			final double s,
+			final ThreadLocal< SIFT > ijSIFT,
+			final List< CompletableFuture< ArrayList< Feature > > > features,
+			final ExecutorService exec )
 	{
-		final double s = Math.min( 1.0, Math.min( param.sift.maxOctaveSize / fov.getWidth(), param.sift.maxOctaveSize / fov.getHeight() ) );
-
-		@SuppressWarnings( "unchecked" )
-		final ArrayList< Feature >[] featuresArray = new ArrayList[ layers.size() ];
-		final AtomicInteger i = new AtomicInteger( 0 );
-		final ArrayList< Thread > threads = new ArrayList< Thread >();
-		for ( int t = 0; t < Runtime.getRuntime().availableProcessors(); ++t )
-		{
-			final Thread thread = new Thread(
-					new Runnable()
-					{
-						@Override
-						public void run()
-						{
-							final FloatArray2DSIFT sift = new FloatArray2DSIFT( param.sift );
-							final SIFT ijSIFT = new SIFT( sift );
-							for ( int k = i.getAndIncrement(); k < layers.size(); k = i.getAndIncrement() )
-							{
-								final ArrayList< Feature > features = extract( ijSIFT, getColorProcessor( layers.get( k ), fov, s ) );
-								IJ.log( k + ": " + features.size() + " features extracted" );
-								featuresArray[ k ] = features;
-							}
-						}
-					} );
-			threads.add( thread );
-			thread.start();
-		}
-		for ( final Thread t : threads )
-			t.join();
-
-		return Arrays.asList( featuresArray );
+		if ( k >= layers.size() )
+			return;
+		CompletableFuture.supplyAsync( () -> {
+			if ( !needed[ k ] )
+				return new ArrayList< Feature >();
+			final ColorProcessor ip = getColorProcessor( layers.get( k ), fov, s );
+			final ArrayList< Feature > f = ip == null ? new ArrayList< Feature >() : extract( ijSIFT.get(), ip );
+			IJ.log( k + ": " + f.size() + " features extracted" );
+			return f;
+		}, exec ).whenComplete( ( f, t ) -> {
+			if ( t == null )
+				features.get( k ).complete( f );
+			else
+				features.get( k ).completeExceptionally( t );
+			extractFeatures( layers, needed, k + step, step, fov, s, ijSIFT, features, exec );
+		} );
 	}
 
+	/**
+	 * @deprecated use
+	 *             {@link #calculateBandedSIFTSimilarity(List, Rectangle, int, Param)}
+	 */
+	@Deprecated
 	static public FloatProcessor calculateSIFTSimilarity(
 			final List< Layer > layers,
 			final Rectangle fov,
 			final int r,
 			final Param p ) throws InterruptedException, ExecutionException
 	{
-		final List< ArrayList< Feature > > featuresList = extractFeatures( layers, p, fov );
+		return toFloatProcessor( calculateBandedSIFTSimilarity( layers, fov, r, p ) );
+	}
 
-		final FloatProcessor ip = initMatrix( layers.size() );
+	/**
+	 * SIFT consensus similarities. Feature extraction and matching of all
+	 * pairs within range are scheduled as a single pool of tasks: extraction
+	 * is pipelined in z order and each pair is matched as soon as the
+	 * features of both layers are available. Results are written into the
+	 * matrix as they complete.
+	 */
+	static public BandedMatrix< FloatType > calculateBandedSIFTSimilarity(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final Param p ) throws InterruptedException, ExecutionException
+	{
+		final int n = layers.size();
+		final BandedMatrix< FloatType > matrix = initMatrix( n, r );
+
+		final SimilarityCache cache = openCache( siftContext( fov, p ) );
+		final String[] keys = new String[ n ];
+		if ( cache != null )
+			for ( int i = 0; i < n; ++i )
+				keys[ i ] = layerKey( layers.get( i ), fov );
+
+		final ImagePlus impMatrix = showMatrix ? showMatrix( matrix ) : null;
+
+		/* use cached pairs, extract features only for layers that are part of a missing pair */
+		final boolean[] needed = new boolean[ n ];
+		final ArrayList< int[] > missing = new ArrayList< int[] >();
+		for ( int i = 0; i < n; ++i )
+			for ( int k = i + 1; k < n && k <= i + r; ++k )
+			{
+				final Double cached = cache == null ? null : cache.get( keys[ i ], keys[ k ] );
+				if ( cached == null )
+				{
+					missing.add( new int[] { i, k } );
+					needed[ i ] = true;
+					needed[ k ] = true;
+				}
+				else if ( !Double.isNaN( cached ) )
+				{
+					matrix.setSymmetric( i, i, 1.0 );
+					matrix.setSymmetric( k, k, 1.0 );
+					matrix.setSymmetric( i, k, cached );
+				}
+			}
 
-		final ImagePlus impMatrix;
-		if ( showMatrix )
+		final double s = Math.min( 1.0, Math.min( p.sift.maxOctaveSize / fov.getWidth(), p.sift.maxOctaveSize / fov.getHeight() ) );
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		final ExecutorService exec = Executors.newFixedThreadPool( nThreads );
+		try
 		{
-			impMatrix = new ImagePlus( "Similarity matrix", ip );
-			impMatrix.show();
+			final ThreadLocal< SIFT > ijSIFT = ThreadLocal.withInitial( () -> new SIFT( new FloatArray2DSIFT( p.sift ) ) );
+			final List< CompletableFuture< ArrayList< Feature > > > features = new ArrayList<>();
+			for ( int k = 0; k < n; ++k )
+				features.add( new CompletableFuture< ArrayList< Feature > >() );
+			for ( int k = 0; k < nThreads; ++k )
+				extractFeatures( layers, needed, k, nThreads, fov, s, ijSIFT, features, exec );
+
+			final ArrayList< CompletableFuture< Void > > tasks = new ArrayList< CompletableFuture< Void > >();
+			for ( final int[] pair : missing )
+			{
+				final int i = pair[ 0 ];
+				final int k = pair[ 1 ];
+				tasks.add( features.get( i ).thenAcceptBothAsync( features.get( k ), ( f1, f2 ) -> {
+					if ( f1.size() > 0 && f2.size() > 0 )
+					{
+						final float inlierRatio = ( float ) match( p, f1, f2 );
+						if ( cache != null )
+							cache.put( keys[ i ], keys[ k ], inlierRatio );
+						matrix.setSymmetric( i, i, 1.0 );
+						matrix.setSymmetric( k, k, 1.0 );
+						matrix.setSymmetric( i, k, inlierRatio );
+					}
+					else if ( cache != null )
+						cache.put( keys[ i ], keys[ k ], Double.NaN );
+				}, exec ) );
+			}
+			/* pairs are in z order, redraw on the calling thread as they complete */
+			for ( final CompletableFuture< Void > task : tasks )
+			{
+				task.get();
+				if ( impMatrix != null )
+					impMatrix.updateAndDraw();
+			}
 		}
-		else
-			impMatrix = null;
-
-		/* match */
-		for ( int i = 0; i < layers.size(); ++i )
+		finally
 		{
-			final int fi = i;
-			final ArrayList< Feature > f1 = featuresList.get( fi );
-			if ( f1 == null || f1.size() == 0 )
-				continue;
+			exec.shutdownNow();
+		}
 
-			ip.setf( fi, fi, 1.0f );
+		if ( impMatrix != null )
+			impMatrix.updateAndDraw();
 
-			final AtomicInteger j = new AtomicInteger( fi + 1 );
-			final ArrayList< Thread > threads = new ArrayList< Thread >();
-			for ( int t = 0; t < Runtime.getRuntime().availableProcessors(); ++t )
-			{
-				final Thread thread = new Thread(
-						new Runnable()
-						{
-							@Override
-							public void run()
-							{
-								for ( int k = j.getAndIncrement(); k < layers.size() && k < fi + radius; k = j.getAndIncrement() )
-								{
-									final ArrayList< Feature > f2 = featuresList.get( k );
-									if ( f2 == null || f2.size() == 0 )
-									{
-										if ( impMatrix != null )
-											impMatrix.updateAndDraw();
-										continue;
-									}
-
-									final float inlierRatio = ( float ) match( p, f1, f2 );
-									ip.setf( fi, k, inlierRatio );
-									ip.setf( k, fi, inlierRatio );
-									if ( impMatrix != null )
-										impMatrix.updateAndDraw();
-								}
-							}
-						} );
-				threads.add( thread );
-				thread.start();
-			}
-			for ( final Thread t : threads )
-				t.join();
+		saveCache( cache );
 
-			if ( impMatrix != null )
-				impMatrix.updateAndDraw();
-		}
+		return matrix;
+	}
 
-		return ip;
+	static private String siftContext( final Rectangle fov, final Param p )
+	{
+		return "SIFT consensus (unaligned) fov=" + fov +
+				" fdSize=" + p.sift.fdSize +
+				" fdBins=" + p.sift.fdBins +
+				" maxOctaveSize=" + p.sift.maxOctaveSize +
+				" minOctaveSize=" + p.sift.minOctaveSize +
+				" steps=" + p.sift.steps +
+				" initialSigma=" + p.sift.initialSigma +
+				" rod=" + p.rod +
+				" expectedModelIndex=" + p.expectedModelIndex +
+				" maxEpsilon=" + p.maxEpsilon +
+				" minInlierRatio=" + p.minInlierRatio +
+				" minNumInliers=" + p.minNumInliers;
 	}
 
 	static public void runSIFT(
@@ -611,7 +806,7 @@ public class LayerZPosition implements TPlugIn
 			final int r,
 			final Param p ) throws InterruptedException, ExecutionException
 	{
-		final FloatProcessor matrix = calculateSIFTSimilarity( layers, fov, r, p );
+		final BandedMatrix< FloatType > matrix = calculateBandedSIFTSimilarity( layers, fov, r, p );
 
 		try
 		{
@@ -671,6 +866,7 @@ public class LayerZPosition implements TPlugIn
 				"Similarity_method :",
 				similarityMethods, similarityMethod );
 		gd.addCheckbox( "show_matrix", showMatrix );
+		gd.addStringField( "similarity_cache :", cacheDirectory, 30 );
 		gd.showDialog();
 		if ( gd.wasCanceled() )
 			return null;
@@ -683,6 +879,7 @@ public class LayerZPosition implements TPlugIn
 		final int method = gd.getNextChoiceIndex();
 		similarityMethod = similarityMethods[ method ];
 		showMatrix = gd.getNextBoolean();
+		cacheDirectory = gd.getNextString();
 		try
 		{
 			switch ( method )
@@ -0,0 +1,254 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Refine a similarity matrix that was computed on a coarse (downsampled)
+ * proxy of the data: Select the pairs whose coarse similarity is not
+ * trustworthy, recompute only those at full resolution and map all remaining
+ * coarse similarities onto the full resolution scale. A pair (z-d,z) is
+ * selected if
+ * <ul>
+ * <li>its coarse similarity is NaN,</li>
+ * <li>it violates the decay of similarity with distance, i.e. it is more
+ * similar than the pair at distance d-1 in the same row or column by more
+ * than tolerance (both pairs are selected),</li>
+ * <li>its coarse similarity is below criticalSimilarity, where the fit is
+ * flat and small errors translate into large changes in distance, or</li>
+ * <li>z-d is a calibration section (every calibrationStep-th section).</li>
+ * </ul>
+ * Downsampling smooths sections and therefore inflates similarities. The
+ * calibration pairs are used to fit a linear map from coarse to full
+ * resolution similarities that is applied to all pairs that are not
+ * recomputed.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class AdaptiveRefinement
+{
+
+	private final double tolerance;
+
+	private final double criticalSimilarity;
+
+	private final int calibrationStep;
+
+	/**
+	 * @param tolerance
+	 *            allowed increase of similarity with distance
+	 * @param criticalSimilarity
+	 *            recompute all pairs with lower coarse similarity
+	 * @param calibrationStep
+	 *            recompute all pairs of every calibrationStep-th section, no
+	 *            calibration if not positive
+	 */
+	public AdaptiveRefinement( final double tolerance, final double criticalSimilarity, final int calibrationStep )
+	{
+		super();
+		this.tolerance = tolerance;
+		this.criticalSimilarity = criticalSimilarity;
+		this.calibrationStep = calibrationStep;
+	}
+
+	/**
+	 * @return selected[z][d-1] is true if pair (z-d,z) should be recomputed
+	 */
+	public boolean[][] select( final BandedMatrix< ? > coarse )
+	{
+		final int n = ( int ) coarse.dimension( 0 );
+		final int range = coarse.getRange();
+		final boolean[][] selected = new boolean[ n ][ range ];
+		for ( int z = 0; z < n; ++z )
+			for ( int d = 1; d <= range && d <= z; ++d )
+			{
+				final int x = z - d;
+				final double value = coarse.get( x, z );
+				if ( Double.isNaN( value ) || value < criticalSimilarity || isCalibration( x ) )
+					selected[ z ][ d - 1 ] = true;
+				if ( d > 1 )
+				{
+					// same row (x fixed) and same column (z fixed) at distance
+					// d-1
+					if ( value > coarse.get( x, z - 1 ) + tolerance )
+					{
+						selected[ z ][ d - 1 ] = true;
+						selected[ z - 1 ][ d - 2 ] = true;
+					}
+					if ( value > coarse.get( x + 1, z ) + tolerance )
+					{
+						selected[ z ][ d - 1 ] = true;
+						selected[ z ][ d - 2 ] = true;
+					}
+				}
+			}
+		return selected;
+	}
+
+	/**
+	 * @return number of selected pairs
+	 */
+	public static int count( final boolean[][] selected )
+	{
+		int count = 0;
+		for ( final boolean[] row : selected )
+			for ( final boolean s : row )
+				if ( s )
+					++count;
+		return count;
+	}
+
+	/**
+	 * Compute the selected pairs in z order. Only sections that are part of
+	 * any selected pair are requested from source.
+	 *
+	 * @param selected
+	 *            as returned by {@link #select}
+	 * @param source
+	 *            full resolution sections
+	 * @param similarity
+	 * @param fine
+	 *            receives similarities of selected pairs
+	 * @param es
+	 *            may be null, see {@link SlidingWindowSimilarity}
+	 */
+	public static < S > void refine(
+			final boolean[][] selected,
+			final SlidingWindowSimilarity.Source< S > source,
+			final SlidingWindowSimilarity.Similarity< S > similarity,
+			final BandWriter fine,
+			final ExecutorService es ) throws InterruptedException, ExecutionException
+	{
+		final int n = selected.length;
+		final int range = n == 0 ? 0 : selected[ 0 ].length;
+		final boolean[] needed = new boolean[ n ];
+		for ( int z = 0; z < n; ++z )
+			for ( int d = 1; d <= range && d <= z; ++d )
+				if ( selected[ z ][ d - 1 ] )
+				{
+					needed[ z ] = true;
+					needed[ z - d ] = true;
+				}
+
+		final SlidingWindowSimilarity.Similarity< Indexed< S > > selectedSimilarity = ( a, b ) -> {
+			final int d = b.z - a.z;
+			return selected[ b.z ][ d - 1 ] ? similarity.similarity( a.section, b.section ) : Double.NaN;
+		};
+		new SlidingWindowSimilarity<>( range, selectedSimilarity, fine, es ).run(
+				n,
+				z -> {
+					final S section = needed[ z ] ? source.get( z ) : null;
+					return section == null ? null : new Indexed<>( z, section );
+				} );
+	}
+
+	/**
+	 * Least squares fit of fine = offset + slope * coarse over all pairs of
+	 * calibration sections that are finite in both matrices.
+	 *
+	 * @return { offset, slope }, identity if calibration is disabled or
+	 *         there are not enough distinct coarse similarities
+	 */
+	public double[] calibrate( final BandedMatrix< ? > coarse, final BandedMatrix< ? > fine )
+	{
+		final int n = ( int ) coarse.dimension( 0 );
+		final int range = coarse.getRange();
+		double sumC = 0.0, sumF = 0.0, sumCC = 0.0, sumCF = 0.0;
+		int count = 0;
+		for ( int x = 0; x < n; ++x )
+		{
+			if ( !isCalibration( x ) )
+				continue;
+			for ( int z = x + 1; z <= x + range && z < n; ++z )
+			{
+				final double c = coarse.get( x, z );
+				final double f = fine.get( x, z );
+				if ( Double.isNaN( c ) || Double.isNaN( f ) )
+					continue;
+				sumC += c;
+				sumF += f;
+				sumCC += c * c;
+				sumCF += c * f;
+				++count;
+			}
+		}
+
+		if ( count < 2 )
+			return new double[] { 0.0, 1.0 };
+		final double varC = sumCC - sumC * sumC / count;
+		if ( varC <= 1e-12 * count )
+			return new double[] { 0.0, 1.0 };
+		final double slope = ( sumCF - sumC * sumF / count ) / varC;
+		return new double[] { ( sumF - slope * sumC ) / count, slope };
+	}
+
+	/**
+	 * Write recomputed similarities for selected pairs and calibrated coarse
+	 * similarities (clamped to [-1,1]) for all other pairs into matrix.
+	 */
+	public static void merge(
+			final BandedMatrix< ? > coarse,
+			final BandedMatrix< ? > fine,
+			final boolean[][] selected,
+			final double[] calibration,
+			final BandWriter matrix )
+	{
+		final int n = selected.length;
+		final int range = coarse.getRange();
+		for ( int z = 0; z < n; ++z )
+		{
+			matrix.setSymmetric( z, z, 1.0 );
+			for ( int d = 1; d <= range && d <= z; ++d )
+			{
+				final double value;
+				if ( selected[ z ][ d - 1 ] )
+					value = fine.get( z - d, z );
+				else
+					value = Math.max( -1.0, Math.min( 1.0, calibration[ 0 ] + calibration[ 1 ] * coarse.get( z - d, z ) ) );
+				if ( !Double.isNaN( value ) )
+					matrix.setSymmetric( z - d, z, value );
+			}
+		}
+	}
+
+	private boolean isCalibration( final int z )
+	{
+		return calibrationStep > 0 && z % calibrationStep == 0;
+	}
+
+	private static class Indexed< S >
+	{
+		private final int z;
+
+		private final S section;
+
+		private Indexed( final int z, final S section )
+		{
+			this.z = z;
+			this.section = section;
+		}
+	}
+
+}
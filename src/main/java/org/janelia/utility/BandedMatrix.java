@@ -0,0 +1,240 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Square n x n similarity matrix that only stores the 2 * range + 1 central
+ * diagonals in a ( 2 * range + 1 ) x n strip (layout of
+ * {@link MatrixStripConversion#matrixToStrip}). Entries outside of the band
+ * are NaN and writes to them are ignored.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class BandedMatrix< T extends RealType< T > & NativeType< T > > extends AbstractWrappedInterval< FinalInterval > implements RandomAccessibleInterval< T >, BandWriter
+{
+
+	private final static int N_DIM = 2;
+
+	private final ArrayImg< T, ? > strip;
+
+	private final int range;
+
+	private final long n;
+
+	private final T type;
+
+	/**
+	 * @param strip
+	 *            storage of size ( 2 * range + 1 ) x n
+	 * @param range
+	 */
+	public BandedMatrix( final ArrayImg< T, ? > strip, final int range )
+	{
+		super( new FinalInterval( strip.dimension( 1 ), strip.dimension( 1 ) ) );
+		if ( strip.dimension( 0 ) != 2 * range + 1 )
+			throw new IllegalArgumentException( "Strip width " + strip.dimension( 0 ) + " does not match range " + range + "." );
+		this.strip = strip;
+		this.range = range;
+		this.n = strip.dimension( 1 );
+		this.type = strip.firstElement().createVariable();
+		this.type.setReal( Double.NaN );
+	}
+
+	/**
+	 * @return band matrix of size n x n with all entries NaN
+	 */
+	public static BandedMatrix< FloatType > floats( final int n, final int range )
+	{
+		final ArrayImg< FloatType, FloatArray > strip = ArrayImgs.floats( 2 * range + 1, n );
+		for ( final FloatType t : strip )
+			t.set( Float.NaN );
+		return new BandedMatrix<>( strip, range );
+	}
+
+	/**
+	 * @return band matrix of size n x n with all entries NaN
+	 */
+	public static BandedMatrix< DoubleType > doubles( final int n, final int range )
+	{
+		final ArrayImg< DoubleType, DoubleArray > strip = ArrayImgs.doubles( 2 * range + 1, n );
+		for ( final DoubleType t : strip )
+			t.set( Double.NaN );
+		return new BandedMatrix<>( strip, range );
+	}
+
+	/**
+	 * Copy the band of a matrix.
+	 */
+	public static < U extends RealType< U > > BandedMatrix< DoubleType > doubles( final RandomAccessibleInterval< U > matrix, final int range )
+	{
+		final int n = ( int ) matrix.dimension( 1 );
+		return new BandedMatrix<>( ArrayImgs.doubles( MatrixStripConversion.matrixToDoubleStrip( matrix, range ), 2 * range + 1, n ), range );
+	}
+
+	/**
+	 * @return storage, row y holds entries ( y - range, y ) to ( y + range, y
+	 *         )
+	 */
+	public ArrayImg< T, ? > getStrip()
+	{
+		return strip;
+	}
+
+	public int getRange()
+	{
+		return range;
+	}
+
+	public boolean isInBand( final long x, final long y )
+	{
+		final long d = x - y;
+		return x >= 0 && x < n && y >= 0 && y < n && d >= -range && d <= range;
+	}
+
+	/**
+	 * @return entry (x,y), NaN if outside of band
+	 */
+	public double get( final long x, final long y )
+	{
+		if ( !isInBand( x, y ) )
+			return Double.NaN;
+		final RandomAccess< T > access = strip.randomAccess();
+		access.setPosition( x - y + range, 0 );
+		access.setPosition( y, 1 );
+		return access.get().getRealDouble();
+	}
+
+	@Override
+	public void setSymmetric( final long x, final long y, final double value )
+	{
+		if ( !isInBand( x, y ) )
+			return;
+		final RandomAccess< T > access = strip.randomAccess();
+		access.setPosition( x - y + range, 0 );
+		access.setPosition( y, 1 );
+		access.get().setReal( value );
+		access.setPosition( y - x + range, 0 );
+		access.setPosition( x, 1 );
+		access.get().setReal( value );
+	}
+
+	/**
+	 * Copy band into a dense strip of doubles (layout of
+	 * {@link MatrixStripConversion#matrixToDoubleStrip}).
+	 */
+	public double[] toDoubleStrip()
+	{
+		final double[] result = new double[ ( int ) strip.size() ];
+		final Cursor< T > cursor = Views.flatIterable( strip ).cursor();
+		for ( int i = 0; cursor.hasNext(); ++i )
+			result[ i ] = cursor.next().getRealDouble();
+		return result;
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess()
+	{
+		return new BandedAccess();
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess( final Interval interval )
+	{
+		return randomAccess();
+	}
+
+	@Override
+	public T getType()
+	{
+		return type;
+	}
+
+	public class BandedAccess extends Point implements RandomAccess< T >
+	{
+
+		private final RandomAccess< T > access;
+
+		private final T outside;
+
+		private BandedAccess()
+		{
+			super( N_DIM );
+			this.access = strip.randomAccess();
+			this.outside = type.createVariable();
+		}
+
+		private BandedAccess( final BandedAccess other )
+		{
+			super( other.position.clone() );
+			this.access = other.access.copyRandomAccess();
+			this.outside = other.outside.copy();
+		}
+
+		@Override
+		public T get()
+		{
+			final long x = this.position[ 0 ];
+			final long y = this.position[ 1 ];
+			if ( !isInBand( x, y ) )
+			{
+				// reset in case it was written to
+				outside.setReal( Double.NaN );
+				return outside;
+			}
+			access.setPosition( x - y + range, 0 );
+			access.setPosition( y, 1 );
+			return access.get();
+		}
+
+		@Override
+		public BandedAccess copy()
+		{
+			return copyRandomAccess();
+		}
+
+		@Override
+		public BandedAccess copyRandomAccess()
+		{
+			return new BandedAccess( this );
+		}
+
+	}
+
+}
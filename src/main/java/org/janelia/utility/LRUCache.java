@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread safe least recently used cache that is bounded by the total weight
+ * (e.g. size in bytes) of its values. Values are loaded outside of the lock,
+ * such that concurrent requests for different keys do not block each other.
+ * Concurrent requests for the same key wait for a single load. Null values
+ * are not cached.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class LRUCache< K, V >
+{
+
+	private final long maximumWeight;
+
+	private final ToLongFunction< V > weigher;
+
+	private final LinkedHashMap< K, V > map = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private final HashMap< K, CompletableFuture< V > > loading = new HashMap<>();
+
+	private long weight = 0;
+
+	/**
+	 * @param maximumWeight
+	 *            least recently used values are evicted when the total weight
+	 *            exceeds maximumWeight
+	 * @param weigher
+	 *            weight of a value
+	 */
+	public LRUCache( final long maximumWeight, final ToLongFunction< V > weigher )
+	{
+		super();
+		this.maximumWeight = maximumWeight;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * @return cached value for key or value returned by loader
+	 */
+	public V get( final K key, final Callable< V > loader ) throws Exception
+	{
+		final CompletableFuture< V > future = new CompletableFuture<>();
+		final CompletableFuture< V > existing;
+		synchronized ( this )
+		{
+			final V value = map.get( key );
+			if ( value != null )
+				return value;
+			existing = loading.putIfAbsent( key, future );
+		}
+		if ( existing != null )
+			return await( existing );
+
+		final V value;
+		try
+		{
+			value = loader.call();
+		}
+		catch ( final Exception e )
+		{
+			synchronized ( this )
+			{
+				loading.remove( key );
+			}
+			future.completeExceptionally( e );
+			throw e;
+		}
+		synchronized ( this )
+		{
+			loading.remove( key );
+			if ( value != null )
+				put( key, value );
+		}
+		future.complete( value );
+		return value;
+	}
+
+	private static < V > V await( final CompletableFuture< V > future ) throws Exception
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			// rethrow what the loader threw
+			if ( e.getCause() instanceof Exception )
+				throw ( Exception ) e.getCause();
+			throw e;
+		}
+	}
+
+	public synchronized void put( final K key, final V value )
+	{
+		final V previous = map.put( key, value );
+		if ( previous != null )
+			weight -= weigher.applyAsLong( previous );
+		weight += weigher.applyAsLong( value );
+		final Iterator< Map.Entry< K, V > > it = map.entrySet().iterator();
+		// keep at least the most recent value
+		while ( weight > maximumWeight && map.size() > 1 && it.hasNext() )
+		{
+			final Map.Entry< K, V > eldest = it.next();
+			if ( eldest.getKey().equals( key ) )
+				continue;
+			weight -= weigher.applyAsLong( eldest.getValue() );
+			it.remove();
+		}
+	}
+
+	public synchronized boolean contains( final K key )
+	{
+		return map.containsKey( key );
+	}
+
+	public synchronized int size()
+	{
+		return map.size();
+	}
+
+	public synchronized long getWeight()
+	{
+		return weight;
+	}
+
+	public synchronized void clear()
+	{
+		map.clear();
+		weight = 0;
+	}
+
+}
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Read-only similarity strip of size ( 2 * range + 1 ) x n backed by a
+ * memory mapped {@link StripFile}. Writes to the returned {@link FloatType}s
+ * are not persisted. Use
+ * {@link MatrixStripConversion#stripToMatrix(RandomAccessibleInterval, net.imglib2.type.Type)}
+ * for a matrix view.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class MappedStrip extends AbstractWrappedInterval< FinalInterval > implements RandomAccessibleInterval< FloatType >
+{
+
+	private final static int N_DIM = 2;
+
+	private final FloatBuffer data;
+
+	private final long n;
+
+	private final int range;
+
+	private final int width;
+
+	MappedStrip( final MappedByteBuffer buffer, final long n, final int range )
+	{
+		super( new FinalInterval( 2 * range + 1, n ) );
+		this.data = buffer.order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer();
+		this.n = n;
+		this.range = range;
+		this.width = 2 * range + 1;
+	}
+
+	public long getNumSections()
+	{
+		return n;
+	}
+
+	public int getRange()
+	{
+		return range;
+	}
+
+	/**
+	 * @return matrix entry (x,y), NaN if outside of band
+	 */
+	public double get( final long x, final long y )
+	{
+		final long d = x - y;
+		if ( x < 0 || x >= n || y < 0 || y >= n || d < -range || d > range )
+			return Double.NaN;
+		return data.get( ( int ) ( y * width + d + range ) );
+	}
+
+	/**
+	 * Copy into heap, e.g. for {@link org.janelia.thickness.inference.InferFromStrip}.
+	 */
+	public double[] toDoubleStrip()
+	{
+		final double[] strip = new double[ ( int ) ( n * width ) ];
+		for ( int i = 0; i < strip.length; ++i )
+			strip[ i ] = data.get( i );
+		return strip;
+	}
+
+	@Override
+	public RandomAccess< FloatType > randomAccess()
+	{
+		return new MappedStripAccess();
+	}
+
+	@Override
+	public RandomAccess< FloatType > randomAccess( final Interval interval )
+	{
+		return randomAccess();
+	}
+
+	@Override
+	public FloatType getType()
+	{
+		return new FloatType();
+	}
+
+	public class MappedStripAccess extends Point implements RandomAccess< FloatType >
+	{
+
+		private final FloatType value;
+
+		private MappedStripAccess()
+		{
+			super( N_DIM );
+			this.value = new FloatType();
+		}
+
+		private MappedStripAccess( final MappedStripAccess other )
+		{
+			super( other.position.clone() );
+			this.value = other.value.copy();
+		}
+
+		@Override
+		public FloatType get()
+		{
+			value.set( data.get( ( int ) ( this.position[ 1 ] * width + this.position[ 0 ] ) ) );
+			return value;
+		}
+
+		@Override
+		public MappedStripAccess copy()
+		{
+			return copyRandomAccess();
+		}
+
+		@Override
+		public MappedStripAccess copyRandomAccess()
+		{
+			return new MappedStripAccess( this );
+		}
+
+	}
+
+}
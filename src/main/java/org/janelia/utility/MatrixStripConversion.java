@@ -21,6 +21,9 @@
  */
 package org.janelia.utility;
 
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.transform.integer.shear.AbstractShearTransform;
@@ -84,4 +87,83 @@ public class MatrixStripConversion
 		final IntervalView< T > transformed = Views.offsetInterval( new TransformView<>( extended, tf ), interval );
 		return transformed;
 	}
+
+	public static < T extends RealType< T > > double[] matrixToDoubleStrip(
+			final RandomAccessibleInterval< T > matrix,
+			final int range )
+	{
+		if ( matrix instanceof BandedMatrix< ? > && ( ( BandedMatrix< ? > ) matrix ).getRange() == range )
+			return ( ( BandedMatrix< ? > ) matrix ).toDoubleStrip();
+		final int n = ( int ) matrix.dimension( 1 );
+		final double[] strip = new double[ n * ( 2 * range + 1 ) ];
+		final Cursor< T > cursor = Views.flatIterable( matrixToStrip( matrix, range ) ).cursor();
+		for ( int i = 0; cursor.hasNext(); ++i )
+			strip[ i ] = cursor.next().getRealDouble();
+		return strip;
+	}
+
+	/**
+	 * Extract rows [start,stop) of a dense strip as a strip of its own.
+	 * Entries that refer to sections outside of [start,stop) are set to NaN.
+	 *
+	 * @param strip
+	 *            flat strip of width 2 * range + 1
+	 * @param range
+	 * @param start
+	 *            first row (inclusive)
+	 * @param stop
+	 *            last row (exclusive)
+	 * @return strip of stop - start rows
+	 */
+	public static double[] subStrip(
+			final double[] strip,
+			final int range,
+			final int start,
+			final int stop )
+	{
+		final int width = 2 * range + 1;
+		final int n = stop - start;
+		final double[] subStrip = Arrays.copyOfRange( strip, start * width, stop * width );
+		for ( int y = 0; y < n; ++y )
+		{
+			for ( int x = y - range; x < 0; ++x )
+				subStrip[ y * width + x - y + range ] = Double.NaN;
+			for ( int x = Math.max( n, y - range ); x <= y + range; ++x )
+				subStrip[ y * width + x - y + range ] = Double.NaN;
+		}
+		return subStrip;
+	}
+
+	/**
+	 * Read matrix entry (x,y) from a dense strip in the layout produced by
+	 * {@link #matrixToStrip}, i.e. {@code strip[ y * ( 2 * range + 1 ) + x - y + range ]}.
+	 *
+	 * @param strip
+	 *            flat strip of width 2 * range + 1 and height n
+	 * @param permutation
+	 *            maps matrix indices to strip rows, identity if null
+	 * @param range
+	 * @param n
+	 *            number of sections
+	 * @param x
+	 * @param y
+	 * @return entry (x,y) or NaN if (x,y) is outside the matrix or the band
+	 */
+	public static double get(
+			final double[] strip,
+			final int[] permutation,
+			final int range,
+			final int n,
+			final int x,
+			final int y )
+	{
+		if ( x < 0 || x >= n || y < 0 || y >= n )
+			return Double.NaN;
+		final int sx = permutation == null ? x : permutation[ x ];
+		final int sy = permutation == null ? y : permutation[ y ];
+		final int dx = sx - sy;
+		if ( dx < -range || dx > range )
+			return Double.NaN;
+		return strip[ sy * ( 2 * range + 1 ) + dx + range ];
+	}
 }
@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Split an index range [0,size) into consecutive blocks of fixed size and
+ * process them on an {@link ExecutorService}. The decomposition only depends
+ * on size and block size (not on the number of threads), so callers that
+ * reduce per-block results in block order get deterministic results.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class ParallelBlocks
+{
+
+	public static final int DEFAULT_BLOCK_SIZE = 256;
+
+	public interface Block
+	{
+		/**
+		 * @param index
+		 *            index of the block
+		 * @param start
+		 *            first index (inclusive)
+		 * @param stop
+		 *            last index (exclusive)
+		 */
+		void process( int index, int start, int stop ) throws Exception;
+	}
+
+	public static int numBlocks( final int size, final int blockSize )
+	{
+		return ( size + blockSize - 1 ) / blockSize;
+	}
+
+	/**
+	 * Process all blocks and wait for completion. Blocks are processed
+	 * sequentially on the calling thread if es is null.
+	 *
+	 * @param es
+	 * @param size
+	 * @param blockSize
+	 * @param block
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static void run(
+			final ExecutorService es,
+			final int size,
+			final int blockSize,
+			final Block block ) throws InterruptedException, ExecutionException
+	{
+		final int nBlocks = numBlocks( size, blockSize );
+		if ( es == null || nBlocks < 2 )
+		{
+			for ( int b = 0, start = 0; b < nBlocks; ++b, start += blockSize )
+				try
+				{
+					block.process( b, start, Math.min( start + blockSize, size ) );
+				}
+				catch ( final Exception e )
+				{
+					throw new ExecutionException( e );
+				}
+			return;
+		}
+
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		for ( int b = 0, start = 0; b < nBlocks; ++b, start += blockSize )
+		{
+			final int index = b;
+			final int blockStart = start;
+			final int blockStop = Math.min( start + blockSize, size );
+			tasks.add( () -> {
+				block.process( index, blockStart, blockStop );
+				return null;
+			} );
+		}
+
+		for ( final Future< Void > future : es.invokeAll( tasks ) )
+			future.get();
+	}
+
+}
@@ -0,0 +1,275 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent cache of pairwise similarities. Sections are identified by
+ * keys, e.g. a hash of their content or of file path and modification time
+ * (see {@link #key(String...)}). All parameters that change similarities
+ * (method, ROI, scale, ...) make up the context of a cache. Each context is
+ * stored in its own file in the cache directory, such that the same pairs
+ * can be reused whenever the context matches, independent of the comparison
+ * range.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class SimilarityCache
+{
+
+	/**
+	 * Section key with lazily loaded section. The section is loaded only if
+	 * a similarity is not cached and then kept for subsequent pairs.
+	 */
+	public static class Entry< S >
+	{
+		private final String key;
+
+		private Callable< S > loader;
+
+		private S section;
+
+		public Entry( final String key, final Callable< S > loader )
+		{
+			this.key = key;
+			this.loader = loader;
+		}
+
+		public String getKey()
+		{
+			return key;
+		}
+
+		/**
+		 * @return section, may be null if section should be ignored
+		 */
+		public synchronized S get() throws Exception
+		{
+			if ( loader != null )
+			{
+				section = loader.call();
+				loader = null;
+			}
+			return section;
+		}
+	}
+
+	private final Path file;
+
+	private final String context;
+
+	private final Map< String, Double > similarities = new ConcurrentHashMap<>();
+
+	private final AtomicInteger hits = new AtomicInteger();
+
+	private final AtomicInteger misses = new AtomicInteger();
+
+	/**
+	 * Open cache for context in directory. Existing entries are loaded.
+	 *
+	 * @param directory
+	 * @param context
+	 *            all parameters that affect similarities
+	 * @throws IOException
+	 */
+	public SimilarityCache( final Path directory, final String context ) throws IOException
+	{
+		this.file = directory.resolve( "similarities-" + key( context ) + ".tsv" );
+		this.context = context;
+		if ( Files.exists( file ) )
+			load();
+	}
+
+	public Path getFile()
+	{
+		return file;
+	}
+
+	public String getContext()
+	{
+		return context;
+	}
+
+	/**
+	 * @return cached similarity or null if not cached
+	 */
+	public Double get( final String a, final String b )
+	{
+		final Double similarity = similarities.get( pairKey( a, b ) );
+		if ( similarity == null )
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return similarity;
+	}
+
+	public void put( final String a, final String b, final double similarity )
+	{
+		similarities.put( pairKey( a, b ), similarity );
+	}
+
+	public int size()
+	{
+		return similarities.size();
+	}
+
+	public int getHits()
+	{
+		return hits.get();
+	}
+
+	public int getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Look up similarities of entries in the cache and compute (and cache)
+	 * missing similarities only.
+	 */
+	public < S > SlidingWindowSimilarity.Similarity< Entry< S > > wrap( final SlidingWindowSimilarity.Similarity< S > similarity )
+	{
+		return ( a, b ) -> {
+			final Double cached = get( a.getKey(), b.getKey() );
+			if ( cached != null )
+				return cached;
+			final S sa = a.get();
+			final S sb = sa == null ? null : b.get();
+			final double value = sa == null || sb == null ? Double.NaN : similarity.similarity( sa, sb );
+			put( a.getKey(), b.getKey(), value );
+			return value;
+		};
+	}
+
+	/**
+	 * Write all entries, replacing the cache file atomically.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException
+	{
+		Files.createDirectories( file.toAbsolutePath().getParent() );
+		final Path tmp = file.resolveSibling( file.getFileName() + ".tmp" );
+		try (BufferedWriter writer = Files.newBufferedWriter( tmp, StandardCharsets.UTF_8 ))
+		{
+			writer.write( "# " + context.replace( '\n', ' ' ) );
+			writer.newLine();
+			for ( final Map.Entry< String, Double > entry : similarities.entrySet() )
+			{
+				writer.write( entry.getKey() );
+				writer.write( '\t' );
+				writer.write( Double.toString( entry.getValue() ) );
+				writer.newLine();
+			}
+		}
+		Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	private void load() throws IOException
+	{
+		try (BufferedReader reader = Files.newBufferedReader( file, StandardCharsets.UTF_8 ))
+		{
+			for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+			{
+				if ( line.startsWith( "#" ) || line.isEmpty() )
+					continue;
+				final int separator = line.lastIndexOf( '\t' );
+				if ( separator < 0 )
+					throw new IOException( "Malformed line in " + file + ": " + line );
+				similarities.put( line.substring( 0, separator ), Double.parseDouble( line.substring( separator + 1 ) ) );
+			}
+		}
+	}
+
+	private static String pairKey( final String a, final String b )
+	{
+		return a.compareTo( b ) <= 0 ? a + '\t' + b : b + '\t' + a;
+	}
+
+	/**
+	 * @return hex encoded SHA-1 of parts
+	 */
+	public static String key( final String... parts )
+	{
+		final MessageDigest digest = sha1();
+		for ( final String part : parts )
+		{
+			digest.update( part.getBytes( StandardCharsets.UTF_8 ) );
+			digest.update( ( byte ) 0 );
+		}
+		return hex( digest.digest() );
+	}
+
+	/**
+	 * @return hex encoded SHA-1 of pixels
+	 */
+	public static String key( final float[] pixels )
+	{
+		final MessageDigest digest = sha1();
+		final ByteBuffer buffer = ByteBuffer.allocate( 4 * 4096 );
+		for ( int i = 0; i < pixels.length; )
+		{
+			buffer.clear();
+			for ( ; i < pixels.length && buffer.remaining() >= 4; ++i )
+				buffer.putFloat( pixels[ i ] );
+			digest.update( buffer.array(), 0, buffer.position() );
+		}
+		return hex( digest.digest() );
+	}
+
+	private static MessageDigest sha1()
+	{
+		try
+		{
+			return MessageDigest.getInstance( "SHA-1" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// every Java platform is required to support SHA-1
+			throw new RuntimeException( e );
+		}
+	}
+
+	private static String hex( final byte[] bytes )
+	{
+		final StringBuilder sb = new StringBuilder( 2 * bytes.length );
+		for ( final byte b : bytes )
+			sb.append( String.format( "%02x", b ) );
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,324 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Compute similarities of a stream of sections in z order. Only the last
+ * range (preprocessed) sections are kept in a ring buffer. When a section
+ * is {@link #push pushed}, its similarities to these sections are computed
+ * and written to a {@link BandWriter} right away, i.e. peak memory is
+ * O(range) sections and each section is loaded and preprocessed exactly
+ * once.
+ *
+ * {@link #run} pipelines loading and comparison on the
+ * {@link ExecutorService}: up to lookahead sections beyond the oldest
+ * unfinished section are loaded in parallel and each pair is computed as
+ * soon as both of its sections are available, i.e. there is no barrier per
+ * section and peak memory is O(range + lookahead) sections.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ * @param <S>
+ *            preprocessed section
+ */
+public class SlidingWindowSimilarity< S >
+{
+
+	public interface Similarity< S >
+	{
+		double similarity( S a, S b ) throws Exception;
+	}
+
+	public interface Source< S >
+	{
+		/**
+		 * @return preprocessed section z or null if section z should be
+		 *         ignored
+		 */
+		S get( int z ) throws Exception;
+	}
+
+	private final int range;
+
+	private final Similarity< S > similarity;
+
+	private final BandWriter matrix;
+
+	private final ExecutorService es;
+
+	private final int lookahead;
+
+	private final Object[] buffer;
+
+	private int size = 0;
+
+	/**
+	 * @param range
+	 *            number of neighbors in each direction
+	 * @param similarity
+	 * @param matrix
+	 *            receives all similarities, may be null
+	 * @param es
+	 *            pairs of each section are computed in parallel, sequentially
+	 *            on the calling thread if null
+	 */
+	public SlidingWindowSimilarity(
+			final int range,
+			final Similarity< S > similarity,
+			final BandWriter matrix,
+			final ExecutorService es )
+	{
+		this( range, similarity, matrix, es, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * @param range
+	 *            number of neighbors in each direction
+	 * @param similarity
+	 * @param matrix
+	 *            receives all similarities, may be null
+	 * @param es
+	 *            sections are loaded and pairs are computed in parallel,
+	 *            sequentially on the calling thread if null
+	 * @param lookahead
+	 *            number of sections that {@link #run} loads ahead of the
+	 *            oldest section with pending pairs, at least 1
+	 */
+	public SlidingWindowSimilarity(
+			final int range,
+			final Similarity< S > similarity,
+			final BandWriter matrix,
+			final ExecutorService es,
+			final int lookahead )
+	{
+		super();
+		this.range = range;
+		this.similarity = similarity;
+		this.matrix = matrix;
+		this.es = es;
+		this.lookahead = Math.max( lookahead, 1 );
+		this.buffer = new Object[ range ];
+	}
+
+	/**
+	 * Add the next section and compute its similarities to the previous
+	 * range sections.
+	 *
+	 * @param section
+	 *            preprocessed section, null if the section should be ignored
+	 * @return similarities of the new section z to z-1, z-2, ..., z-range (in
+	 *         that order), NaN if not available
+	 */
+	@SuppressWarnings( "unchecked" )
+	public double[] push( final S section ) throws InterruptedException, ExecutionException
+	{
+		final int z = size;
+		final double[] row = new double[ range ];
+		Arrays.fill( row, Double.NaN );
+
+		if ( section != null )
+		{
+			if ( matrix != null )
+				matrix.setSymmetric( z, z, 1.0 );
+
+			final List< Callable< Void > > tasks = new ArrayList<>();
+			for ( int d = 1; d <= range && d <= z; ++d )
+			{
+				final S other = ( S ) buffer[ ( z - d ) % range ];
+				if ( other == null )
+					continue;
+				final int index = d - 1;
+				tasks.add( () -> {
+					row[ index ] = similarity.similarity( other, section );
+					return null;
+				} );
+			}
+
+			if ( es == null || tasks.size() < 2 )
+				for ( final Callable< Void > task : tasks )
+					try
+					{
+						task.call();
+					}
+					catch ( final Exception e )
+					{
+						throw new ExecutionException( e );
+					}
+			else
+				for ( final Future< Void > future : es.invokeAll( tasks ) )
+					future.get();
+
+			if ( matrix != null )
+				for ( int d = 1; d <= range && d <= z; ++d )
+					if ( !Double.isNaN( row[ d - 1 ] ) )
+						matrix.setSymmetric( z - d, z, row[ d - 1 ] );
+		}
+
+		if ( range > 0 )
+			buffer[ z % range ] = section;
+		++size;
+		return row;
+	}
+
+	/**
+	 * @return number of sections pushed so far
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Push sections [0,n) of source. Sections are loaded on the
+	 * {@link ExecutorService} ahead of time and pairs are submitted as soon
+	 * as both of their sections are loaded. Sequential on the calling thread
+	 * if there is no {@link ExecutorService}.
+	 */
+	public void run( final int n, final Source< S > source ) throws InterruptedException, ExecutionException
+	{
+		run( n, source, null );
+	}
+
+	/**
+	 * Same as {@link #run(int, Source)} but calls rowDone on the calling
+	 * thread each time all similarities of a section have been written, e.g.
+	 * to redraw a view of the matrix.
+	 *
+	 * @param rowDone
+	 *            may be null
+	 */
+	@SuppressWarnings( "unchecked" )
+	public void run( final int n, final Source< S > source, final Runnable rowDone ) throws InterruptedException, ExecutionException
+	{
+		if ( es == null )
+		{
+			for ( int z = 0; z < n; ++z )
+			{
+				final S section;
+				try
+				{
+					section = source.get( z );
+				}
+				catch ( final Exception e )
+				{
+					throw new ExecutionException( e );
+				}
+				push( section );
+				if ( rowDone != null )
+					rowDone.run();
+			}
+			return;
+		}
+
+		final int offset = size;
+		// section z is not needed anymore once rows up to z + range are done
+		final int capacity = range + lookahead + 1;
+		final CompletableFuture< S >[] sections = new CompletableFuture[ capacity ];
+		// rows ( z - d, z ) that have not been waited for yet
+		final CompletableFuture< ? >[] rows = new CompletableFuture[ lookahead + 1 ];
+		int done = 0;
+		for ( int z = 0; z < n; ++z )
+		{
+			// bound the number of sections in memory
+			for ( ; done < z - lookahead; ++done )
+				await( rows[ done % rows.length ], rowDone );
+
+			final int index = z;
+			final int row = offset + z;
+			final CompletableFuture< S > section = CompletableFuture.supplyAsync( () -> load( source, index ), es );
+			sections[ z % capacity ] = section;
+
+			final List< CompletableFuture< Void > > pairs = new ArrayList<>();
+			if ( matrix != null )
+				pairs.add( section.thenAccept( s -> {
+					if ( s != null )
+						matrix.setSymmetric( row, row, 1.0 );
+				} ) );
+			for ( int d = 1; d <= range && d <= row; ++d )
+			{
+				final CompletableFuture< S > other = d <= z
+						? sections[ ( z - d ) % capacity ]
+						: CompletableFuture.completedFuture( ( S ) buffer[ ( row - d ) % range ] );
+				final int column = row - d;
+				pairs.add( other.thenAcceptBothAsync( section, ( a, b ) -> compare( a, b, column, row ), es ) );
+			}
+			rows[ z % rows.length ] = CompletableFuture.allOf( pairs.toArray( new CompletableFuture[ pairs.size() ] ) );
+		}
+		for ( ; done < n; ++done )
+			await( rows[ done % rows.length ], rowDone );
+
+		// rows without pairs do not wait for their section, e.g. row 0 if
+		// matrix is null
+		for ( int z = Math.max( n - range, 0 ); z < n; ++z )
+			buffer[ ( offset + z ) % range ] = sections[ z % capacity ].get();
+		size += n;
+	}
+
+	private S load( final Source< S > source, final int z )
+	{
+		try
+		{
+			return source.get( z );
+		}
+		catch ( final Exception e )
+		{
+			throw new CompletionException( e );
+		}
+	}
+
+	private void compare( final S a, final S b, final int x, final int y )
+	{
+		if ( a == null || b == null )
+			return;
+		final double value;
+		try
+		{
+			value = similarity.similarity( a, b );
+		}
+		catch ( final Exception e )
+		{
+			throw new CompletionException( e );
+		}
+		if ( matrix != null && !Double.isNaN( value ) )
+			matrix.setSymmetric( x, y, value );
+	}
+
+	private static void await( final CompletableFuture< ? > future, final Runnable rowDone ) throws InterruptedException, ExecutionException
+	{
+		// CompletableFuture unwraps the CompletionException of the failed
+		// section or pair
+		future.get();
+		if ( rowDone != null )
+			rowDone.run();
+	}
+
+}
@@ -0,0 +1,185 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Binary file format for similarity strips (layout of
+ * {@link MatrixStripConversion#matrixToStrip}). All values are little
+ * endian:
+ *
+ * <pre>
+ * offset  size  content
+ *      0     4  magic number 0x5a535452 ("ZSTR")
+ *      4     4  version (1)
+ *      8     8  number of sections n
+ *     16     4  range r
+ *     20     4  data type (1: float32)
+ *     24     8  reserved
+ *     32        n rows of 2 * r + 1 float32 values
+ * </pre>
+ *
+ * Files are accessed through {@link MappedByteBuffer}s, so strips are read
+ * without copying into heap memory. A single mapping is limited to 2GB, i.e.
+ * roughly 5e8 entries.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class StripFile
+{
+
+	public static final int MAGIC = 0x5a535452;
+
+	public static final int VERSION = 1;
+
+	public static final int FLOAT32 = 1;
+
+	public static final int HEADER_SIZE = 32;
+
+	public static class Header
+	{
+		public final long n;
+
+		public final int range;
+
+		public final int dataType;
+
+		public Header( final long n, final int range, final int dataType )
+		{
+			this.n = n;
+			this.range = range;
+			this.dataType = dataType;
+		}
+
+		public int width()
+		{
+			return 2 * range + 1;
+		}
+
+		public long dataSize()
+		{
+			return n * width() * Float.BYTES;
+		}
+	}
+
+	/**
+	 * Map strip file for reading.
+	 */
+	public static MappedStrip read( final Path path ) throws IOException
+	{
+		try (final FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ))
+		{
+			final ByteBuffer headerBuffer = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			while ( headerBuffer.hasRemaining() )
+				if ( channel.read( headerBuffer, headerBuffer.position() ) < 0 )
+					throw new IOException( "Unexpected end of file in header of " + path );
+			headerBuffer.flip();
+			final Header header = readHeader( headerBuffer );
+			if ( channel.size() < HEADER_SIZE + header.dataSize() )
+				throw new IOException( "File " + path + " is too short for " + header.n + " sections with range " + header.range + "." );
+			final MappedByteBuffer data = channel.map( FileChannel.MapMode.READ_ONLY, HEADER_SIZE, checkedSize( header ) );
+			return new MappedStrip( data, header.n, header.range );
+		}
+	}
+
+	/**
+	 * Create (or overwrite) strip file for n sections with all entries
+	 * NaN.
+	 */
+	public static StripFileWriter create( final Path path, final long n, final int range ) throws IOException
+	{
+		return new StripFileWriter( path, new Header( n, range, FLOAT32 ) );
+	}
+
+	/**
+	 * Write strip of size ( 2 * range + 1 ) x n.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the width of strip is even
+	 */
+	public static < T extends RealType< T > > void write( final Path path, final RandomAccessibleInterval< T > strip ) throws IOException
+	{
+		if ( strip.dimension( 0 ) % 2 == 0 )
+			throw new IllegalArgumentException( "Strip width must be 2 * range + 1 but is " + strip.dimension( 0 ) );
+		final int range = ( int ) ( strip.dimension( 0 ) / 2 );
+		try (final StripFileWriter writer = create( path, strip.dimension( 1 ), range ))
+		{
+			final Cursor< T > cursor = Views.flatIterable( strip ).cursor();
+			final float[] row = new float[ 2 * range + 1 ];
+			for ( long y = 0; cursor.hasNext(); ++y )
+			{
+				for ( int x = 0; x < row.length; ++x )
+					row[ x ] = cursor.next().getRealFloat();
+				writer.writeRow( y, row );
+			}
+		}
+	}
+
+	static void writeHeader( final ByteBuffer buffer, final Header header )
+	{
+		buffer.putInt( MAGIC );
+		buffer.putInt( VERSION );
+		buffer.putLong( header.n );
+		buffer.putInt( header.range );
+		buffer.putInt( header.dataType );
+		buffer.putLong( 0 );
+	}
+
+	static Header readHeader( final ByteBuffer buffer ) throws IOException
+	{
+		if ( buffer.getInt() != MAGIC )
+			throw new IOException( "Not a strip file." );
+		final int version = buffer.getInt();
+		if ( version != VERSION )
+			throw new IOException( "Unsupported strip file version " + version + "." );
+		final long n = buffer.getLong();
+		final int range = buffer.getInt();
+		final int dataType = buffer.getInt();
+		if ( dataType != FLOAT32 )
+			throw new IOException( "Unsupported data type " + dataType + "." );
+		if ( n < 0 || range < 0 )
+			throw new IOException( "Invalid strip dimensions: n=" + n + " range=" + range );
+		return new Header( n, range, dataType );
+	}
+
+	static long checkedSize( final Header header ) throws IOException
+	{
+		final long size = header.dataSize();
+		if ( size > Integer.MAX_VALUE )
+			throw new IOException( "Strip of " + size + " bytes exceeds maximum mapping size." );
+		return size;
+	}
+
+}
@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Write a {@link StripFile} through a memory mapped buffer. All entries are
+ * NaN initially. Rows or entries can be written in any order and
+ * concurrently as long as threads write to different entries, so similarity
+ * calculators can stream their results into the file as they are computed.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class StripFileWriter implements BandWriter, Closeable
+{
+
+	private final FileChannel channel;
+
+	private final MappedByteBuffer buffer;
+
+	private final FloatBuffer data;
+
+	private final long n;
+
+	private final int range;
+
+	private final int width;
+
+	StripFileWriter( final Path path, final StripFile.Header header ) throws IOException
+	{
+		this.n = header.n;
+		this.range = header.range;
+		this.width = header.width();
+		final long size = StripFile.checkedSize( header );
+
+		this.channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		final ByteBuffer headerBuffer = ByteBuffer.allocate( StripFile.HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		StripFile.writeHeader( headerBuffer, header );
+		headerBuffer.flip();
+		while ( headerBuffer.hasRemaining() )
+			channel.write( headerBuffer, headerBuffer.position() );
+
+		this.buffer = channel.map( FileChannel.MapMode.READ_WRITE, StripFile.HEADER_SIZE, size );
+		this.data = buffer.order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer();
+		for ( int i = 0; i < data.capacity(); ++i )
+			data.put( i, Float.NaN );
+	}
+
+	/**
+	 * @param y
+	 *            section
+	 * @param row
+	 *            similarities of section y with sections y - range to y +
+	 *            range
+	 */
+	public void writeRow( final long y, final float[] row )
+	{
+		final int offset = ( int ) ( y * width );
+		for ( int x = 0; x < width; ++x )
+			data.put( offset + x, row[ x ] );
+	}
+
+	/**
+	 * Set matrix entry (x,y). Ignored if outside of band.
+	 */
+	public void set( final long x, final long y, final float value )
+	{
+		final long d = x - y;
+		if ( x < 0 || x >= n || y < 0 || y >= n || d < -range || d > range )
+			return;
+		data.put( ( int ) ( y * width + d + range ), value );
+	}
+
+	@Override
+	public void setSymmetric( final long x, final long y, final double value )
+	{
+		set( x, y, ( float ) value );
+		set( y, x, ( float ) value );
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		buffer.force();
+		channel.close();
+	}
+
+}
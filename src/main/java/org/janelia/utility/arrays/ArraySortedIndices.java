@@ -22,27 +22,37 @@
 package org.janelia.utility.arrays;
 
 import java.util.Arrays;
-import java.util.Map.Entry;
 import java.util.TreeMap;
 
 /**
- * 
+ * Index sort (argsort) of double arrays. Ties are broken by index (stable
+ * sort), duplicate values are kept. Values are ordered as in
+ * {@link Double#compare(double, double)}, i.e. NaN last. Inputs that are
+ * nearly sorted, e.g. coordinates after the first few iterations of the
+ * inference, are sorted by insertion sort; otherwise, or if insertion sort
+ * turns out too expensive, by an introspective quick sort that falls back to
+ * heap sort. No memory is allocated apart from the result arrays of
+ * {@link #sort(double[])} and {@link #sortForward(double[])}.
+ *
  * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
  *
  */
 public class ArraySortedIndices
 {
 
+	private static final int INSERTION_SORT_THRESHOLD = 24;
+
+	// give up insertion sort after this many moves per element
+	private static final int NEAR_SORTED_MOVES_PER_ELEMENT = 4;
+
+	/**
+	 * @return indices such that input[ indices[ 0 ] ] &le; input[ indices[ 1
+	 *         ] ] &le; ...
+	 */
 	public static int[] sort( final double[] input )
 	{
 		final int[] indices = new int[ input.length ];
-		final TreeMap< Double, Integer > tm = sortedKeysAndValues( input );
-		int index = 0;
-		for ( final Integer v : tm.values() )
-		{
-			indices[ index ] = v;
-			++index;
-		}
+		argsort( input, indices );
 		return indices;
 	}
 
@@ -57,17 +67,191 @@ public class ArraySortedIndices
 		return res;
 	}
 
+	/**
+	 * Sort input in place and store the permutation.
+	 *
+	 * @param input
+	 *            sorted in place
+	 * @param forward
+	 *            maps original index to sorted index
+	 * @param backward
+	 *            maps sorted index to original index
+	 */
 	public static void sort( final double[] input, final int[] forward, final int[] backward )
 	{
-		final TreeMap< Double, Integer > tm = sortedKeysAndValues( input );
-		int index = 0;
-		for ( final Entry< Double, Integer > entry : tm.entrySet() )
+		final int n = input.length;
+		argsort( input, backward );
+		for ( int i = 0; i < n; ++i )
+			forward[ backward[ i ] ] = i;
+
+		// input[ i ] = input[ backward[ i ] ] in place, following cycles and
+		// marking visited positions by flipping forward
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( forward[ i ] < 0 )
+				continue;
+			final double tmp = input[ i ];
+			int j = i;
+			while ( true )
+			{
+				forward[ j ] = ~forward[ j ];
+				final int k = backward[ j ];
+				if ( k == i )
+				{
+					input[ j ] = tmp;
+					break;
+				}
+				input[ j ] = input[ k ];
+				j = k;
+			}
+		}
+		for ( int i = 0; i < n; ++i )
+			forward[ i ] = ~forward[ i ];
+	}
+
+	/**
+	 * Write indices that sort keys into indices. keys are not modified.
+	 *
+	 * @param keys
+	 * @param indices
+	 *            same length as keys
+	 */
+	public static void argsort( final double[] keys, final int[] indices )
+	{
+		final int n = keys.length;
+		for ( int i = 0; i < n; ++i )
+			indices[ i ] = i;
+		if ( n < 2 )
+			return;
+		if ( insertionSort( keys, indices, 0, n, ( long ) NEAR_SORTED_MOVES_PER_ELEMENT * n ) )
+			return;
+		int depth = 0;
+		for ( int m = n; m > 1; m >>>= 1 )
+			depth += 2;
+		quickSort( keys, indices, 0, n, depth );
+	}
+
+	private static boolean less( final double[] keys, final int a, final int b )
+	{
+		final double ka = keys[ a ];
+		final double kb = keys[ b ];
+		if ( ka < kb )
+			return true;
+		if ( ka > kb )
+			return false;
+		final int c = Double.compare( ka, kb );
+		return c < 0 || c == 0 && a < b;
+	}
+
+	/**
+	 * Insertion sort of indices[ from, to ).
+	 *
+	 * @return false if more than maxMoves moves were necessary, indices are
+	 *         left partially sorted in that case
+	 */
+	private static boolean insertionSort( final double[] keys, final int[] indices, final int from, final int to, final long maxMoves )
+	{
+		long moves = 0;
+		for ( int i = from + 1; i < to; ++i )
 		{
-			backward[ index ] = entry.getValue();
-			forward[ backward[ index ] ] = index;
-			input[ index ] = entry.getKey();
-			++index;
+			final int index = indices[ i ];
+			int j = i - 1;
+			for ( ; j >= from && less( keys, index, indices[ j ] ); --j )
+				indices[ j + 1 ] = indices[ j ];
+			indices[ j + 1 ] = index;
+			moves += i - 1 - j;
+			if ( moves > maxMoves )
+				return false;
 		}
+		return true;
+	}
+
+	private static void quickSort( final double[] keys, final int[] indices, int from, int to, int depth )
+	{
+		while ( to - from > INSERTION_SORT_THRESHOLD )
+		{
+			if ( depth-- == 0 )
+			{
+				heapSort( keys, indices, from, to );
+				return;
+			}
+
+			// median of three as pivot, moved to from
+			final int mid = ( from + to ) >>> 1;
+			final int last = to - 1;
+			if ( less( keys, indices[ mid ], indices[ from ] ) )
+				swap( indices, mid, from );
+			if ( less( keys, indices[ last ], indices[ from ] ) )
+				swap( indices, last, from );
+			if ( less( keys, indices[ last ], indices[ mid ] ) )
+				swap( indices, last, mid );
+			swap( indices, from, mid );
+
+			// keys are unique with respect to less (ties broken by index)
+			final int pivot = indices[ from ];
+			int i = from;
+			int j = to;
+			while ( true )
+			{
+				while ( less( keys, indices[ ++i ], pivot ) )
+					if ( i == last )
+						break;
+				while ( less( keys, pivot, indices[ --j ] ) )
+					;
+				if ( i >= j )
+					break;
+				swap( indices, i, j );
+			}
+			swap( indices, from, j );
+
+			// recurse into smaller part
+			if ( j - from < to - j - 1 )
+			{
+				quickSort( keys, indices, from, j, depth );
+				from = j + 1;
+			}
+			else
+			{
+				quickSort( keys, indices, j + 1, to, depth );
+				to = j;
+			}
+		}
+		insertionSort( keys, indices, from, to, Long.MAX_VALUE );
+	}
+
+	private static void heapSort( final double[] keys, final int[] indices, final int from, final int to )
+	{
+		final int size = to - from;
+		for ( int i = size / 2 - 1; i >= 0; --i )
+			siftDown( keys, indices, from, i, size );
+		for ( int end = size - 1; end > 0; --end )
+		{
+			swap( indices, from, from + end );
+			siftDown( keys, indices, from, 0, end );
+		}
+	}
+
+	private static void siftDown( final double[] keys, final int[] indices, final int offset, int root, final int size )
+	{
+		while ( true )
+		{
+			int child = 2 * root + 1;
+			if ( child >= size )
+				return;
+			if ( child + 1 < size && less( keys, indices[ offset + child ], indices[ offset + child + 1 ] ) )
+				++child;
+			if ( !less( keys, indices[ offset + root ], indices[ offset + child ] ) )
+				return;
+			swap( indices, offset + root, offset + child );
+			root = child;
+		}
+	}
+
+	private static void swap( final int[] indices, final int i, final int j )
+	{
+		final int tmp = indices[ i ];
+		indices[ i ] = indices[ j ];
+		indices[ j ] = tmp;
 	}
 
 	public static int[] getSortedIndicesFromMap( final TreeMap< Double, Integer > tm )
@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BlockwiseInferenceTest
+{
+
+	private final int range = 4;
+
+	@Test
+	public void testWindowStarts()
+	{
+		Assert.assertArrayEquals( new int[] { 0 }, BlockwiseInference.windowStarts( 30, 40, 10 ) );
+		Assert.assertArrayEquals( new int[] { 0, 30 }, BlockwiseInference.windowStarts( 70, 40, 10 ) );
+		Assert.assertArrayEquals( new int[] { 0, 30, 55 }, BlockwiseInference.windowStarts( 95, 40, 10 ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testInvalidOverlap()
+	{
+		new BlockwiseInference( () -> new InferFromStrip( new GlobalCorrelationFitAverage() ), 10, 10, null );
+	}
+
+	@Test
+	public void testUniform() throws Exception
+	{
+		final int size = 95;
+		final double[] strip = InferenceFixtures.strip( InferenceFixtures.positions( size, 1.0 ), range );
+		final double[] startingCoordinates = InferenceFixtures.startingCoordinates( size );
+
+		final BlockwiseInference sequential = new BlockwiseInference( () -> new InferFromStrip( new GlobalCorrelationFitAverage() ), 40, 10, null );
+		final double[] expected = sequential.estimateZCoordinates( strip, startingCoordinates, InferenceFixtures.createOptions( range, 20 ) );
+		Assert.assertArrayEquals( startingCoordinates, expected, 1e-6 );
+
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		try
+		{
+			final BlockwiseInference parallel = new BlockwiseInference( () -> new InferFromStrip( new GlobalCorrelationFitAverage() ), 40, 10, es );
+			Assert.assertArrayEquals( expected, parallel.estimateZCoordinates( strip, startingCoordinates, InferenceFixtures.createOptions( range, 20 ) ), 0.0 );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConvergenceTest
+{
+
+	@Test
+	public void testCoordinateCriteria()
+	{
+		final Options o = Options.generateDefaultOptions();
+		o.rmsCoordinateChangeTolerance = 0.1;
+		final Convergence convergence = new Convergence( new double[] { 0.0, 1.0 }, new double[] { 1.0, 1.0 } );
+		Assert.assertFalse( convergence.update( 1, new double[] { 0.0, 1.5 }, new double[] { 1.0, 1.0 }, o ) );
+		Assert.assertEquals( Convergence.Criterion.MAXIMUM_ITERATIONS, convergence.getCriterion() );
+		Assert.assertTrue( convergence.update( 2, new double[] { 0.0, 1.55 }, new double[] { 1.0, 1.0 }, o ) );
+		Assert.assertEquals( Convergence.Criterion.RMS_COORDINATE_CHANGE, convergence.getCriterion() );
+		Assert.assertEquals( 2, convergence.getIterations() );
+	}
+
+	@Test
+	public void testFixedScalingFactorsDoNotStopMovingCoordinates()
+	{
+		final Options o = Options.generateDefaultOptions();
+		o.scalingFactorChangeTolerance = 1e-3;
+		final double[] scalingFactors = { 1.0, 1.0, 1.0 };
+		final Convergence convergence = new Convergence( new double[] { 0.0, 1.0, 2.0 }, scalingFactors );
+		for ( final int iterations : new int[] { 0, 10 } )
+		{
+			o.scalingFactorEstimationIterations = iterations;
+			for ( int i = 1; i <= 5; ++i )
+				Assert.assertFalse( convergence.update( i, new double[] { 0.0, 1.0 + 0.5 * i, 2.0 }, scalingFactors, o ) );
+			Assert.assertEquals( 0.0, convergence.getScalingFactorChange(), 0.0 );
+			Assert.assertEquals( Convergence.Criterion.MAXIMUM_ITERATIONS, convergence.getCriterion() );
+		}
+	}
+
+	@Test
+	public void testScalingFactorsAreAdditionalCondition()
+	{
+		final Options o = Options.generateDefaultOptions();
+		o.maximumCoordinateChangeTolerance = 1e-6;
+		o.scalingFactorChangeTolerance = 1e-3;
+		final double[] coordinates = { 0.0, 1.0 };
+		final Convergence convergence = new Convergence( coordinates, new double[] { 1.0, 1.0 } );
+		// coordinates settled, scaling factors still moving
+		Assert.assertFalse( convergence.update( 1, coordinates, new double[] { 1.0, 1.1 }, o ) );
+		Assert.assertTrue( convergence.update( 2, coordinates, new double[] { 1.0, 1.1 }, o ) );
+		Assert.assertEquals( Convergence.Criterion.MAXIMUM_COORDINATE_CHANGE, convergence.getCriterion() );
+
+		// ignored if scaling factors are not estimated
+		o.scalingFactorEstimationIterations = 0;
+		final Convergence fixed = new Convergence( coordinates, new double[] { 1.0, 1.0 } );
+		Assert.assertTrue( fixed.update( 1, coordinates, new double[] { 1.0, 1.1 }, o ) );
+	}
+
+}
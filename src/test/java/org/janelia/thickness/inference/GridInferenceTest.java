@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.lut.LUTGrid;
+import org.janelia.utility.MatrixStripConversion;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GridInferenceTest
+{
+
+	private final int size = 30;
+
+	private final int range = 5;
+
+	private final double[] outlierThickness = { 1.0, 1.8, 0.5 };
+
+	@Test
+	public void testMatchesPatchwiseInference() throws Exception
+	{
+		final Options o = InferenceFixtures.createOptions( range, 20 );
+		final double[][] strips = new double[ outlierThickness.length ][];
+		final double[][] expected = new double[ outlierThickness.length ][];
+		for ( int p = 0; p < strips.length; ++p )
+		{
+			strips[ p ] = MatrixStripConversion.matrixToDoubleStrip( InferenceFixtures.matrix( InferenceFixtures.positions( size, outlierThickness[ p ] ), range ), range );
+			expected[ p ] = new InferFromStrip( new GlobalCorrelationFitAverage() ).estimateZCoordinates( strips[ p ], InferenceFixtures.startingCoordinates( size ), o );
+		}
+
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		try
+		{
+			final GridInference inference = new GridInference( () -> new InferFromStrip( new GlobalCorrelationFitAverage() ), es );
+			final double[] scale = { 10.0, 10.0 };
+			final double[] shift = { 4.5, 4.5 };
+			final LUTGrid lut = inference.estimateLUTGrid( strips, strips.length, 1, InferenceFixtures.startingCoordinates( size ), o, scale, shift );
+
+			final double[] source = new double[ 3 ];
+			final double[] target = new double[ 3 ];
+			for ( int p = 0; p < strips.length; ++p )
+				for ( int z = 0; z < size; ++z )
+				{
+					source[ 0 ] = shift[ 0 ] + p * scale[ 0 ];
+					source[ 1 ] = shift[ 1 ];
+					source[ 2 ] = z;
+					lut.apply( source, target );
+					Assert.assertEquals( source[ 0 ], target[ 0 ], 0.0 );
+					Assert.assertEquals( source[ 1 ], target[ 1 ], 0.0 );
+					Assert.assertEquals( expected[ p ][ z ], target[ 2 ], 1e-9 );
+				}
+
+			// halfway between first two patch centers
+			source[ 0 ] = shift[ 0 ] + 0.5 * scale[ 0 ];
+			source[ 2 ] = size / 2;
+			lut.apply( source, target );
+			Assert.assertEquals( 0.5 * ( expected[ 0 ][ size / 2 ] + expected[ 1 ][ size / 2 ] ), target[ 2 ], 1e-9 );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testGridSizeMismatch() throws Exception
+	{
+		new GridInference( () -> new InferFromStrip( new GlobalCorrelationFitAverage() ), null ).estimateZCoordinates( new double[ 2 ][], 3, 1, InferenceFixtures.startingCoordinates( size ), InferenceFixtures.createOptions( range, 20 ) );
+	}
+
+}
@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import java.util.Arrays;
+
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IncrementalInferenceTest
+{
+
+	private final int range = 4;
+
+	@Test
+	public void testStripCompletion() throws Exception
+	{
+		final int size = 30;
+		final double[] positions = InferenceFixtures.positions( size, 1.5 );
+		final IncrementalInference incremental = new IncrementalInference( new InferFromStrip( new GlobalCorrelationFitAverage() ), 8, InferenceFixtures.createOptions( range, 30 ) );
+		incremental.append( rows( positions, 0, 20 ) );
+		incremental.append( rows( positions, 20, 23 ) );
+		incremental.append( rows( positions, 23, size ) );
+		Assert.assertEquals( size, incremental.size() );
+		Assert.assertEquals( size, incremental.getCoordinates().length );
+		Assert.assertArrayEquals( InferenceFixtures.rows( positions, range, 0, size, size ), incremental.getStrip(), 0.0 );
+	}
+
+	@Test
+	public void testUniform() throws Exception
+	{
+		final int size = 40;
+		final double[] positions = InferenceFixtures.positions( size, 1.0 );
+		final IncrementalInference incremental = new IncrementalInference( new InferFromStrip( new GlobalCorrelationFitAverage() ), 6, InferenceFixtures.createOptions( range, 30 ) );
+		for ( int start = 0, stop = 25; start < size; start = stop, stop = Math.min( stop + 5, size ) )
+			Assert.assertArrayEquals( Arrays.copyOf( positions, stop ), incremental.append( rows( positions, start, stop ) ), 1e-6 );
+	}
+
+	@Test
+	public void testPinned() throws Exception
+	{
+		final int size = 40;
+		final int window = 6;
+		final double[] positions = InferenceFixtures.positions( size, 1.7 );
+		final IncrementalInference incremental = new IncrementalInference( new InferFromStrip( new GlobalCorrelationFitAverage() ), window, InferenceFixtures.createOptions( range, 30 ) );
+		final double[] previous = incremental.append( rows( positions, 0, 30 ) );
+		final double[] previousScalingFactors = incremental.getScalingFactors();
+		final double[] coordinates = incremental.append( rows( positions, 30, size ) );
+		final double[] scalingFactors = incremental.getScalingFactors();
+		Assert.assertEquals( size, coordinates.length );
+		for ( int z = 0; z < 30 - window; ++z )
+		{
+			Assert.assertEquals( previous[ z ], coordinates[ z ], 0.0 );
+			Assert.assertEquals( previousScalingFactors[ z ], scalingFactors[ z ], 0.0 );
+		}
+		for ( int z = 30 - window; z < size; ++z )
+			Assert.assertTrue( coordinates[ z ] > coordinates[ z - 1 ] );
+	}
+
+	private double[] rows( final double[] positions, final int start, final int stop )
+	{
+		return InferenceFixtures.rows( positions, range, start, stop, stop );
+	}
+
+}
@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.inference.fits.LocalCorrelationFitAverage;
+import org.janelia.utility.MatrixStripConversion;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class InferFromStripTest
+{
+
+	private final int size = 40;
+
+	private final int range = 5;
+
+	private final ArrayImg< DoubleType, DoubleArray > matrix = InferenceFixtures.matrix( InferenceFixtures.positions( size, 1.8 ), range );
+
+	@Test
+	public void testMatchesMatrixGlobalFit() throws Exception
+	{
+		final Options o = InferenceFixtures.createOptions( range, 20 );
+		final double[] expected = new InferFromMatrix( new GlobalCorrelationFitAverage() ).estimateZCoordinates( matrix, InferenceFixtures.startingCoordinates( size ), o );
+		final double[] strip = MatrixStripConversion.matrixToDoubleStrip( matrix, range );
+		final double[] actual = new InferFromStrip( new GlobalCorrelationFitAverage() ).estimateZCoordinates( strip, InferenceFixtures.startingCoordinates( size ), o );
+		Assert.assertArrayEquals( expected, actual, 1e-6 );
+	}
+
+	@Test
+	public void testMatchesMatrixLocalFit() throws Exception
+	{
+		final Options o = InferenceFixtures.createOptions( range, 20 );
+		o.estimateWindowRadius = size / 4;
+		final double[] expected = new InferFromMatrix( new LocalCorrelationFitAverage( size, o ) ).estimateZCoordinates( matrix, InferenceFixtures.startingCoordinates( size ), o );
+		final double[] actual = new InferFromStrip( new LocalCorrelationFitAverage( size, o ) ).estimateZCoordinates( matrix, InferenceFixtures.startingCoordinates( size ), o );
+		Assert.assertArrayEquals( expected, actual, 1e-6 );
+	}
+
+	@Test
+	public void testMatchesMatrixWithRegularizerAndReorder() throws Exception
+	{
+		final Options o = InferenceFixtures.createOptions( range, 20 );
+		o.coordinateUpdateRegularizerWeight = 0.2;
+		// swap neighboring sections so that the sorting permutation is not
+		// the identity
+		final int[] permutation = new int[ size ];
+		for ( int z = 0; z < size; ++z )
+			permutation[ z ] = z;
+		for ( final int z : new int[] { 4, 17, 30 } )
+		{
+			permutation[ z ] = z + 1;
+			permutation[ z + 1 ] = z;
+		}
+		final ArrayImg< DoubleType, DoubleArray > shuffled = shuffle( matrix, permutation, range );
+		final double[] startingCoordinates = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+			startingCoordinates[ z ] = permutation[ z ];
+
+		final double[] expected = new InferFromMatrix( new GlobalCorrelationFitAverage() ).estimateZCoordinates( shuffled, startingCoordinates.clone(), o );
+		final double[] strip = MatrixStripConversion.matrixToDoubleStrip( shuffled, range );
+		final double[] actual = new InferFromStrip( new GlobalCorrelationFitAverage() ).estimateZCoordinates( strip, startingCoordinates.clone(), o );
+		Assert.assertArrayEquals( expected, actual, 1e-6 );
+	}
+
+	@Test
+	public void testParallelIsDeterministic() throws Exception
+	{
+		final Options o = InferenceFixtures.createOptions( range, 20 );
+		final double[] strip = MatrixStripConversion.matrixToDoubleStrip( matrix, range );
+		final int blockSize = 7;
+		final ExecutorService es1 = Executors.newFixedThreadPool( 1 );
+		final ExecutorService es4 = Executors.newFixedThreadPool( 4 );
+		try
+		{
+			final double[] expected = new InferFromStrip( new GlobalCorrelationFitAverage(), es1, blockSize ).estimateZCoordinates( strip, InferenceFixtures.startingCoordinates( size ), o );
+			final double[] actual = new InferFromStrip( new GlobalCorrelationFitAverage(), es4, blockSize ).estimateZCoordinates( strip, InferenceFixtures.startingCoordinates( size ), o );
+			Assert.assertArrayEquals( expected, actual, 0.0 );
+		}
+		finally
+		{
+			es1.shutdown();
+			es4.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelMatchesSequentialWithoutScalingFactors() throws Exception
+	{
+		final Options o = InferenceFixtures.createOptions( range, 20 );
+		o.scalingFactorEstimationIterations = 0;
+		final double[] strip = MatrixStripConversion.matrixToDoubleStrip( matrix, range );
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		try
+		{
+			final double[] expected = new InferFromStrip( new GlobalCorrelationFitAverage() ).estimateZCoordinates( strip, InferenceFixtures.startingCoordinates( size ), o );
+			final double[] actual = new InferFromStrip( new GlobalCorrelationFitAverage(), es, 6 ).estimateZCoordinates( strip, InferenceFixtures.startingCoordinates( size ), o );
+			Assert.assertArrayEquals( expected, actual, 1e-9 );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test
+	public void testConvergence() throws Exception
+	{
+		final Options o = InferenceFixtures.createOptions( range, 20 );
+		final ArrayImg< DoubleType, DoubleArray > uniform = InferenceFixtures.matrix( InferenceFixtures.positions( size, 1.0 ), range );
+
+		final InferFromMatrix matrixInference = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		final InferFromStrip stripInference = new InferFromStrip( new GlobalCorrelationFitAverage() );
+		Assert.assertNull( stripInference.getConvergence() );
+
+		// disabled by default
+		stripInference.estimateZCoordinates( uniform, InferenceFixtures.startingCoordinates( size ), o );
+		Assert.assertEquals( Convergence.Criterion.MAXIMUM_ITERATIONS, stripInference.getConvergence().getCriterion() );
+		Assert.assertEquals( o.nIterations.intValue(), stripInference.getConvergence().getIterations() );
+
+		// uniform spacing is a fixed point
+		o.maximumCoordinateChangeTolerance = 1e-9;
+		for ( final InferFromMatrix inference : new InferFromMatrix[] { matrixInference, stripInference } )
+		{
+			final double[] coordinates = inference.estimateZCoordinates( uniform, InferenceFixtures.startingCoordinates( size ), o );
+			Assert.assertArrayEquals( InferenceFixtures.startingCoordinates( size ), coordinates, 1e-9 );
+			Assert.assertEquals( Convergence.Criterion.MAXIMUM_COORDINATE_CHANGE, inference.getConvergence().getCriterion() );
+			Assert.assertEquals( 1, inference.getConvergence().getIterations() );
+		}
+
+		// scaling factors have to settle, too
+		o.scalingFactorChangeTolerance = 1e-9;
+		stripInference.estimateZCoordinates( uniform, InferenceFixtures.startingCoordinates( size ), o );
+		Assert.assertEquals( Convergence.Criterion.MAXIMUM_COORDINATE_CHANGE, stripInference.getConvergence().getCriterion() );
+		Assert.assertEquals( 1, stripInference.getConvergence().getIterations() );
+
+		// but never stop the inference on their own
+		o.maximumCoordinateChangeTolerance = 0.0;
+		stripInference.estimateZCoordinates( uniform, InferenceFixtures.startingCoordinates( size ), o );
+		Assert.assertEquals( Convergence.Criterion.MAXIMUM_ITERATIONS, stripInference.getConvergence().getCriterion() );
+		Assert.assertEquals( o.nIterations.intValue(), stripInference.getConvergence().getIterations() );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testStripSizeMismatch() throws Exception
+	{
+		final Options o = InferenceFixtures.createOptions( range, 20 );
+		new InferFromStrip( new GlobalCorrelationFitAverage() ).estimateZCoordinates( new double[ size ], InferenceFixtures.startingCoordinates( size ), o );
+	}
+
+	/**
+	 * @return matrix with entry (x,y) = source (permutation[x],permutation[y])
+	 *         for | x - y | &lt;= range, NaN otherwise
+	 */
+	private static ArrayImg< DoubleType, DoubleArray > shuffle( final ArrayImg< DoubleType, DoubleArray > source, final int[] permutation, final int range )
+	{
+		final ArrayImg< DoubleType, DoubleArray > shuffled = ArrayImgs.doubles( source.dimension( 0 ), source.dimension( 1 ) );
+		final RandomAccess< DoubleType > sourceAccess = source.randomAccess();
+		final ArrayCursor< DoubleType > c = shuffled.cursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			final int x = c.getIntPosition( 0 );
+			final int y = c.getIntPosition( 1 );
+			sourceAccess.setPosition( permutation[ x ], 0 );
+			sourceAccess.setPosition( permutation[ y ], 1 );
+			c.get().set( Math.abs( x - y ) <= range ? sourceAccess.get().get() : Double.NaN );
+		}
+		return shuffled;
+	}
+
+}
@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import org.janelia.thickness.inference.InferFromMatrix.RegularizationType;
+
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Synthetic similarities and options shared by the inference tests:
+ * similarity exp( -0.1 * distance ) within range, every seventh section may
+ * have a different thickness.
+ */
+final class InferenceFixtures
+{
+
+	static Options createOptions( final int range, final int nIterations )
+	{
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.nIterations = nIterations;
+		o.regularizationType = RegularizationType.BORDER;
+		o.forceMonotonicity = true;
+		return o;
+	}
+
+	/**
+	 * @return 0, 1, ..., size - 1
+	 */
+	static double[] startingCoordinates( final int size )
+	{
+		final double[] startingCoordinates = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+			startingCoordinates[ z ] = z;
+		return startingCoordinates;
+	}
+
+	/**
+	 * @return positions of sections that have unit thickness except for
+	 *         every seventh section
+	 */
+	static double[] positions( final int size, final double outlierThickness )
+	{
+		final double[] positions = new double[ size ];
+		for ( int z = 1; z < size; ++z )
+			positions[ z ] = positions[ z - 1 ] + ( z % 7 == 3 ? outlierThickness : 1.0 );
+		return positions;
+	}
+
+	static double similarity( final double[] positions, final int x, final int y )
+	{
+		return Math.exp( -0.1 * Math.abs( positions[ x ] - positions[ y ] ) );
+	}
+
+	static double[] strip( final double[] positions, final int range )
+	{
+		return rows( positions, range, 0, positions.length, positions.length );
+	}
+
+	/**
+	 * @return strip rows [start,stop) for a stack of available sections
+	 */
+	static double[] rows( final double[] positions, final int range, final int start, final int stop, final int available )
+	{
+		final int width = 2 * range + 1;
+		final double[] rows = new double[ ( stop - start ) * width ];
+		for ( int y = start; y < stop; ++y )
+			for ( int d = -range; d <= range; ++d )
+			{
+				final int x = y + d;
+				rows[ ( y - start ) * width + d + range ] = x >= 0 && x < available ? similarity( positions, x, y ) : Double.NaN;
+			}
+		return rows;
+	}
+
+	/**
+	 * @return full matrix, NaN outside of range
+	 */
+	static ArrayImg< DoubleType, DoubleArray > matrix( final double[] positions, final int range )
+	{
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( positions.length, positions.length );
+		final ArrayCursor< DoubleType > c = matrix.cursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			final int x = c.getIntPosition( 0 );
+			final int y = c.getIntPosition( 1 );
+			c.get().set( Math.abs( x - y ) <= range ? similarity( positions, x, y ) : Double.NaN );
+		}
+		return matrix;
+	}
+
+}
@@ -0,0 +1,75 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.inference;
+
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PyramidInferenceTest
+{
+
+	@Test
+	public void testCoordinates()
+	{
+		for ( final int n : new int[] { 9, 10 } )
+		{
+			final double[] coordinates = new double[ n ];
+			for ( int z = 0; z < n; ++z )
+				coordinates[ z ] = 3.0 * z + 1.0;
+			final double[] coarse = PyramidInference.downsample( coordinates );
+			Assert.assertEquals( ( n + 1 ) / 2, coarse.length );
+			Assert.assertArrayEquals( coordinates, PyramidInference.upsample( coarse, n ), 1e-12 );
+		}
+	}
+
+	@Test
+	public void testDownsampleStrip()
+	{
+		// n = 4, range = 1, matrix entries 10 * x + y
+		final double nan = Double.NaN;
+		final double[] strip = {
+				nan, 0, 10,
+				1, 11, 21,
+				12, 22, 32,
+				23, 33, nan };
+		final double[] coarse = PyramidInference.downsample( strip, 4, 1, 1 );
+		final double[] expected = {
+				nan, 5.5, 21,
+				12, 27.5, nan };
+		Assert.assertArrayEquals( expected, coarse, 0.0 );
+	}
+
+	@Test
+	public void testUniform() throws Exception
+	{
+		final int size = 64;
+		final int range = 6;
+		final double[] strip = InferenceFixtures.strip( InferenceFixtures.positions( size, 1.0 ), range );
+		final double[] startingCoordinates = InferenceFixtures.startingCoordinates( size );
+		final Options o = InferenceFixtures.createOptions( range, 20 );
+
+		final PyramidInference inference = new PyramidInference( n -> new InferFromStrip( new GlobalCorrelationFitAverage() ), 3, 5 );
+		Assert.assertArrayEquals( startingCoordinates, inference.estimateZCoordinates( strip, startingCoordinates, o ), 1e-6 );
+	}
+
+}
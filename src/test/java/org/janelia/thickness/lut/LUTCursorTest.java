@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.lut;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LUTCursorTest
+{
+
+	private final Random rng = new Random( 300 );
+
+	@Test
+	public void testSequentialMatchesBinarySearch()
+	{
+		final double[] lut = createLut( 200 );
+		final LUTCursor cursor = new LUTCursor( lut );
+		// increasing with small steps, then decreasing with large steps
+		for ( double y = lut[ 0 ] - 2.0; y <= lut[ lut.length - 1 ] + 2.0; y += 0.1 )
+			assertSame( lut, cursor, y );
+		for ( double y = lut[ lut.length - 1 ] + 2.0; y >= lut[ 0 ] - 2.0; y -= 7.3 )
+			assertSame( lut, cursor, y );
+	}
+
+	@Test
+	public void testRandomMatchesBinarySearch()
+	{
+		final double[] lut = createLut( 100 );
+		final LUTCursor cursor = new LUTCursor( lut, 50 );
+		for ( int i = 0; i < 10000; ++i )
+		{
+			// include exact lut values
+			final double y = rng.nextInt( 4 ) == 0 ? lut[ rng.nextInt( lut.length ) ] : lut[ 0 ] - 1.0 + rng.nextDouble() * ( lut[ lut.length - 1 ] - lut[ 0 ] + 2.0 );
+			assertSame( lut, cursor, y );
+		}
+	}
+
+	@Test
+	public void testBatch()
+	{
+		final double[] lut = createLut( 50 );
+		final double[] y = new double[ 500 ];
+		for ( int i = 0; i < y.length; ++i )
+			y[ i ] = lut[ 0 ] - 1.0 + i * ( lut[ lut.length - 1 ] - lut[ 0 ] + 2.0 ) / y.length;
+		final double[] x = new double[ y.length ];
+		final LUTCursor cursor = new LUTCursor( lut );
+		cursor.applyInverseChecked( x, y );
+		for ( int i = 0; i < y.length; ++i )
+			Assert.assertEquals( AbstractLUTRealTransform.applyInverseChecked( lut, y[ i ] ), x[ i ], 0.0 );
+
+		// round trip within the lut
+		final double[] inside = Arrays.stream( x ).filter( v -> v >= 0 && v <= lut.length - 1 ).toArray();
+		final double[] roundTrip = inside.clone();
+		cursor.applyChecked( roundTrip, roundTrip );
+		cursor.applyInverseChecked( roundTrip, roundTrip );
+		Assert.assertArrayEquals( inside, roundTrip, 1e-9 );
+	}
+
+	@Test
+	public void testTwoEntries()
+	{
+		final double[] lut = new double[] { 1.0, 3.0 };
+		final LUTCursor cursor = new LUTCursor( lut, 5 );
+		Assert.assertEquals( 0, cursor.getIndex() );
+		Assert.assertEquals( 0.5, cursor.applyInverse( 2.0 ), 0.0 );
+		Assert.assertEquals( 1.0, cursor.applyInverseChecked( 3.0 ), 0.0 );
+		Assert.assertEquals( Double.MAX_VALUE, cursor.applyInverseChecked( 3.5 ), 0.0 );
+		Assert.assertEquals( 2.0, cursor.applyChecked( 0.5 ), 0.0 );
+	}
+
+	private static void assertSame( final double[] lut, final LUTCursor cursor, final double y )
+	{
+		Assert.assertEquals( AbstractLUTRealTransform.findFloorIndex( lut, y ), cursor.findFloorIndex( y ) );
+		Assert.assertEquals( AbstractLUTRealTransform.applyInverseChecked( lut, y ), cursor.applyInverseChecked( y ), 0.0 );
+	}
+
+	/**
+	 * Non-decreasing with some repeated values.
+	 */
+	private double[] createLut( final int size )
+	{
+		final double[] lut = new double[ size ];
+		for ( int i = 1; i < size; ++i )
+			lut[ i ] = lut[ i - 1 ] + ( rng.nextInt( 10 ) == 0 ? 0.0 : 0.2 + 2 * rng.nextDouble() );
+		return lut;
+	}
+
+}
@@ -0,0 +1,152 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.lut;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RenderPlanTest
+{
+
+	private final int[] permutation = new int[] { 2, 0, 3, 1 };
+
+	private final double[] lut = new double[] { 0.0, 0.5, 2.0, 3.0 };
+
+	@Test
+	public void testCreate()
+	{
+		final RenderPlan plan = RenderPlan.create( lut, permutation, 2, false );
+		Assert.assertEquals( 7, plan.size() );
+		Assert.assertEquals( 4, plan.getSourceDepth() );
+
+		// z = 0.5 hits sorted section 1 exactly
+		Assert.assertTrue( plan.isCopy( 1 ) );
+		Assert.assertEquals( permutation[ 1 ], plan.getSourceA( 1 ) );
+		Assert.assertEquals( 1.0, plan.getWeightA( 1 ), 0.0 );
+
+		// z = 1.5 is 2/3 of the way from sorted section 1 to 2
+		Assert.assertEquals( permutation[ 1 ], plan.getSourceA( 3 ) );
+		Assert.assertEquals( permutation[ 2 ], plan.getSourceB( 3 ) );
+		Assert.assertEquals( 1.0 / 3.0, plan.getWeightA( 3 ), 1e-12 );
+		Assert.assertEquals( 2.0 / 3.0, plan.getWeightB( 3 ), 1e-12 );
+
+		for ( int z = 0; z < plan.size(); ++z )
+		{
+			Assert.assertFalse( plan.isEmpty( z ) );
+			Assert.assertEquals( 1.0, plan.getWeightA( z ) + plan.getWeightB( z ), 1e-12 );
+		}
+
+		int reads = 0;
+		for ( final int count : plan.countReads() )
+			reads += count;
+		int expected = 0;
+		for ( int z = 0; z < plan.size(); ++z )
+			expected += plan.isCopy( z ) ? 1 : 2;
+		Assert.assertEquals( expected, reads );
+	}
+
+	@Test
+	public void testBorder()
+	{
+		final double[] shifted = new double[] { 0.5, 1.0, 2.0, 3.0 };
+		final RenderPlan empty = RenderPlan.create( shifted, permutation, 1, false );
+		Assert.assertTrue( empty.isEmpty( 0 ) );
+		Assert.assertEquals( -1, empty.getSourceA( 0 ) );
+		// z = 1 hits sorted section 1, sorted section 0 is not needed
+		Assert.assertEquals( 0, empty.countReads()[ permutation[ 0 ] ] );
+
+		final RenderPlan extended = RenderPlan.create( shifted, permutation, 1, true );
+		Assert.assertTrue( extended.isCopy( 0 ) );
+		Assert.assertEquals( permutation[ 0 ], extended.getSourceA( 0 ) );
+	}
+
+	@Test
+	public void testWriteRead() throws IOException
+	{
+		final RenderPlan plan = RenderPlan.create( lut, permutation, 3, false );
+		final Path file = Files.createTempFile( "render-plan", ".tsv" );
+		try
+		{
+			plan.write( file );
+			final RenderPlan read = RenderPlan.read( file );
+			Assert.assertEquals( plan.size(), read.size() );
+			Assert.assertEquals( plan.getSourceDepth(), read.getSourceDepth() );
+			for ( int z = 0; z < plan.size(); ++z )
+			{
+				Assert.assertEquals( plan.getSourceA( z ), read.getSourceA( z ) );
+				Assert.assertEquals( plan.getSourceB( z ), read.getSourceB( z ) );
+				Assert.assertEquals( plan.getWeightA( z ), read.getWeightA( z ), 0.0 );
+				Assert.assertEquals( plan.getWeightB( z ), read.getWeightB( z ), 0.0 );
+			}
+		}
+		finally
+		{
+			Files.delete( file );
+		}
+	}
+
+	@Test
+	public void testReadRejectsInvalidPlans() throws IOException
+	{
+		final String[][] invalid = new String[][] {
+				// missing slice 1
+				{ "0\t0\t0\t1.0\t0.0", "2\t1\t1\t1.0\t0.0" },
+				// duplicate slice 0
+				{ "0\t0\t0\t1.0\t0.0", "0\t1\t1\t1.0\t0.0" },
+				// out of order
+				{ "1\t0\t0\t1.0\t0.0", "0\t1\t1\t1.0\t0.0" },
+				// non-finite weights
+				{ "0\t0\t1\tNaN\t0.0", "1\t1\t1\t1.0\t0.0" },
+				{ "0\t0\t1\t1.0\tInfinity", "1\t1\t1\t1.0\t0.0" } };
+		for ( final String[] lines : invalid )
+		{
+			final Path file = Files.createTempFile( "render-plan", ".tsv" );
+			try
+			{
+				Files.write( file, Arrays.asList( RenderPlan.HEADER, "2", lines[ 0 ], lines[ 1 ] ), StandardCharsets.UTF_8 );
+				RenderPlan.read( file );
+				Assert.fail( "Accepted invalid plan " + Arrays.toString( lines ) );
+			}
+			catch ( final IOException e )
+			{
+				// expected
+			}
+			finally
+			{
+				Files.delete( file );
+			}
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testInvalidSource()
+	{
+		new RenderPlan( 2, new int[] { 2 }, new int[] { 0 }, new double[] { 1.0 }, new double[] { 0.0 } );
+	}
+
+}
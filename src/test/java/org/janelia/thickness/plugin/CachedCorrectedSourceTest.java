@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import org.janelia.thickness.lut.RenderPlan;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class CachedCorrectedSourceTest
+{
+
+	private final int width = 10;
+
+	private final int height = 6;
+
+	private final int depth = 5;
+
+	@Test
+	public void testLevels()
+	{
+		final ImageStack stack = new ImageStack( width, height );
+		for ( int z = 0; z < depth; ++z )
+		{
+			final ShortProcessor sp = new ShortProcessor( width, height );
+			for ( int y = 0; y < height; ++y )
+				for ( int x = 0; x < width; ++x )
+					sp.set( x, y, value( x, y, z ) );
+			stack.addSlice( sp );
+		}
+
+		// reversed order, sorted section 1 moved to 1.5
+		final int[] permutation = new int[] { 4, 3, 2, 1, 0 };
+		final RenderPlan plan = RenderPlan.create( new double[] { 0.0, 1.5, 2.0, 3.0, 4.0 }, permutation, 1, false );
+		final CachedCorrectedSource source = new CachedCorrectedSource( stack, plan, new int[] { 4, 4, 2 }, 1 << 20 );
+		Assert.assertEquals( 3, source.numLevels() );
+
+		final RandomAccess< FloatType > level0 = source.getLevel( 0 ).randomAccess();
+		for ( int z = 0; z < plan.size(); ++z )
+			for ( int y = 0; y < height; ++y )
+				for ( int x = 0; x < width; ++x )
+				{
+					level0.setPosition( new int[] { x, y, z } );
+					final double expected = plan.getWeightA( z ) * value( x, y, plan.getSourceA( z ) ) + plan.getWeightB( z ) * value( x, y, plan.getSourceB( z ) );
+					Assert.assertEquals( expected, level0.get().getRealDouble(), 1e-4 );
+				}
+
+		// 2x2x2 box average, i.e. voxel centers are offset by half a voxel
+		final RandomAccess< FloatType > level1 = source.getLevel( 1 ).randomAccess();
+		Assert.assertEquals( width / 2, source.getLevel( 1 ).dimension( 0 ) );
+		Assert.assertEquals( ( plan.size() + 1 ) / 2, source.getLevel( 1 ).dimension( 2 ) );
+		level1.setPosition( new int[] { 2, 1, 1 } );
+		Assert.assertEquals( average( level0, 4, 2, 2, 2 ), level1.get().getRealDouble(), 1e-4 );
+
+		// last slice of level 1 only covers the last slice of level 0
+		level1.setPosition( new int[] { 2, 1, 2 } );
+		Assert.assertEquals( average( level0, 4, 2, 4, 1 ), level1.get().getRealDouble(), 1e-4 );
+
+		// level 2 is the 2x2x2 box average of level 1
+		final RandomAccess< FloatType > level2 = source.getLevel( 2 ).randomAccess();
+		level2.setPosition( new int[] { 1, 0, 0 } );
+		Assert.assertEquals( average( level1, 2, 0, 0, 2 ), level2.get().getRealDouble(), 1e-4 );
+
+		// cells are loaded again after close
+		final double before = level2.get().getRealDouble();
+		source.close();
+		final RandomAccess< FloatType > reloaded = source.getLevel( 2 ).randomAccess();
+		reloaded.setPosition( new int[] { 1, 0, 0 } );
+		Assert.assertEquals( before, reloaded.get().getRealDouble(), 0.0 );
+	}
+
+	/**
+	 * @return average of 2 x 2 x depth voxels starting at (x,y,z)
+	 */
+	private static double average( final RandomAccess< FloatType > access, final int x, final int y, final int z, final int depth )
+	{
+		double sum = 0.0;
+		for ( int dz = 0; dz < depth; ++dz )
+			for ( int dy = 0; dy < 2; ++dy )
+				for ( int dx = 0; dx < 2; ++dx )
+				{
+					access.setPosition( new int[] { x + dx, y + dy, z + dz } );
+					sum += access.get().getRealDouble();
+				}
+		return sum / ( 4 * depth );
+	}
+
+	private static int value( final int x, final int y, final int z )
+	{
+		return x + 20 * y + 200 * z;
+	}
+
+}
@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CachedFloatNCCTest
+{
+
+	private final int size = 1000;
+
+	@Test
+	public void testMatchesRealSumWithoutNaN()
+	{
+		final Random rng = new Random( 100 );
+		for ( int t = 0; t < 10; ++t )
+		{
+			final float[] a = createSection( rng, null, 0.0 );
+			final float[] b = createSection( rng, a, 0.0 );
+			compare( a, b );
+		}
+	}
+
+	@Test
+	public void testMatchesRealSumWithNaN()
+	{
+		final Random rng = new Random( 101 );
+		for ( int t = 0; t < 10; ++t )
+		{
+			final float[] a = createSection( rng, null, 0.1 );
+			final float[] b = createSection( rng, a, 0.2 );
+			compare( a, b );
+			compare( b, a );
+		}
+	}
+
+	@Test
+	public void testSectionStatistics()
+	{
+		final float[] pixels = new float[] { 1.0f, Float.NaN, 3.0f, 5.0f };
+		final CachedFloatNCC.Section section = new CachedFloatNCC.Section( pixels );
+		Assert.assertEquals( 3, section.getCount() );
+		Assert.assertEquals( 3.0, section.getMean(), 0.0 );
+		Assert.assertFalse( section.isComplete() );
+		Assert.assertSame( pixels, section.getPixels() );
+	}
+
+	@Test
+	public void testNoOverlap()
+	{
+		final float[] a = new float[] { 1.0f, 2.0f, Float.NaN, Float.NaN };
+		final float[] b = new float[] { Float.NaN, Float.NaN, 1.0f, 2.0f };
+		Assert.assertTrue( Double.isNaN( CachedFloatNCC.ncc( new CachedFloatNCC.Section( a ), new CachedFloatNCC.Section( b ) ) ) );
+	}
+
+	private static void compare( final float[] a, final float[] b )
+	{
+		final double expected = new RealSumFloatNCC( a, b ).call();
+		final double actual = CachedFloatNCC.ncc( new CachedFloatNCC.Section( a ), new CachedFloatNCC.Section( b ) );
+		Assert.assertEquals( expected, actual, 1e-9 );
+	}
+
+	private float[] createSection( final Random rng, final float[] reference, final double nanProbability )
+	{
+		final float[] section = new float[ size ];
+		for ( int i = 0; i < size; ++i )
+		{
+			final double noise = 10.0 * rng.nextGaussian();
+			final double value = reference == null || Float.isNaN( reference[ i ] ) ? 100.0 + noise : 0.5 * reference[ i ] + 50.0 + noise;
+			section[ i ] = rng.nextDouble() < nanProbability ? Float.NaN : ( float ) value;
+		}
+		return section;
+	}
+
+}
@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FFTFloatNCCTest
+{
+
+	private final int width = 24;
+
+	private final int height = 18;
+
+	private final int maximumShift = 3;
+
+	@Test
+	public void testZeroShiftMatchesRealSum()
+	{
+		final Random rng = new Random( 300 );
+		final float[] a = createSection( rng );
+		final float[] b = createSection( rng );
+		for ( int i = 0; i < a.length; ++i )
+			b[ i ] = 0.5f * a[ i ] + b[ i ];
+		a[ 3 ] = Float.NaN;
+		b[ 50 ] = Float.NaN;
+
+		final FFTFloatNCC ncc = new FFTFloatNCC( width, height, maximumShift, 0.5 );
+		final float[][] map = ncc.correlation( ncc.transform( a ), ncc.transform( b ) );
+		Assert.assertEquals( 2 * maximumShift + 1, map.length );
+		Assert.assertEquals( new RealSumFloatNCC( a, b ).call(), map[ maximumShift ][ maximumShift ], 1e-4 );
+	}
+
+	@Test
+	public void testPeakAtShift()
+	{
+		final Random rng = new Random( 301 );
+		final int dx = 2;
+		final int dy = -1;
+		final int margin = maximumShift + 1;
+		final int w = width + 2 * margin;
+		final float[] large = new float[ w * ( height + 2 * margin ) ];
+		for ( int i = 0; i < large.length; ++i )
+			large[ i ] = ( float ) ( 100.0 + 20.0 * rng.nextGaussian() );
+		final float[] a = new float[ width * height ];
+		final float[] b = new float[ width * height ];
+		for ( int y = 0, i = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				a[ i ] = large[ ( y + margin ) * w + x + margin ];
+				b[ i ] = large[ ( y + margin - dy ) * w + x + margin - dx ] + ( float ) rng.nextGaussian();
+			}
+
+		final FFTFloatNCC ncc = new FFTFloatNCC( width, height, maximumShift, 0.5 );
+		final FFTFloatNCC.Spectra sa = ncc.transform( a );
+		final FFTFloatNCC.Spectra sb = ncc.transform( b );
+		final float[][] map = ncc.correlation( sa, sb );
+		final double peak = ncc.ncc( sa, sb );
+		Assert.assertEquals( map[ dy + maximumShift ][ dx + maximumShift ], peak, 0.0 );
+		Assert.assertTrue( peak > 0.99 );
+		Assert.assertTrue( map[ maximumShift ][ maximumShift ] < 0.5 );
+	}
+
+	@Test
+	public void testInsufficientOverlap()
+	{
+		final float[] a = createSection( new Random( 302 ) );
+		final float[] b = a.clone();
+		for ( int i = 0; i < a.length; ++i )
+			if ( i % width < width / 2 )
+				a[ i ] = Float.NaN;
+			else
+				b[ i ] = Float.NaN;
+		final FFTFloatNCC ncc = new FFTFloatNCC( width, height, maximumShift, 0.5 );
+		Assert.assertTrue( Double.isNaN( ncc.ncc( ncc.transform( a ), ncc.transform( b ) ) ) );
+	}
+
+	private float[] createSection( final Random rng )
+	{
+		final float[] section = new float[ width * height ];
+		for ( int i = 0; i < section.length; ++i )
+			section[ i ] = ( float ) ( 100.0 + 20.0 * rng.nextGaussian() );
+		return section;
+	}
+
+}
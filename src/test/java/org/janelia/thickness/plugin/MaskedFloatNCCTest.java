@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.util.Random;
+
+import org.janelia.thickness.trakem2.RealSumARGBNCC;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MaskedFloatNCCTest
+{
+
+	private final int width = 61;
+
+	private final int height = 37;
+
+	@Test
+	public void testMatchesRealSum()
+	{
+		final Random rng = new Random( 100 );
+		final float[] a = new float[ width * height ];
+		final float[] b = new float[ width * height ];
+		for ( int i = 0; i < a.length; ++i )
+		{
+			a[ i ] = 1000.0f + 100.0f * rng.nextFloat();
+			b[ i ] = 0.5f * a[ i ] + 20.0f * rng.nextFloat();
+		}
+
+		// complete sections
+		Assert.assertEquals( new RealSumFloatNCC( a, b ).call(), MaskedFloatNCC.ncc( new MaskedFloatNCC.Section( a ), new MaskedFloatNCC.Section( b ) ), 1e-9 );
+
+		// empty border in a, random invalid pixels in b
+		for ( int y = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x )
+				if ( x < 10 || y < 5 || y >= height - 3 )
+					a[ y * width + x ] = Float.NaN;
+		for ( int i = 0; i < b.length; ++i )
+			if ( rng.nextInt( 7 ) == 0 )
+				b[ i ] = Float.NaN;
+
+		final MaskedFloatNCC.Section sa = new MaskedFloatNCC.Section( a );
+		final MaskedFloatNCC.Section sb = new MaskedFloatNCC.Section( b );
+		Assert.assertEquals( new RealSumFloatNCC( a, b ).call(), MaskedFloatNCC.ncc( sa, sb ), 1e-9 );
+		Assert.assertEquals( MaskedFloatNCC.ncc( sa, sb ), MaskedFloatNCC.ncc( sb, sa ), 1e-12 );
+		Assert.assertFalse( sa.isValid( 0 ) );
+		Assert.assertTrue( sa.isValid( 5 * width + 10 ) );
+		Assert.assertEquals( ( width - 10 ) * ( height - 8 ), sa.getCount() );
+	}
+
+	@Test
+	public void testMatchesARGB()
+	{
+		final Random rng = new Random( 200 );
+		final int[] a = new int[ width * height ];
+		final int[] b = new int[ width * height ];
+		for ( int i = 0; i < a.length; ++i )
+		{
+			final int va = rng.nextInt( 256 );
+			final int vb = Math.min( 255, va / 2 + rng.nextInt( 100 ) );
+			a[ i ] = i % width < 20 ? 0xff000000 : 0xff000000 | va << 16 | Math.max( 1, va - 1 ) << 8 | va;
+			b[ i ] = 0xff000000 | vb << 16 | vb << 8 | vb;
+		}
+		final double expected = new RealSumARGBNCC( a, b ).call();
+		Assert.assertEquals( expected, MaskedFloatNCC.ncc( MaskedFloatNCC.Section.fromARGB( a ), MaskedFloatNCC.Section.fromARGB( b ) ), 1e-6 );
+	}
+
+	@Test
+	public void testDisjoint()
+	{
+		final float[] a = new float[ 200 ];
+		final float[] b = new float[ 200 ];
+		for ( int i = 0; i < a.length; ++i )
+		{
+			a[ i ] = i < 100 ? i : Float.NaN;
+			b[ i ] = i < 100 ? Float.NaN : i;
+		}
+		Assert.assertTrue( Double.isNaN( MaskedFloatNCC.ncc( new MaskedFloatNCC.Section( a ), new MaskedFloatNCC.Section( b ) ) ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testMaskSizeMismatch()
+	{
+		new MaskedFloatNCC.Section( new float[ 65 ], new long[ 1 ] );
+	}
+
+}
@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+public class StackGeneratorTest
+{
+
+	private final int width = 7;
+
+	private final int height = 5;
+
+	private final int depth = 4;
+
+	@Test
+	public void testFloat() throws Exception
+	{
+		final ImageStack stack = generate( StackGenerator.OutputType.GRAY32, 3, 2 );
+		Assert.assertEquals( depth, stack.getSize() );
+		Assert.assertTrue( stack.getProcessor( 1 ) instanceof FloatProcessor );
+		for ( int z = 0; z < depth; ++z )
+			for ( int y = 0; y < height; ++y )
+				for ( int x = 0; x < width; ++x )
+					Assert.assertEquals( value( x, y, z ), stack.getProcessor( z + 1 ).getf( x, y ), 0.0 );
+	}
+
+	@Test
+	public void testIntegerTypes() throws Exception
+	{
+		final ImageStack bytes = generate( StackGenerator.OutputType.GRAY8, width, 1 );
+		final ImageStack shorts = generate( StackGenerator.OutputType.GRAY16, 4, 4 );
+		Assert.assertTrue( bytes.getProcessor( 1 ) instanceof ByteProcessor );
+		Assert.assertTrue( shorts.getProcessor( 1 ) instanceof ShortProcessor );
+		for ( int z = 0; z < depth; ++z )
+			for ( int y = 0; y < height; ++y )
+				for ( int x = 0; x < width; ++x )
+				{
+					Assert.assertEquals( Math.min( value( x, y, z ), 255 ), bytes.getProcessor( z + 1 ).get( x, y ) );
+					Assert.assertEquals( value( x, y, z ), shorts.getProcessor( z + 1 ).get( x, y ) );
+				}
+	}
+
+	@Test
+	public void testClamp()
+	{
+		Assert.assertEquals( 0.0, StackGenerator.OutputType.GRAY8.clamp( -3.0 ), 0.0 );
+		Assert.assertEquals( 65535.0, StackGenerator.OutputType.GRAY16.clamp( 1e6 ), 0.0 );
+		Assert.assertEquals( -3.0, StackGenerator.OutputType.GRAY32.clamp( -3.0 ), 0.0 );
+	}
+
+	private ImageStack generate( final StackGenerator.OutputType type, final int tileWidth, final int tileHeight ) throws Exception
+	{
+		final double[] data = new double[ width * height * depth ];
+		for ( int z = 0, i = 0; z < depth; ++z )
+			for ( int y = 0; y < height; ++y )
+				for ( int x = 0; x < width; ++x, ++i )
+					data[ i ] = value( x, y, z );
+		final RealRandomAccessible< DoubleType > input = Views.interpolate(
+				Views.extendBorder( ArrayImgs.doubles( data, width, height, depth ) ),
+				new NearestNeighborInterpolatorFactory<>() );
+
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		try
+		{
+			return StackGenerator.generate( input, width, height, depth, type, tileWidth, tileHeight, es );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	private static int value( final int x, final int y, final int z )
+	{
+		return x + 10 * y + 100 * z;
+	}
+
+}
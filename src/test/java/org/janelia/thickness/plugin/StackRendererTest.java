@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+public class StackRendererTest
+{
+
+	private final int width = 5;
+
+	private final int height = 3;
+
+	private final int depth = 4;
+
+	@Test
+	public void testInterpolation() throws Exception
+	{
+		final CountingStack stack = createStack();
+		// reversed order, identity lut
+		final StackRenderer renderer = new StackRenderer( stack, new int[] { 3, 2, 1, 0 }, new double[] { 0, 1, 2, 3 }, 2, false );
+		Assert.assertEquals( 2 * depth - 1, renderer.getDepth() );
+
+		final StackRenderer.ImageStackWriter writer = new StackRenderer.ImageStackWriter( renderer.getDepth() );
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		try
+		{
+			renderer.render( writer, es, 2 );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+
+		final ImageStack result = writer.getStack( width, height );
+		for ( int z = 0; z < renderer.getDepth(); ++z )
+			Assert.assertEquals( 10.0 * ( 3 - 0.5 * z ), result.getProcessor( z + 1 ).getf( 7 ), 1e-5 );
+		for ( int z = 0; z < depth; ++z )
+			Assert.assertEquals( 1, stack.reads.get( z ) );
+	}
+
+	@Test
+	public void testOutsideOfLut() throws Exception
+	{
+		final double[] lut = new double[] { 0.5, 1, 2, 3 };
+		final ExecutorService es = Executors.newFixedThreadPool( 2 );
+		try
+		{
+			final StackRenderer.ImageStackWriter empty = new StackRenderer.ImageStackWriter( 2 * depth - 1 );
+			new StackRenderer( createStack(), new int[] { 0, 1, 2, 3 }, lut, 2, false ).render( empty, es, 1 );
+			final ImageStack emptyResult = empty.getStack( width, height );
+			Assert.assertTrue( Float.isNaN( emptyResult.getProcessor( 1 ).getf( 0 ) ) );
+			Assert.assertEquals( 0.0, emptyResult.getProcessor( 2 ).getf( 0 ), 0.0 );
+
+			final StackRenderer.ImageStackWriter extended = new StackRenderer.ImageStackWriter( depth );
+			new StackRenderer( createStack(), new int[] { 0, 1, 2, 3 }, lut, 1, true ).render( extended, es, 1 );
+			Assert.assertEquals( 0.0, extended.getStack( width, height ).getProcessor( 1 ).getf( 0 ), 0.0 );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test
+	public void testTiffSequence() throws Exception
+	{
+		final Path directory = Files.createTempDirectory( "stack-renderer" );
+		final ExecutorService es = Executors.newFixedThreadPool( 2 );
+		try
+		{
+			final StackRenderer renderer = new StackRenderer( createStack(), new int[] { 0, 1, 2, 3 }, new double[] { 0, 1, 2, 3 }, 1, true );
+			final StackRenderer.TiffSequenceWriter writer = new StackRenderer.TiffSequenceWriter( directory, "slice-", renderer.getDepth() );
+			renderer.render( writer, es, 2 );
+			for ( int z = 0; z < depth; ++z )
+			{
+				final File file = writer.getFile( z );
+				Assert.assertEquals( "slice-" + z + ".tif", file.getName() );
+				final ImagePlus imp = IJ.openImage( file.getAbsolutePath() );
+				Assert.assertEquals( 10.0 * z, imp.getProcessor().getf( 0 ), 0.0 );
+				Files.delete( file.toPath() );
+			}
+		}
+		finally
+		{
+			es.shutdown();
+			Files.deleteIfExists( directory );
+		}
+	}
+
+	/**
+	 * Section z is filled with 10 * z.
+	 */
+	private CountingStack createStack()
+	{
+		final CountingStack stack = new CountingStack( width, height, depth );
+		for ( int z = 0; z < depth; ++z )
+		{
+			final FloatProcessor fp = new FloatProcessor( width, height );
+			fp.setValue( 10.0 * z );
+			fp.fill();
+			stack.addSlice( fp );
+		}
+		return stack;
+	}
+
+	private static class CountingStack extends ImageStack
+	{
+		private final AtomicIntegerArray reads;
+
+		private CountingStack( final int width, final int height, final int depth )
+		{
+			super( width, height );
+			this.reads = new AtomicIntegerArray( depth );
+		}
+
+		@Override
+		public ImageProcessor getProcessor( final int n )
+		{
+			reads.incrementAndGet( n - 1 );
+			return super.getProcessor( n );
+		}
+	}
+
+}
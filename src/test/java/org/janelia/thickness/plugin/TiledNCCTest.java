@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.janelia.utility.MatrixStripConversion;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TiledNCCTest
+{
+
+	private final int width = 20;
+
+	private final int height = 14;
+
+	private final int patchWidth = 8;
+
+	private final int patchHeight = 6;
+
+	private final int step = 4;
+
+	private final int range = 2;
+
+	private final int n = 6;
+
+	@Test
+	public void testMatchesPatchNCC() throws Exception
+	{
+		final Random rng = new Random( 400 );
+		final float[][] sections = new float[ n ][ width * height ];
+		for ( int z = 0; z < n; ++z )
+			for ( int i = 0; i < width * height; ++i )
+				sections[ z ][ i ] = rng.nextDouble() < 0.05 ? Float.NaN : ( float ) ( z + rng.nextGaussian() + ( z > 0 ? sections[ z - 1 ][ i ] : 0.0f ) );
+
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		try
+		{
+			final TiledNCC tiled = new TiledNCC( width, height, patchWidth, patchHeight, step, step, range, n, es );
+			for ( final float[] section : sections )
+				tiled.push( section );
+
+			Assert.assertEquals( 4, tiled.getGridWidth() );
+			Assert.assertEquals( 3, tiled.getGridHeight() );
+			Assert.assertArrayEquals( new double[] { step, step }, tiled.getScale(), 0.0 );
+			Assert.assertArrayEquals( new double[] { 3.5, 2.5 }, tiled.getShift(), 0.0 );
+
+			final double[][] strips = tiled.getStrips();
+			for ( int gy = 0; gy < tiled.getGridHeight(); ++gy )
+				for ( int gx = 0; gx < tiled.getGridWidth(); ++gx )
+				{
+					final double[] strip = strips[ gx + tiled.getGridWidth() * gy ];
+					for ( int x = 0; x < n; ++x )
+						for ( int y = 0; y < n; ++y )
+						{
+							final double actual = MatrixStripConversion.get( strip, null, range, n, x, y );
+							if ( Math.abs( x - y ) > range )
+								Assert.assertTrue( Double.isNaN( actual ) );
+							else
+							{
+								final double expected = x == y ? 1.0 : new RealSumFloatNCC( patch( sections[ x ], gx, gy ), patch( sections[ y ], gx, gy ) ).call();
+								Assert.assertEquals( expected, actual, 1e-9 );
+							}
+						}
+				}
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test( expected = IllegalStateException.class )
+	public void testTooManySections() throws Exception
+	{
+		final TiledNCC tiled = new TiledNCC( width, height, patchWidth, patchHeight, step, step, range, 1, null );
+		tiled.push( new float[ width * height ] );
+		tiled.push( new float[ width * height ] );
+	}
+
+	private float[] patch( final float[] section, final int gx, final int gy )
+	{
+		final float[] patch = new float[ patchWidth * patchHeight ];
+		for ( int y = 0; y < patchHeight; ++y )
+			for ( int x = 0; x < patchWidth; ++x )
+				patch[ y * patchWidth + x ] = section[ ( gy * step + y ) * width + gx * step + x ];
+		return patch;
+	}
+
+}
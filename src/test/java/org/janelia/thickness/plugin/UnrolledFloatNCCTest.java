@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.thickness.plugin;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UnrolledFloatNCCTest
+{
+
+	@Test
+	public void testMatchesRealSum()
+	{
+		final Random rng = new Random( 200 );
+		// lengths that are odd, smaller than and not multiples of the block size
+		final int[] sizes = { 1, 2, 7, 1000, UnrolledFloatNCC.BLOCK_SIZE, 3 * UnrolledFloatNCC.BLOCK_SIZE + 5 };
+		for ( final int size : sizes )
+			for ( final double nanProbability : new double[] { 0.0, 0.15 } )
+			{
+				final float[] a = new float[ size ];
+				final float[] b = new float[ size ];
+				for ( int i = 0; i < size; ++i )
+				{
+					a[ i ] = ( float ) ( 100.0 + 10.0 * rng.nextGaussian() );
+					b[ i ] = ( float ) ( 0.5 * a[ i ] + 50.0 + 10.0 * rng.nextGaussian() );
+					if ( rng.nextDouble() < nanProbability )
+						a[ i ] = Float.NaN;
+					if ( rng.nextDouble() < nanProbability )
+						b[ i ] = Float.NaN;
+				}
+				final double expected = new RealSumFloatNCC( a, b ).call();
+				final double actual = new UnrolledFloatNCC( a, b ).call();
+				if ( Double.isNaN( expected ) )
+					Assert.assertTrue( Double.isNaN( actual ) );
+				else
+					Assert.assertEquals( expected, actual, 1e-9 );
+			}
+	}
+
+	@Test
+	public void testPerfectCorrelation()
+	{
+		final float[] a = new float[ 2 * UnrolledFloatNCC.BLOCK_SIZE + 1 ];
+		final float[] b = new float[ a.length ];
+		for ( int i = 0; i < a.length; ++i )
+		{
+			a[ i ] = i % 17;
+			b[ i ] = 3 * a[ i ] + 2;
+		}
+		a[ 5 ] = Float.NaN;
+		b[ 11 ] = Float.NaN;
+		Assert.assertEquals( 1.0, UnrolledFloatNCC.ncc( a, b ), 1e-9 );
+	}
+
+}
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class AdaptiveRefinementTest
+{
+
+	private final int n = 20;
+
+	private final int range = 4;
+
+	@Test
+	public void testSelect()
+	{
+		final BandedMatrix< DoubleType > coarse = createMatrix( 0.0, 1.0 );
+		// increase with distance in row 5
+		coarse.setSymmetric( 5, 8, 0.9 );
+		coarse.setSymmetric( 12, 14, Double.NaN );
+		final boolean[][] selected = new AdaptiveRefinement( 0.01, 0.35, 0 ).select( coarse );
+
+		Assert.assertTrue( selected[ 8 ][ 2 ] );
+		// same row, distance 2
+		Assert.assertTrue( selected[ 7 ][ 1 ] );
+		// same column, distance 2
+		Assert.assertTrue( selected[ 8 ][ 1 ] );
+		Assert.assertTrue( selected[ 14 ][ 1 ] );
+		Assert.assertFalse( selected[ 10 ][ 0 ] );
+		// exp( -0.3 * 4 ) ~ 0.30 < 0.35
+		Assert.assertTrue( selected[ 10 ][ 3 ] );
+		Assert.assertEquals( 3 + 1 + n - range, AdaptiveRefinement.count( selected ) );
+
+		final boolean[][] calibration = new AdaptiveRefinement( 0.01, 0.0, 5 ).select( createMatrix( 0.0, 1.0 ) );
+		for ( int z = 0; z < n; ++z )
+			for ( int d = 1; d <= range && d <= z; ++d )
+				Assert.assertEquals( ( z - d ) % 5 == 0, calibration[ z ][ d - 1 ] );
+	}
+
+	@Test
+	public void testRefineAndMerge() throws Exception
+	{
+		final BandedMatrix< DoubleType > coarse = createMatrix( 0.1, 0.5 );
+		final AdaptiveRefinement refinement = new AdaptiveRefinement( 0.01, 0.0, 3 );
+		final boolean[][] selected = refinement.select( coarse );
+		// pair ( 10, 11 ) is not a calibration pair
+		selected[ 11 ][ 0 ] = true;
+
+		final Set< Integer > loaded = new HashSet<>();
+		final BandedMatrix< DoubleType > fine = BandedMatrix.doubles( n, range );
+		AdaptiveRefinement.< Integer >refine(
+				selected,
+				z -> {
+					loaded.add( z );
+					return z;
+				},
+				( a, b ) -> value( a, b, 0.0, 1.0 ),
+				fine,
+				null );
+
+		for ( int z = 0; z < n; ++z )
+			for ( int d = 1; d <= range && d <= z; ++d )
+				if ( selected[ z ][ d - 1 ] )
+					Assert.assertEquals( value( z - d, z, 0.0, 1.0 ), fine.get( z - d, z ), 1e-12 );
+				else
+					Assert.assertTrue( Double.isNaN( fine.get( z - d, z ) ) );
+		Assert.assertTrue( loaded.contains( 10 ) );
+		Assert.assertTrue( loaded.contains( 11 ) );
+
+		// fine = ( coarse - 0.1 ) / 0.5
+		final double[] calibration = refinement.calibrate( coarse, fine );
+		Assert.assertArrayEquals( new double[] { -0.2, 2.0 }, calibration, 1e-9 );
+
+		final BandedMatrix< DoubleType > matrix = BandedMatrix.doubles( n, range );
+		AdaptiveRefinement.merge( coarse, fine, selected, calibration, matrix );
+		for ( int z = 0; z < n; ++z )
+		{
+			Assert.assertEquals( 1.0, matrix.get( z, z ), 0.0 );
+			for ( int d = 1; d <= range && d <= z; ++d )
+				Assert.assertEquals( value( z - d, z, 0.0, 1.0 ), matrix.get( z - d, z ), 1e-9 );
+		}
+	}
+
+	@Test
+	public void testCalibrationDisabled()
+	{
+		final BandedMatrix< DoubleType > coarse = createMatrix( 0.1, 0.5 );
+		final double[] calibration = new AdaptiveRefinement( 0.01, 0.0, 0 ).calibrate( coarse, createMatrix( 0.0, 1.0 ) );
+		Assert.assertArrayEquals( new double[] { 0.0, 1.0 }, calibration, 0.0 );
+	}
+
+	/**
+	 * offset + scale * exp( -0.3 * | a - b | )
+	 */
+	private static double value( final int a, final int b, final double offset, final double scale )
+	{
+		return offset + scale * Math.exp( -0.3 * Math.abs( a - b ) );
+	}
+
+	private BandedMatrix< DoubleType > createMatrix( final double offset, final double scale )
+	{
+		final BandedMatrix< DoubleType > matrix = BandedMatrix.doubles( n, range );
+		for ( int z = 0; z < n; ++z )
+			for ( int d = 0; d <= range && d <= z; ++d )
+				matrix.setSymmetric( z - d, z, value( z - d, z, offset, scale ) );
+		return matrix;
+	}
+
+}
@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class BandedMatrixTest
+{
+
+	private final int n = 10;
+
+	private final int range = 3;
+
+	@Test
+	public void testAccess()
+	{
+		final BandedMatrix< FloatType > matrix = BandedMatrix.floats( n, range );
+		Assert.assertEquals( n, matrix.dimension( 0 ) );
+		Assert.assertEquals( n, matrix.dimension( 1 ) );
+		Assert.assertEquals( 2 * range + 1, matrix.getStrip().dimension( 0 ) );
+
+		for ( int y = 0; y < n; ++y )
+			for ( int x = y; x < n; ++x )
+				matrix.setSymmetric( x, y, 100 * x + y );
+
+		final RandomAccess< FloatType > access = matrix.randomAccess();
+		for ( int y = 0; y < n; ++y )
+			for ( int x = 0; x < n; ++x )
+			{
+				access.setPosition( x, 0 );
+				access.setPosition( y, 1 );
+				final double expected = Math.abs( x - y ) <= range ? 100 * Math.max( x, y ) + Math.min( x, y ) : Double.NaN;
+				Assert.assertEquals( expected, access.get().getRealDouble(), 0.0 );
+				Assert.assertEquals( expected, matrix.get( x, y ), 0.0 );
+			}
+
+		// writes outside of band are ignored
+		access.setPosition( new long[] { 0, n - 1 } );
+		access.get().setReal( 1.0 );
+		Assert.assertTrue( Double.isNaN( access.get().getRealDouble() ) );
+		Assert.assertFalse( matrix.isInBand( 0, n ) );
+	}
+
+	@Test
+	public void testStrip()
+	{
+		final ArrayImg< DoubleType, DoubleArray > dense = ArrayImgs.doubles( n, n );
+		for ( final ArrayCursor< DoubleType > c = dense.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			c.get().set( c.getDoublePosition( 0 ) * c.getDoublePosition( 1 ) + c.getDoublePosition( 0 ) );
+		}
+		final BandedMatrix< DoubleType > matrix = BandedMatrix.doubles( dense, range );
+		final double[] expected = MatrixStripConversion.matrixToDoubleStrip( dense, range );
+		Assert.assertArrayEquals( expected, matrix.toDoubleStrip(), 0.0 );
+		Assert.assertArrayEquals( expected, MatrixStripConversion.matrixToDoubleStrip( matrix, range ), 0.0 );
+		// general path for different range
+		Assert.assertArrayEquals( MatrixStripConversion.matrixToDoubleStrip( dense, range - 1 ), MatrixStripConversion.matrixToDoubleStrip( matrix, range - 1 ), 0.0 );
+	}
+
+}
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LRUCacheTest
+{
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception
+	{
+		final LRUCache< Integer, double[] > cache = new LRUCache<>( 10, v -> v.length );
+		final AtomicInteger loads = new AtomicInteger();
+		for ( int i = 0; i < 3; ++i )
+		{
+			final int size = 4;
+			cache.get( i, () -> {
+				loads.incrementAndGet();
+				return new double[ size ];
+			} );
+		}
+		// 3 * 4 > 10, first value evicted
+		Assert.assertEquals( 3, loads.get() );
+		Assert.assertEquals( 2, cache.size() );
+		Assert.assertEquals( 8, cache.getWeight() );
+		Assert.assertFalse( cache.contains( 0 ) );
+
+		// access 1, such that 2 is least recently used
+		cache.get( 1, () -> {
+			loads.incrementAndGet();
+			return new double[ 4 ];
+		} );
+		Assert.assertEquals( 3, loads.get() );
+		cache.put( 3, new double[ 4 ] );
+		Assert.assertTrue( cache.contains( 1 ) );
+		Assert.assertFalse( cache.contains( 2 ) );
+		Assert.assertTrue( cache.contains( 3 ) );
+	}
+
+	@Test
+	public void testKeepsMostRecentAndSkipsNull() throws Exception
+	{
+		final LRUCache< Integer, double[] > cache = new LRUCache<>( 2, v -> v.length );
+		cache.put( 0, new double[ 5 ] );
+		Assert.assertEquals( 1, cache.size() );
+		Assert.assertTrue( cache.contains( 0 ) );
+
+		Assert.assertNull( cache.get( 1, () -> null ) );
+		Assert.assertFalse( cache.contains( 1 ) );
+
+		cache.clear();
+		Assert.assertEquals( 0, cache.size() );
+		Assert.assertEquals( 0, cache.getWeight() );
+	}
+
+	@Test
+	public void testLoadsEachKeyOnce() throws Exception
+	{
+		final LRUCache< Integer, double[] > cache = new LRUCache<>( 100, v -> v.length );
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final int nThreads = 4;
+		final ExecutorService es = Executors.newFixedThreadPool( nThreads );
+		try
+		{
+			final Callable< double[] > loader = () -> {
+				loads.incrementAndGet();
+				started.countDown();
+				release.await();
+				return new double[ 4 ];
+			};
+			final List< Future< double[] > > futures = new ArrayList<>();
+			futures.add( es.submit( () -> cache.get( 0, loader ) ) );
+			Assert.assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+			for ( int i = 1; i < nThreads; ++i )
+				futures.add( es.submit( () -> cache.get( 0, loader ) ) );
+			// give the other requests time to reach the cache
+			Thread.sleep( 100 );
+			release.countDown();
+			final double[] value = futures.get( 0 ).get();
+			for ( final Future< double[] > future : futures )
+				Assert.assertSame( value, future.get() );
+			Assert.assertEquals( 1, loads.get() );
+			Assert.assertEquals( 4, cache.getWeight() );
+		}
+		finally
+		{
+			es.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testFailedLoadIsNotCached() throws Exception
+	{
+		final LRUCache< Integer, double[] > cache = new LRUCache<>( 100, v -> v.length );
+		try
+		{
+			cache.get( 0, () -> {
+				throw new IllegalStateException();
+			} );
+			Assert.fail( "Expected exception of loader" );
+		}
+		catch ( final IllegalStateException e )
+		{
+			// expected
+		}
+		Assert.assertFalse( cache.contains( 0 ) );
+		Assert.assertEquals( 2, cache.get( 0, () -> new double[ 2 ] ).length );
+	}
+
+}
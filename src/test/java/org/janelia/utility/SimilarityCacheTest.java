@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SimilarityCacheTest
+{
+
+	private final int n = 10;
+
+	private Path directory;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		directory = Files.createTempDirectory( "similarity-cache" );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		try (Stream< Path > files = Files.list( directory ))
+		{
+			for ( final Path file : ( Iterable< Path > ) files::iterator )
+				Files.delete( file );
+		}
+		Files.delete( directory );
+	}
+
+	@Test
+	public void testSaveAndLoad() throws IOException
+	{
+		final SimilarityCache cache = new SimilarityCache( directory, "context" );
+		cache.put( "a", "b", 0.25 );
+		cache.put( "c", "a", Double.NaN );
+		cache.save();
+
+		final SimilarityCache loaded = new SimilarityCache( directory, "context" );
+		Assert.assertEquals( 2, loaded.size() );
+		Assert.assertEquals( 0.25, loaded.get( "b", "a" ), 0.0 );
+		Assert.assertEquals( Double.NaN, loaded.get( "a", "c" ), 0.0 );
+		Assert.assertNull( loaded.get( "b", "c" ) );
+		Assert.assertEquals( 2, loaded.getHits() );
+		Assert.assertEquals( 1, loaded.getMisses() );
+
+		Assert.assertEquals( 0, new SimilarityCache( directory, "other context" ).size() );
+	}
+
+	@Test
+	public void testReuseWithLargerRange() throws Exception
+	{
+		final AtomicInteger computed = new AtomicInteger();
+		final AtomicInteger loaded = new AtomicInteger();
+		final SlidingWindowSimilarity.Similarity< Integer > similarity = ( a, b ) -> {
+			computed.incrementAndGet();
+			return 1.0 / ( 1 + Math.abs( a - b ) );
+		};
+
+		runWithCache( 2, similarity, loaded );
+		Assert.assertEquals( 2 * n - 3, computed.get() );
+		Assert.assertEquals( n, loaded.get() );
+
+		// all pairs within the smaller range are cached
+		computed.set( 0 );
+		loaded.set( 0 );
+		final BandedMatrix< ? > matrix = runWithCache( 3, similarity, loaded );
+		Assert.assertEquals( n - 3, computed.get() );
+		Assert.assertEquals( n, loaded.get() );
+		for ( int x = 0; x < n; ++x )
+			for ( int y = Math.max( x - 3, 0 ); y <= Math.min( x + 3, n - 1 ); ++y )
+				Assert.assertEquals( x == y ? 1.0 : 1.0 / ( 1 + Math.abs( x - y ) ), matrix.get( x, y ), 0.0 );
+
+		// nothing is loaded if all pairs are cached
+		computed.set( 0 );
+		loaded.set( 0 );
+		runWithCache( 1, similarity, loaded );
+		Assert.assertEquals( 0, computed.get() );
+		Assert.assertEquals( 0, loaded.get() );
+	}
+
+	private BandedMatrix< ? > runWithCache(
+			final int range,
+			final SlidingWindowSimilarity.Similarity< Integer > similarity,
+			final AtomicInteger loaded ) throws Exception
+	{
+		final SimilarityCache cache = new SimilarityCache( directory, "test" );
+		final BandedMatrix< ? > matrix = BandedMatrix.doubles( n, range );
+		new SlidingWindowSimilarity<>( range, cache.wrap( similarity ), matrix, null ).run(
+				n,
+				z -> new SimilarityCache.Entry<>( "section-" + z, () -> {
+					loaded.incrementAndGet();
+					return z;
+				} ) );
+		cache.save();
+		return matrix;
+	}
+
+}
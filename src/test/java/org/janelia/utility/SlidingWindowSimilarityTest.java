@@ -0,0 +1,219 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class SlidingWindowSimilarityTest
+{
+
+	private final int n = 12;
+
+	private final int range = 3;
+
+	private static double similarity( final Integer a, final Integer b )
+	{
+		return 1.0 / ( 1 + Math.abs( a - b ) ) + 0.01 * a;
+	}
+
+	@Test
+	public void testMatchesAllPairs() throws Exception
+	{
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		try
+		{
+			for ( final ExecutorService service : new ExecutorService[] { null, es } )
+			{
+				final BandedMatrix< DoubleType > matrix = BandedMatrix.doubles( n, range );
+				final SlidingWindowSimilarity< Integer > sws = new SlidingWindowSimilarity<>( range, SlidingWindowSimilarityTest::similarity, matrix, service );
+				final List< Integer > loaded = new ArrayList<>();
+				sws.run( n, z -> {
+					loaded.add( z );
+					return z;
+				} );
+				Assert.assertEquals( n, sws.size() );
+				Assert.assertEquals( n, loaded.size() );
+				for ( int x = 0; x < n; ++x )
+					for ( int y = 0; y < n; ++y )
+					{
+						final double value = matrix.get( x, y );
+						if ( x == y )
+							Assert.assertEquals( 1.0, value, 0.0 );
+						else if ( Math.abs( x - y ) <= range )
+							Assert.assertEquals( similarity( Math.min( x, y ), Math.max( x, y ) ), value, 0.0 );
+						else
+							Assert.assertTrue( Double.isNaN( value ) );
+					}
+			}
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test
+	public void testRunLoadsAheadWithBoundedLookahead() throws Exception
+	{
+		final int lookahead = 2;
+		// one more for the push after run
+		final double[][] matrix = new double[ n + 1 ][ n + 1 ];
+		final BandWriter writer = ( x, y, value ) -> {
+			synchronized ( matrix )
+			{
+				matrix[ ( int ) x ][ ( int ) y ] = matrix[ ( int ) y ][ ( int ) x ] = value;
+			}
+		};
+		final ExecutorService es = Executors.newFixedThreadPool( 4 );
+		try
+		{
+			final SlidingWindowSimilarity< Integer > sws = new SlidingWindowSimilarity<>( range, SlidingWindowSimilarityTest::similarity, writer, es, lookahead );
+			final AtomicInteger violations = new AtomicInteger();
+			sws.push( 0 );
+			sws.run( n - 1, z -> {
+				// all pairs of rows older than lookahead are done
+				final int row = z + 1;
+				synchronized ( matrix )
+				{
+					for ( int r = 1; r < row - lookahead; ++r )
+						for ( int d = 1; d <= range && d <= r; ++d )
+							if ( matrix[ r - d ][ r ] == 0.0 )
+								violations.incrementAndGet();
+				}
+				return row;
+			} );
+			Assert.assertEquals( 0, violations.get() );
+			Assert.assertEquals( n, sws.size() );
+			for ( int x = 0; x < n; ++x )
+				for ( int y = 0; y < n; ++y )
+					if ( x == y )
+						Assert.assertEquals( 1.0, matrix[ x ][ y ], 0.0 );
+					else if ( Math.abs( x - y ) <= range )
+						Assert.assertEquals( similarity( Math.min( x, y ), Math.max( x, y ) ), matrix[ x ][ y ], 0.0 );
+					else
+						Assert.assertEquals( 0.0, matrix[ x ][ y ], 0.0 );
+
+			// window is kept for subsequent pushes
+			final double[] next = sws.push( n );
+			for ( int d = 1; d <= range; ++d )
+				Assert.assertEquals( similarity( n - d, n ), next[ d - 1 ], 0.0 );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test
+	public void testRunKeepsSlowSectionsWithoutMatrix() throws Exception
+	{
+		final ExecutorService es = Executors.newFixedThreadPool( 2 );
+		try
+		{
+			// first section has no pairs and finishes loading last
+			final SlidingWindowSimilarity< Integer > sws = new SlidingWindowSimilarity<>( range, SlidingWindowSimilarityTest::similarity, null, es, 1 );
+			sws.run( 1, z -> {
+				Thread.sleep( 100 );
+				return z;
+			} );
+			final double[] row = sws.push( 1 );
+			Assert.assertEquals( similarity( 0, 1 ), row[ 0 ], 0.0 );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test
+	public void testRunCallsRowDoneOnCallingThread() throws Exception
+	{
+		final ExecutorService es = Executors.newFixedThreadPool( 2 );
+		try
+		{
+			for ( final ExecutorService service : new ExecutorService[] { null, es } )
+			{
+				final Thread caller = Thread.currentThread();
+				final AtomicInteger calls = new AtomicInteger();
+				final SlidingWindowSimilarity< Integer > sws = new SlidingWindowSimilarity<>( range, SlidingWindowSimilarityTest::similarity, null, service, 2 );
+				sws.run( n, z -> z, () -> {
+					Assert.assertSame( caller, Thread.currentThread() );
+					calls.incrementAndGet();
+				} );
+				Assert.assertEquals( n, calls.get() );
+			}
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test( expected = ExecutionException.class )
+	public void testRunPropagatesExceptions() throws Exception
+	{
+		final ExecutorService es = Executors.newFixedThreadPool( 2 );
+		try
+		{
+			new SlidingWindowSimilarity< Integer >( range, SlidingWindowSimilarityTest::similarity, null, es, 1 ).run( n, z -> {
+				if ( z == n / 2 )
+					throw new IllegalStateException();
+				return z;
+			} );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test
+	public void testPushReturnsRow() throws Exception
+	{
+		final SlidingWindowSimilarity< Integer > sws = new SlidingWindowSimilarity<>( range, SlidingWindowSimilarityTest::similarity, null, null );
+		final double[] first = sws.push( 0 );
+		Assert.assertEquals( range, first.length );
+		for ( final double v : first )
+			Assert.assertTrue( Double.isNaN( v ) );
+		sws.push( 1 );
+		sws.push( null );
+		final double[] row = sws.push( 3 );
+		Assert.assertEquals( Double.NaN, row[ 0 ], 0.0 );
+		Assert.assertEquals( similarity( 1, 3 ), row[ 1 ], 0.0 );
+		Assert.assertEquals( similarity( 0, 3 ), row[ 2 ], 0.0 );
+		final double[] next = sws.push( 4 );
+		Assert.assertEquals( similarity( 3, 4 ), next[ 0 ], 0.0 );
+		Assert.assertEquals( Double.NaN, next[ 1 ], 0.0 );
+		Assert.assertEquals( similarity( 1, 4 ), next[ 2 ], 0.0 );
+	}
+
+}
@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+public class StripFileTest
+{
+
+	private final int n = 12;
+
+	private final int range = 3;
+
+	private Path path;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		path = Files.createTempFile( "strip", ".bin" );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		Files.deleteIfExists( path );
+	}
+
+	@Test
+	public void testWriter() throws IOException
+	{
+		try (final StripFileWriter writer = StripFile.create( path, n, range ))
+		{
+			for ( int y = 0; y < n; ++y )
+				for ( int x = y; x < n; ++x )
+					writer.setSymmetric( x, y, x + 0.5 * y );
+		}
+
+		final MappedStrip strip = StripFile.read( path );
+		Assert.assertEquals( n, strip.getNumSections() );
+		Assert.assertEquals( range, strip.getRange() );
+		Assert.assertEquals( 2 * range + 1, strip.dimension( 0 ) );
+		Assert.assertEquals( n, strip.dimension( 1 ) );
+		for ( int y = 0; y < n; ++y )
+			for ( int x = 0; x < n; ++x )
+			{
+				final double expected = Math.abs( x - y ) <= range ? Math.max( x, y ) + 0.5 * Math.min( x, y ) : Double.NaN;
+				Assert.assertEquals( expected, strip.get( x, y ), 0.0 );
+			}
+
+		final BandedMatrix< FloatType > matrix = BandedMatrix.floats( n, range );
+		for ( int y = 0; y < n; ++y )
+			for ( int x = y; x < n; ++x )
+				matrix.setSymmetric( x, y, x + 0.5 * y );
+		Assert.assertArrayEquals( matrix.toDoubleStrip(), strip.toDoubleStrip(), 0.0 );
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final ArrayImg< DoubleType, DoubleArray > dense = ArrayImgs.doubles( n, n );
+		for ( final Cursor< DoubleType > c = dense.localizingCursor(); c.hasNext(); )
+		{
+			c.fwd();
+			c.get().set( Math.exp( -0.1 * Math.abs( c.getDoublePosition( 0 ) - c.getDoublePosition( 1 ) ) ) );
+		}
+		final double[] expected = MatrixStripConversion.matrixToDoubleStrip( dense, range );
+		StripFile.write( path, ArrayImgs.doubles( expected, 2 * range + 1, n ) );
+
+		final MappedStrip strip = StripFile.read( path );
+		final Cursor< FloatType > cursor = Views.flatIterable( strip ).cursor();
+		for ( int i = 0; cursor.hasNext(); ++i )
+			Assert.assertEquals( ( float ) expected[ i ], cursor.next().get(), 0.0f );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testEvenWidth() throws IOException
+	{
+		StripFile.write( path, ArrayImgs.doubles( 2 * range, n ) );
+	}
+
+	@Test( expected = IOException.class )
+	public void testInvalidFile() throws IOException
+	{
+		Files.write( path, new byte[ StripFile.HEADER_SIZE ] );
+		StripFile.read( path );
+	}
+
+}
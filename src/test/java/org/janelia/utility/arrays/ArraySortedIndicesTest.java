@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * Z spacing plugin for Fiji.
+ * %%
+ * Copyright (C) 2014 - 2023 Howard Hughes Medical Institute.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.janelia.utility.arrays;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ArraySortedIndicesTest
+{
+
+	private final Random rng = new Random( 100 );
+
+	@Test
+	public void testDuplicates()
+	{
+		final double[] input = { 3.0, 1.0, 2.0, 1.0, 3.0, Double.NaN, 0.0 };
+		final double[] sorted = input.clone();
+		final int[] forward = new int[ input.length ];
+		final int[] backward = new int[ input.length ];
+		ArraySortedIndices.sort( sorted, forward, backward );
+		Assert.assertArrayEquals( new int[] { 6, 1, 3, 2, 0, 4, 5 }, backward );
+		Assert.assertArrayEquals( new int[] { 4, 1, 3, 2, 5, 6, 0 }, forward );
+		Assert.assertArrayEquals( new double[] { 0.0, 1.0, 1.0, 2.0, 3.0, 3.0, Double.NaN }, sorted, 0.0 );
+	}
+
+	@Test
+	public void testRandom()
+	{
+		for ( final int n : new int[] { 0, 1, 2, 10, 100, 1000 } )
+		{
+			final double[] input = new double[ n ];
+			for ( int i = 0; i < n; ++i )
+				input[ i ] = rng.nextInt( n / 2 + 1 );
+			test( input );
+		}
+	}
+
+	@Test
+	public void testNearlySorted()
+	{
+		final int n = 1000;
+		final double[] input = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+			input[ i ] = i + 3 * rng.nextDouble();
+		test( input );
+	}
+
+	@Test
+	public void testReversed()
+	{
+		final int n = 1000;
+		final double[] input = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+			input[ i ] = n - i / 2;
+		test( input );
+	}
+
+	private static void test( final double[] input )
+	{
+		final int[] expected = IntStream.range( 0, input.length ).boxed()
+				.sorted( Comparator.comparingDouble( ( Integer i ) -> input[ i ] ) )
+				.mapToInt( Integer::intValue )
+				.toArray();
+		final double[] expectedSorted = input.clone();
+		Arrays.sort( expectedSorted );
+
+		Assert.assertArrayEquals( expected, ArraySortedIndices.sort( input ) );
+
+		final double[] sorted = input.clone();
+		final int[] forward = new int[ input.length ];
+		final int[] backward = new int[ input.length ];
+		ArraySortedIndices.sort( sorted, forward, backward );
+		Assert.assertArrayEquals( expected, backward );
+		Assert.assertArrayEquals( expectedSorted, sorted, 0.0 );
+		for ( int i = 0; i < input.length; ++i )
+			Assert.assertEquals( i, backward[ forward[ i ] ] );
+	}
+
+}